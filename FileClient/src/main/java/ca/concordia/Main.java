@@ -1,16 +1,25 @@
 package ca.concordia;
 
+import ca.concordia.load.LoadGenerator;
+
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.Scanner;
 
 // Press Shift twice to open the Search Everywhere dialog and type `show whitespaces`,
 // then press Enter. You can now see whitespace characters in your code.
 public class Main {
     public static void main(String[] args) {
+        // --load runs the load generator instead of the console, see LoadOptions
+        if (Arrays.asList(args).contains("--load")) {
+            LoadGenerator.run(args);
+            return;
+        }
+
         //Socket CLient
         System.out.println("Hello and welcome!");
         Scanner scanner = new Scanner(System.in);
@@ -0,0 +1,81 @@
+package ca.concordia.client;
+
+/**
+ * Tunables of a FileServerClient, chosen when it is constructed.
+ */
+public class ClientConfig {
+
+    private String host = "localhost";
+    private int port = 12345;
+    private int maxConnections = 4;
+    private long connectTimeoutMillis = 2000;
+    private long requestTimeoutMillis = 5000;
+    private long idleTimeoutMillis = 60_000;
+
+    public ClientConfig host(String host) {
+        this.host = host;
+        return this;
+    }
+
+    public ClientConfig port(int port) {
+        this.port = port;
+        return this;
+    }
+
+    // Connections opened at most; a new one is only opened while every
+    // existing one has requests in flight
+    public ClientConfig maxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public ClientConfig connectTimeout(long millis) {
+        this.connectTimeoutMillis = millis;
+        return this;
+    }
+
+    // A request not answered within this fails with a TimeoutException; 0 waits forever
+    public ClientConfig requestTimeout(long millis) {
+        this.requestTimeoutMillis = millis;
+        return this;
+    }
+
+    // Connections with nothing in flight for this long are closed; 0 keeps them open
+    public ClientConfig idleTimeout(long millis) {
+        this.idleTimeoutMillis = millis;
+        return this;
+    }
+
+    // These settings for another server
+    ClientConfig at(String host, int port) {
+        return new ClientConfig().host(host).port(port)
+                .maxConnections(maxConnections)
+                .connectTimeout(connectTimeoutMillis)
+                .requestTimeout(requestTimeoutMillis)
+                .idleTimeout(idleTimeoutMillis);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+}
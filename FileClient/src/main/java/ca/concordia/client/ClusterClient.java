@@ -0,0 +1,129 @@
+package ca.concordia.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Client of a cluster of file servers (started with --cluster) that sends
+ * each request straight to the node holding its file, placing names on the
+ * same hash ring as the nodes, with a FileServerClient per node. list()
+ * asks every node and merges their names.
+ *
+ * A node replies "MOVED host:port" to a request for a file it doesn't hold,
+ * e.g. after a node joined; the client adds a node it didn't know to its
+ * ring and retries there once.
+ *
+ *   try (ClusterClient cluster = new ClusterClient(new ClientConfig(),
+ *           List.of("localhost:12345", "localhost:12346"))) {
+ *       cluster.create("notes").thenCompose(v -> cluster.write("notes", data)).join();
+ *   }
+ */
+public class ClusterClient implements AutoCloseable {
+
+    // The servers' default, see --vnodes
+    public static final int DEFAULT_VNODES = 64;
+
+    private static final String MOVED = "MOVED ";
+
+    private final ClientConfig config;
+    private volatile HashRing ring;
+    private final Map<String, FileServerClient> clients = new ConcurrentHashMap<>();
+
+    public ClusterClient(ClientConfig config, Collection<String> nodes) {
+        this(config, nodes, DEFAULT_VNODES);
+    }
+
+    /**
+     * nodes are the members as "host:port", exactly as the servers name
+     * them; config's host and port are ignored.
+     */
+    public ClusterClient(ClientConfig config, Collection<String> nodes, int vnodes) {
+        this.config = config;
+        this.ring = new HashRing(nodes, vnodes);
+    }
+
+    public CompletableFuture<Void> create(String name) {
+        return routed(name, client -> client.create(name));
+    }
+
+    public CompletableFuture<byte[]> read(String name) {
+        return routed(name, client -> client.read(name));
+    }
+
+    public CompletableFuture<Void> write(String name, byte[] data) {
+        return routed(name, client -> client.write(name, data));
+    }
+
+    public CompletableFuture<Void> append(String name, byte[] data) {
+        return routed(name, client -> client.append(name, data));
+    }
+
+    public CompletableFuture<Void> delete(String name) {
+        return routed(name, client -> client.delete(name));
+    }
+
+    public CompletableFuture<List<String>> list() {
+        List<CompletableFuture<List<String>>> parts = new ArrayList<>();
+        for (String node : ring.getNodes())
+            parts.add(client(node).list());
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            // A file being handed over may be on two nodes for a moment
+            Set<String> names = new LinkedHashSet<>();
+            for (CompletableFuture<List<String>> part : parts)
+                names.addAll(part.join());
+            return List.copyOf(names);
+        });
+    }
+
+    // The node a file is expected on
+    public String nodeOf(String name) {
+        return ring.owner(name);
+    }
+
+    public List<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    @Override
+    public void close() {
+        for (FileServerClient client : clients.values())
+            client.close();
+    }
+
+    private <T> CompletableFuture<T> routed(String name, Function<FileServerClient, CompletableFuture<T>> call) {
+        String node = ring.owner(name);
+        return call.apply(client(node)).exceptionallyCompose(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            String message = cause.getMessage();
+            if (!(cause instanceof FileServerException) || message == null || !message.startsWith(MOVED))
+                return CompletableFuture.failedFuture(cause);
+            String owner = message.substring(MOVED.length()).trim();
+            if (owner.equals(node))
+                return CompletableFuture.failedFuture(cause);
+            learn(owner);
+            return call.apply(client(owner));
+        });
+    }
+
+    private synchronized void learn(String node) {
+        if (!ring.getNodes().contains(node))
+            ring = ring.with(node);
+    }
+
+    private FileServerClient client(String node) {
+        return clients.computeIfAbsent(node, n -> {
+            int colon = n.lastIndexOf(':');
+            if (colon <= 0)
+                throw new IllegalArgumentException("node address must be host:port: " + n);
+            return new FileServerClient(config.at(n.substring(0, colon), Integer.parseInt(n.substring(colon + 1))));
+        });
+    }
+}
@@ -0,0 +1,231 @@
+package ca.concordia.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One socket in binary mode, shared by any number of callers.
+ *
+ * Callers encode their frame and queue it; a writer thread takes whatever has
+ * queued up since its last pass, writes it all and flushes once, so concurrent
+ * requests leave in one segment instead of one each. A reader thread matches
+ * replies to requests by id and completes their futures, which means
+ * dependent stages run on it unless the async variants are used.
+ */
+final class Connection {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final class Call {
+        final int id;
+        final byte[] frame;
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        Call(int id, byte[] frame) {
+            this.id = id;
+            this.frame = frame;
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final LinkedBlockingQueue<Call> outbox = new LinkedBlockingQueue<>();
+    private final ConcurrentHashMap<Integer, Call> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Thread writer;
+    private final Thread reader;
+    private volatile boolean closed;
+    private volatile long lastActive = System.nanoTime();
+
+    Connection(ClientConfig config) throws IOException {
+        socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(config.getHost(), config.getPort()),
+                    (int) config.getConnectTimeoutMillis());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+
+            // Switch the session to binary framing
+            socket.setSoTimeout((int) config.getConnectTimeoutMillis());
+            out.write("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String reply = readLine();
+            if (!reply.equals("OK"))
+                throw new IOException("server refused binary mode: " + reply);
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        String name = "file-client-" + socket.getLocalPort();
+        writer = new Thread(this::writeLoop, name + "-writer");
+        reader = new Thread(this::readLoop, name + "-reader");
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    /**
+     * Queues a request. Returns null, without sending anything, if the
+     * connection has already been closed, so the caller can pick another one.
+     */
+    CompletableFuture<byte[]> submit(byte op, String name, byte[] payload, long timeoutMillis) {
+        int id = nextId.incrementAndGet();
+        Call call = new Call(id, encode(id, op, name, payload));
+        synchronized (this) {
+            if (closed)
+                return null;
+            pending.put(id, call);
+            lastActive = System.nanoTime();
+        }
+        if (timeoutMillis > 0)
+            call.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        call.future.whenComplete((r, e) -> pending.remove(id));
+        outbox.add(call);
+        return call.future;
+    }
+
+    int inFlight() {
+        return pending.size();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        close(null);
+    }
+
+    /**
+     * Closes the connection if nothing is in flight and nothing was sent or
+     * answered for idleNanos. Checked atomically with submit, so a request
+     * can't slip in between the check and the close; a caller that acquired
+     * the connection just before gets null from submit and picks another.
+     */
+    boolean closeIfIdle(long idleNanos) {
+        synchronized (this) {
+            if (closed)
+                return true;
+            if (!pending.isEmpty() || System.nanoTime() - lastActive <= idleNanos)
+                return false;
+            closed = true;
+        }
+        release(null);
+        return true;
+    }
+
+    private void close(IOException cause) {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        release(cause);
+    }
+
+    private void release(IOException cause) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        writer.interrupt();
+        for (Call call : pending.values())
+            call.future.completeExceptionally(new IOException("connection closed", cause));
+        pending.clear();
+    }
+
+    private void writeLoop() {
+        List<Call> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                batch.add(outbox.take());
+                outbox.drainTo(batch);
+                for (Call call : batch) {
+                    if (!call.future.isDone())  // skip requests that timed out while queued
+                        out.write(call.frame);
+                }
+                out.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 5)  // id and status at least
+                    throw new IOException("malformed reply: frame length " + length);
+                int id = in.readInt();
+                byte status = in.readByte();
+                byte[] payload = new byte[length - 5];
+                in.readFully(payload);
+
+                lastActive = System.nanoTime();
+                Call call = pending.remove(id);
+                if (call == null)
+                    continue;  // timed out; the reply came too late
+                if (status == FileServerClient.STATUS_OK)
+                    call.future.complete(payload);
+                else
+                    call.future.completeExceptionally(
+                            new FileServerException(new String(payload, StandardCharsets.UTF_8)));
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1)
+                throw new IOException("connection closed by server");
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    // int length | int requestId | byte opcode | short nameLength | name | payload
+    private static byte[] encode(int id, byte op, String name, byte[] payload) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF)
+            throw new IllegalArgumentException("file name too long");
+        int length = 4 + 1 + 2 + nameBytes.length + payload.length;
+        if (length > FileServerClient.MAX_FRAME_SIZE)
+            throw new IllegalArgumentException("request too large");
+        return ByteBuffer.allocate(4 + length)
+                .putInt(length)
+                .putInt(id)
+                .put(op)
+                .putShort((short) nameBytes.length)
+                .put(nameBytes)
+                .put(payload)
+                .array();
+    }
+}
@@ -0,0 +1,97 @@
+package ca.concordia.client;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Up to maxConnections shared connections. A request goes to the connection
+ * with the fewest requests in flight; another connection is only opened when
+ * all of them are busy, so light traffic pipelines over a single socket.
+ * Broken connections are dropped and replaced on demand, idle ones are closed
+ * in the background.
+ */
+final class ConnectionPool {
+
+    private final ClientConfig config;
+    private final CopyOnWriteArrayList<Connection> connections = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService reaper;
+    private volatile boolean closed;
+
+    ConnectionPool(ClientConfig config) {
+        this.config = config;
+        if (config.getIdleTimeoutMillis() > 0) {
+            reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "file-client-reaper");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, config.getIdleTimeoutMillis() / 2);
+            reaper.scheduleWithFixedDelay(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            reaper = null;
+        }
+    }
+
+    Connection acquire() throws IOException {
+        Connection best = leastLoaded();
+        if (best != null && (best.inFlight() == 0 || connections.size() >= config.getMaxConnections()))
+            return best;
+
+        synchronized (this) {
+            if (closed)
+                throw new IOException("client is closed");
+            best = leastLoaded();
+            if (best != null && (best.inFlight() == 0 || connections.size() >= config.getMaxConnections()))
+                return best;
+            try {
+                Connection c = new Connection(config);
+                connections.add(c);
+                return c;
+            } catch (IOException e) {
+                // Can't grow the pool right now; share a busy connection instead
+                if (best != null)
+                    return best;
+                throw e;
+            }
+        }
+    }
+
+    int size() {
+        return connections.size();
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (reaper != null)
+            reaper.shutdownNow();
+        for (Connection c : connections)
+            c.close();
+        connections.clear();
+    }
+
+    private Connection leastLoaded() {
+        Connection best = null;
+        for (Connection c : connections) {
+            if (c.isClosed()) {
+                connections.remove(c);
+                continue;
+            }
+            if (best == null || c.inFlight() < best.inFlight())
+                best = c;
+        }
+        return best;
+    }
+
+    private void closeIdle() {
+        long idle = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+        for (Connection c : connections) {
+            if (c.closeIfIdle(idle))
+                connections.remove(c);
+        }
+    }
+}
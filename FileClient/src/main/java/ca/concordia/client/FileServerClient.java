@@ -0,0 +1,100 @@
+package ca.concordia.client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous client of the file server's binary protocol over a pool of
+ * shared, pipelined connections. Thread-safe; create one per server and
+ * share it.
+ *
+ * Every call returns at once. Its future completes with the result, or
+ * exceptionally with a FileServerException for an ERROR reply, a
+ * TimeoutException once the request timeout passes, or an IOException if the
+ * connection fails. Futures complete on a connection's reader thread.
+ *
+ *   try (FileServerClient client = new FileServerClient(new ClientConfig().port(12345))) {
+ *       client.create("notes").thenCompose(v -> client.write("notes", data)).join();
+ *       byte[] content = client.read("notes").get();
+ *   }
+ */
+public class FileServerClient implements AutoCloseable {
+
+    // Opcodes and limits of the server's BinaryProtocol
+    static final byte OP_CREATE = 1;
+    static final byte OP_READ = 2;
+    static final byte OP_WRITE = 3;
+    static final byte OP_DELETE = 4;
+    static final byte OP_LIST = 5;
+    static final byte OP_APPEND = 9;
+    static final byte STATUS_OK = 0;
+    static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final ClientConfig config;
+    private final ConnectionPool pool;
+
+    public FileServerClient(ClientConfig config) {
+        this.config = config;
+        this.pool = new ConnectionPool(config);
+    }
+
+    public FileServerClient(String host, int port) {
+        this(new ClientConfig().host(host).port(port));
+    }
+
+    public CompletableFuture<Void> create(String name) {
+        return send(OP_CREATE, name, NO_PAYLOAD).thenAccept(r -> { });
+    }
+
+    public CompletableFuture<byte[]> read(String name) {
+        return send(OP_READ, name, NO_PAYLOAD);
+    }
+
+    public CompletableFuture<Void> write(String name, byte[] data) {
+        return send(OP_WRITE, name, data).thenAccept(r -> { });
+    }
+
+    public CompletableFuture<Void> append(String name, byte[] data) {
+        return send(OP_APPEND, name, data).thenAccept(r -> { });
+    }
+
+    public CompletableFuture<Void> delete(String name) {
+        return send(OP_DELETE, name, NO_PAYLOAD).thenAccept(r -> { });
+    }
+
+    public CompletableFuture<List<String>> list() {
+        return send(OP_LIST, "", NO_PAYLOAD).thenApply(names -> names.length == 0
+                ? List.of()
+                : List.of(new String(names, StandardCharsets.UTF_8).split("\n")));
+    }
+
+    // Connections currently open
+    public int getConnectionCount() {
+        return pool.size();
+    }
+
+    /**
+     * Closes every connection; requests still in flight fail with an IOException.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    private CompletableFuture<byte[]> send(byte op, String name, byte[] payload) {
+        try {
+            while (true) {
+                CompletableFuture<byte[]> reply = pool.acquire().submit(op, name, payload, config.getRequestTimeoutMillis());
+                if (reply != null)
+                    return reply;
+                // The connection closed before the request went out; try another
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
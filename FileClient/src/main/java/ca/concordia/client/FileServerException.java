@@ -0,0 +1,14 @@
+package ca.concordia.client;
+
+/**
+ * An ERROR reply from the server, e.g. "file not found". The request reached
+ * the server and the connection it used is still fine.
+ */
+public class FileServerException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public FileServerException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,62 @@
+package ca.concordia.client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The server's consistent-hash ring (ca.concordia.cluster.HashRing), placing
+ * file names on "host:port" nodes the same way the nodes do. Immutable.
+ */
+final class HashRing {
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final List<String> nodes;
+    private final int vnodes;
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    HashRing(Collection<String> nodes, int vnodes) {
+        if (nodes.isEmpty() || vnodes <= 0)
+            throw new IllegalArgumentException("a ring needs nodes and points per node");
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+        this.vnodes = vnodes;
+        for (String node : this.nodes) {
+            for (int i = 0; i < vnodes; i++)
+                points.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+        }
+    }
+
+    String owner(String name) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(name));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    List<String> getNodes() {
+        return nodes;
+    }
+
+    HashRing with(String node) {
+        List<String> more = new ArrayList<>(nodes);
+        more.add(node);
+        return new HashRing(more, vnodes);
+    }
+
+    private static long hash(String text) {
+        return ByteBuffer.wrap(SHA256.get().digest(text.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+}
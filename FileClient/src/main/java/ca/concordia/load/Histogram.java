@@ -0,0 +1,72 @@
+package ca.concordia.load;
+
+/**
+ * Latency histogram in nanoseconds with log-linear buckets (every power of two
+ * split into 16), so percentiles are within about 6% from 1 ns to 2^40 ns.
+ * Not thread-safe: each recording thread keeps its own and they are merged
+ * for the report.
+ */
+class Histogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = index((1L << (MAX_EXPONENT + 1)) - 1) + 1;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long max;
+
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts[Math.min(index(nanos), BUCKETS - 1)]++;
+        count++;
+        max = Math.max(max, nanos);
+    }
+
+    void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    // Smallest bucket end with at least the fraction q of values at or below it
+    long getPercentile(double q) {
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,292 @@
+package ca.concordia.load;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a server with the text protocol over several pipelined connections
+ * and reports throughput and latency percentiles.
+ *
+ * Each connection has a sender and a receiver thread; the server answers in
+ * order, so the receiver matches replies to requests first-in first-out.
+ *
+ * Open loop (--rate): requests are due on a fixed schedule whether or not
+ * earlier ones were answered. Latency is measured from when a request was due,
+ * not from when it was actually sent, so a stalled server is charged for the
+ * requests that queued up behind the stall instead of hiding them (the
+ * coordinated omission correction). Service time, from the actual send, is
+ * reported alongside.
+ *
+ * Closed loop (--concurrency): a fixed number of requests are outstanding and
+ * each reply lets the next one go. There is no schedule to fall behind, so
+ * latency and service time are the same; use open loop for capacity numbers.
+ */
+public class LoadGenerator {
+
+    private static final long DRAIN_TIMEOUT_MS = 10_000;
+
+    private final LoadOptions options;
+    private final Workload workload;
+
+    private long warmupEnd;
+    private long end;
+
+    LoadGenerator(LoadOptions options) {
+        this.options = options;
+        this.workload = new Workload(options);
+    }
+
+    public static void run(String[] args) {
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid load options: " + e.getMessage());
+            return;
+        }
+        try {
+            new LoadGenerator(options).run();
+        } catch (Exception e) {
+            System.err.println("Load run failed: " + e.getMessage());
+        }
+    }
+
+    // One request in flight
+    private static final class Pending {
+        final long due;
+        final long sent;
+        final int command;
+
+        Pending(long due, long sent, int command) {
+            this.due = due;
+            this.sent = sent;
+            this.command = command;
+        }
+    }
+
+    // Results recorded by one receiver; merged at the end
+    static final class Stats {
+        final Histogram latency = new Histogram();
+        final Histogram service = new Histogram();
+        final Histogram[] perCommand;
+        final long[] errors;
+        long unanswered;
+
+        Stats(int commands) {
+            perCommand = new Histogram[commands];
+            for (int i = 0; i < commands; i++)
+                perCommand[i] = new Histogram();
+            errors = new long[commands];
+        }
+
+        void add(Stats other) {
+            latency.add(other.latency);
+            service.add(other.service);
+            for (int i = 0; i < perCommand.length; i++) {
+                perCommand[i].add(other.perCommand[i]);
+                errors[i] += other.errors[i];
+            }
+            unanswered += other.unanswered;
+        }
+    }
+
+    private final class Connection {
+        final int index;
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+        final ConcurrentLinkedQueue<Pending> inFlight = new ConcurrentLinkedQueue<>();
+        final Semaphore window;        // closed loop only
+        final Stats stats = new Stats(workload.commandCount());
+        volatile boolean senderDone;
+
+        Connection(int index, int window) throws IOException {
+            this.index = index;
+            this.socket = new Socket(options.host, options.port);
+            this.socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            this.window = options.isOpenLoop() ? null : new Semaphore(window);
+        }
+
+        void send(long start) {
+            SplittableRandom random = new SplittableRandom(options.seed + 1 + index);
+            try {
+                if (options.isOpenLoop()) {
+                    // This connection's share of the rate, staggered against the others
+                    double interval = 1e9 * options.connections / options.rate;
+                    double due = start + interval * index / options.connections;
+                    for (; due < end; due += interval) {
+                        long wait = (long) due - System.nanoTime();
+                        if (wait > 0)
+                            LockSupport.parkNanos(wait);
+                        issue((long) due, random);
+                    }
+                } else {
+                    while (System.nanoTime() < end) {
+                        window.acquire();
+                        issue(System.nanoTime(), random);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Connection " + index + ": " + e.getMessage());
+            } finally {
+                senderDone = true;
+                try {
+                    socket.shutdownOutput(); // the server closes once it has answered everything
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void issue(long due, SplittableRandom random) throws IOException {
+            int command = workload.nextCommand(random);
+            String line = workload.request(command, random);
+            inFlight.add(new Pending(due, System.nanoTime(), command));
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        void receive() {
+            try {
+                while (true) {
+                    if (senderDone)
+                        socket.setSoTimeout((int) DRAIN_TIMEOUT_MS);
+                    String reply;
+                    try {
+                        reply = in.readLine();
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    if (reply == null)
+                        break;
+                    long now = System.nanoTime();
+                    Pending p = inFlight.poll();
+                    if (p == null)
+                        continue;
+                    if (window != null)
+                        window.release();
+                    if (p.due < warmupEnd)
+                        continue;
+
+                    stats.latency.record(now - p.due);
+                    stats.service.record(now - p.sent);
+                    stats.perCommand[p.command].record(now - p.due);
+                    if (reply.startsWith("ERROR"))
+                        stats.errors[p.command]++;
+                }
+            } catch (IOException e) {
+                if (!senderDone)
+                    System.err.println("Connection " + index + ": " + e.getMessage());
+            } finally {
+                for (Pending p : inFlight) {
+                    if (p.due >= warmupEnd)
+                        stats.unanswered++;
+                }
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Runs the load and reports it; returns the merged results
+    Stats run() throws Exception {
+        createFiles();
+
+        // Closed loop spreads the outstanding requests over the connections
+        int count = options.isOpenLoop() ? options.connections : Math.min(options.connections, options.concurrency);
+        List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int window = options.concurrency / count + (i < options.concurrency % count ? 1 : 0);
+            connections.add(new Connection(i, window));
+        }
+
+        long start = System.nanoTime();
+        warmupEnd = start + (long) (options.warmupSeconds * 1e9);
+        end = warmupEnd + (long) (options.durationSeconds * 1e9);
+
+        List<Thread> threads = new ArrayList<>();
+        for (Connection c : connections) {
+            threads.add(new Thread(() -> c.send(start), "load-send-" + c.index));
+            threads.add(new Thread(c::receive, "load-receive-" + c.index));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+
+        Stats total = new Stats(workload.commandCount());
+        for (Connection c : connections)
+            total.add(c.stats);
+        report(total);
+        return total;
+    }
+
+    // Creates and fills k0..k(n-1) so the run starts from a known state;
+    // files left by an earlier run are simply overwritten
+    private void createFiles() throws IOException {
+        try (Socket socket = new Socket(options.host, options.port)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            String[] lines = workload.setupRequests(new SplittableRandom(options.seed));
+            for (String line : lines)
+                out.write(line + "\n");
+            out.flush();
+            for (int i = 0; i < lines.length; i++) {
+                String reply = in.readLine();
+                if (reply == null)
+                    throw new IOException("server closed the connection during setup");
+                if (lines[i].startsWith("WRITE") && reply.startsWith("ERROR"))
+                    throw new IOException("setup " + lines[i].substring(0, lines[i].indexOf(' ', 6)) + ": " + reply);
+            }
+        }
+    }
+
+    private void report(Stats s) {
+        long ops = s.latency.getCount();
+        long errors = 0;
+        for (long e : s.errors)
+            errors += e;
+
+        if (options.isOpenLoop())
+            System.out.printf("open loop, target %.0f req/s over %d connections%n", options.rate, options.connections);
+        else
+            System.out.printf("closed loop, %d outstanding over %d connections%n",
+                    options.concurrency, Math.min(options.connections, options.concurrency));
+        System.out.printf("%.0f s measured after %.0f s warmup: %d requests, %d errors, %d unanswered, %.1f req/s%n",
+                options.durationSeconds, options.warmupSeconds, ops, errors, s.unanswered,
+                ops / options.durationSeconds);
+        System.out.println("latency (from due time): " + percentiles(s.latency));
+        System.out.println("service (from send):     " + percentiles(s.service));
+        for (int i = 0; i < workload.commandCount(); i++) {
+            if (s.perCommand[i].getCount() == 0)
+                continue;
+            System.out.printf("  %-7s %8d ops %6d errors  %s%n", workload.commandName(i),
+                    s.perCommand[i].getCount(), s.errors[i], percentiles(s.perCommand[i]));
+        }
+    }
+
+    private static String percentiles(Histogram h) {
+        return String.format("p50=%s p99=%s p999=%s max=%s", millis(h.getPercentile(0.5)),
+                millis(h.getPercentile(0.99)), millis(h.getPercentile(0.999)), millis(h.getMax()));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,129 @@
+package ca.concordia.load;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Settings of a load run, parsed from --name=value arguments:
+ *
+ *   --host=localhost --port=12345
+ *   --connections=4            sockets to the server
+ *   --rate=1000                open loop: requests per second in total, on a fixed schedule
+ *   --concurrency=16           closed loop: requests outstanding at once, across all connections
+ *   --mix=READ:80,WRITE:20     weighted commands (READ, WRITE, APPEND, CREATE, DELETE, LIST)
+ *   --keys=4                   files k0..k(n-1); the server must allow that many
+ *   --popularity=uniform       or zipf:<exponent>, e.g. zipf:0.99
+ *   --payload=fixed:64         or uniform:<min>:<max> bytes for WRITE and APPEND
+ *   --warmup=5 --duration=30   seconds; nothing is recorded during warmup
+ *   --seed=42
+ *
+ * --rate wins if both --rate and --concurrency are given.
+ */
+class LoadOptions {
+
+    String host = "localhost";
+    int port = 12345;
+    int connections = 4;
+    double rate;
+    int concurrency = 4;
+    Map<String, Integer> mix = new LinkedHashMap<>();
+    int keys = 4;
+    double zipfExponent;       // 0 for uniform
+    int payloadMin = 64;
+    int payloadMax = 64;
+    double warmupSeconds = 5;
+    double durationSeconds = 30;
+    long seed = 42;
+
+    boolean isOpenLoop() {
+        return rate > 0;
+    }
+
+    static LoadOptions parse(String[] args) {
+        LoadOptions o = new LoadOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.equals("--load"))
+                continue;
+            int eq = arg.indexOf('=');
+            if (eq == -1)
+                throw new IllegalArgumentException("expected --name=value: " + arg);
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "host":
+                    o.host = value;
+                    break;
+                case "port":
+                    o.port = Integer.parseInt(value);
+                    break;
+                case "connections":
+                    o.connections = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    o.rate = Double.parseDouble(value);
+                    break;
+                case "concurrency":
+                    o.concurrency = Integer.parseInt(value);
+                    break;
+                case "mix":
+                    o.mix = parseMix(value);
+                    break;
+                case "keys":
+                    o.keys = Integer.parseInt(value);
+                    break;
+                case "popularity":
+                    if (value.equals("uniform"))
+                        o.zipfExponent = 0;
+                    else if (value.startsWith("zipf:"))
+                        o.zipfExponent = Double.parseDouble(value.substring(5));
+                    else
+                        throw new IllegalArgumentException("popularity is uniform or zipf:<exponent>");
+                    break;
+                case "payload":
+                    String[] p = value.split(":");
+                    if (p[0].equals("fixed") && p.length == 2) {
+                        o.payloadMin = o.payloadMax = Integer.parseInt(p[1]);
+                    } else if (p[0].equals("uniform") && p.length == 3) {
+                        o.payloadMin = Integer.parseInt(p[1]);
+                        o.payloadMax = Integer.parseInt(p[2]);
+                    } else {
+                        throw new IllegalArgumentException("payload is fixed:<n> or uniform:<min>:<max>");
+                    }
+                    break;
+                case "warmup":
+                    o.warmupSeconds = Double.parseDouble(value);
+                    break;
+                case "duration":
+                    o.durationSeconds = Double.parseDouble(value);
+                    break;
+                case "seed":
+                    o.seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option --" + name);
+            }
+        }
+        if (o.mix.isEmpty())
+            o.mix = parseMix("READ:80,WRITE:20");
+        if (o.connections <= 0 || o.concurrency <= 0 || o.keys <= 0 || o.durationSeconds <= 0)
+            throw new IllegalArgumentException("connections, concurrency, keys and duration must be positive");
+        if (o.payloadMin < 0 || o.payloadMax < o.payloadMin)
+            throw new IllegalArgumentException("invalid payload sizes");
+        return o;
+    }
+
+    private static Map<String, Integer> parseMix(String value) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            String[] kv = entry.split(":");
+            String command = kv[0].trim().toUpperCase();
+            if (!Workload.COMMANDS.contains(command))
+                throw new IllegalArgumentException("unsupported command in mix: " + command);
+            int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+            if (weight < 0)
+                throw new IllegalArgumentException("negative weight for " + command);
+            mix.put(command, weight);
+        }
+        return mix;
+    }
+}
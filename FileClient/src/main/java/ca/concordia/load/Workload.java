@@ -0,0 +1,117 @@
+package ca.concordia.load;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * What a load run sends: which command (weighted mix), on which file (uniform
+ * or Zipfian popularity over k0..k(n-1), k0 the most popular) and with how
+ * many payload bytes. Immutable; every sender draws from its own random.
+ */
+class Workload {
+
+    static final List<String> COMMANDS = List.of("READ", "WRITE", "APPEND", "CREATE", "DELETE", "LIST");
+
+    private final String[] commands;
+    private final int[] cumulativeWeights;
+    private final double[] keyCdf;     // null for uniform popularity
+    private final int keys;
+    private final int payloadMin;
+    private final int payloadMax;
+    private final char[] filler;
+
+    Workload(LoadOptions options) {
+        int n = options.mix.size();
+        commands = new String[n];
+        cumulativeWeights = new int[n];
+        int total = 0;
+        int i = 0;
+        for (Map.Entry<String, Integer> e : options.mix.entrySet()) {
+            commands[i] = e.getKey();
+            total += e.getValue();
+            cumulativeWeights[i++] = total;
+        }
+        if (total <= 0)
+            throw new IllegalArgumentException("the mix needs a positive weight");
+
+        keys = options.keys;
+        if (options.zipfExponent > 0) {
+            // P(rank k) proportional to 1 / (k + 1)^s
+            keyCdf = new double[keys];
+            double sum = 0;
+            for (int k = 0; k < keys; k++) {
+                sum += 1 / Math.pow(k + 1, options.zipfExponent);
+                keyCdf[k] = sum;
+            }
+            for (int k = 0; k < keys; k++)
+                keyCdf[k] /= sum;
+        } else {
+            keyCdf = null;
+        }
+
+        payloadMin = options.payloadMin;
+        payloadMax = options.payloadMax;
+        filler = new char[payloadMax];
+        SplittableRandom random = new SplittableRandom(options.seed);
+        for (int c = 0; c < filler.length; c++)
+            filler[c] = (char) ('a' + random.nextInt(26));
+    }
+
+    int commandCount() {
+        return commands.length;
+    }
+
+    String commandName(int command) {
+        return commands[command];
+    }
+
+    int nextCommand(SplittableRandom random) {
+        int r = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i])
+                return i;
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    String key(int k) {
+        return "k" + k;
+    }
+
+    int nextKey(SplittableRandom random) {
+        if (keyCdf == null)
+            return random.nextInt(keys);
+        int k = Arrays.binarySearch(keyCdf, random.nextDouble());
+        return Math.min(keys - 1, k >= 0 ? k : -k - 1);
+    }
+
+    int nextPayloadSize(SplittableRandom random) {
+        return payloadMin == payloadMax ? payloadMin : payloadMin + random.nextInt(payloadMax - payloadMin + 1);
+    }
+
+    // One request line, without the newline
+    String request(int command, SplittableRandom random) {
+        String name = commands[command];
+        switch (name) {
+            case "LIST":
+                return name;
+            case "WRITE":
+            case "APPEND":
+                return name + " " + key(nextKey(random)) + " " + new String(filler, 0, nextPayloadSize(random));
+            default:
+                return name + " " + key(nextKey(random));
+        }
+    }
+
+    // Lines that create every file with an initial payload before the run
+    String[] setupRequests(SplittableRandom random) {
+        String[] lines = new String[2 * keys];
+        for (int k = 0; k < keys; k++) {
+            lines[2 * k] = "CREATE " + key(k);
+            lines[2 * k + 1] = "WRITE " + key(k) + " " + new String(filler, 0, nextPayloadSize(random));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,85 @@
+package ca.concordia.load;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistogramTests {
+
+    // A reported percentile is the end of the bucket holding the exact one,
+    // so it is never below it and at most 1/16 above
+    private static void assertClose(long exact, long reported) {
+        assertTrue(reported >= exact && reported <= exact + exact / 16, "exact " + exact + ", reported " + reported);
+    }
+
+    @Test
+    void testEmptyHistogram() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentile(0.5));
+        assertEquals(0, h.getMax());
+    }
+
+    @Test
+    void testSmallValuesAreExact() {
+        Histogram h = new Histogram();
+        for (int v = 1; v <= 20; v++)
+            h.record(v);
+        assertEquals(10, h.getPercentile(0.5));
+        assertEquals(19, h.getPercentile(0.95));
+        assertEquals(20, h.getPercentile(1.0));
+        assertEquals(1, h.getPercentile(0.0));
+    }
+
+    @Test
+    void testPercentilesWithinBucketPrecision() {
+        // 1 µs to 10 s
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 10_000; v++)
+            h.record(v * 1_000_000);
+        assertEquals(10_000, h.getCount());
+        assertClose(5_000_000_000L, h.getPercentile(0.5));
+        assertClose(9_000_000_000L, h.getPercentile(0.9));
+        assertClose(9_900_000_000L, h.getPercentile(0.99));
+        assertClose(9_990_000_000L, h.getPercentile(0.999));
+        // Capped at the largest value recorded
+        assertEquals(10_000_000_000L, h.getPercentile(1.0));
+        assertEquals(10_000_000_000L, h.getMax());
+    }
+
+    @Test
+    void testOutliersShowOnlyInTheTail() {
+        Histogram h = new Histogram();
+        for (int i = 0; i < 990; i++)
+            h.record(1_000_000);
+        for (int i = 0; i < 10; i++)
+            h.record(500_000_000);
+        assertClose(1_000_000, h.getPercentile(0.5));
+        assertClose(1_000_000, h.getPercentile(0.99));
+        assertEquals(500_000_000, h.getPercentile(0.999));
+    }
+
+    @Test
+    void testMergedEqualsRecordedTogether() {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        Histogram all = new Histogram();
+        for (long v = 1; v < 100_000; v += 7) {
+            (v % 3 == 0 ? a : b).record(v * 131);
+            all.record(v * 131);
+        }
+        a.add(b);
+        assertEquals(all.getCount(), a.getCount());
+        assertEquals(all.getMax(), a.getMax());
+        for (double q : new double[] {0.1, 0.5, 0.9, 0.99, 0.999, 1.0})
+            assertEquals(all.getPercentile(q), a.getPercentile(q), "q " + q);
+    }
+
+    @Test
+    void testNegativeDurationsCountAsZero() {
+        Histogram h = new Histogram();
+        h.record(-5);
+        assertEquals(1, h.getCount());
+        assertEquals(0, h.getPercentile(1.0));
+    }
+}
@@ -0,0 +1,111 @@
+package ca.concordia.load;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadGeneratorTests {
+
+    private static final long STALL_MS = 500;
+
+    private ServerSocket listener;
+
+    @AfterEach
+    void cleanup() throws IOException {
+        if (listener != null)
+            listener.close();
+    }
+
+    /**
+     * A text protocol server answering OK at once, except that the connection
+     * reading its 100th READ stalls for STALL_MS before going on, the way a
+     * server pauses for a collection or a full disk queue.
+     */
+    private int startStallingServer() throws IOException {
+        listener = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = listener.accept();
+                    Thread t = new Thread(() -> serve(socket));
+                    t.setDaemon(true);
+                    t.start();
+                }
+            } catch (IOException ignored) {
+                // closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return listener.getLocalPort();
+    }
+
+    private static void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            int reads = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("READ") && ++reads == 100)
+                    Thread.sleep(STALL_MS);
+                out.println("OK");
+            }
+        } catch (IOException | InterruptedException ignored) {
+        }
+    }
+
+    private LoadGenerator.Stats run(int port, String mode) throws Exception {
+        return new LoadGenerator(LoadOptions.parse(new String[] {
+                "--port=" + port, "--connections=1", mode, "--mix=READ:1", "--keys=1",
+                "--warmup=0", "--duration=2"})).run();
+    }
+
+    @Test
+    @Timeout(60)
+    void testOpenLoopChargesAStallToEveryRequestDueDuringIt() throws Exception {
+        int port = startStallingServer();
+        LoadGenerator.Stats stats = run(port, "--rate=200");
+
+        // Every request on the schedule is counted, including those that
+        // queued up behind the stall
+        long ops = stats.latency.getCount();
+        assertTrue(ops >= 360 && ops <= 440, "ops " + ops);
+        assertEquals(0, stats.unanswered);
+
+        // About 100 requests were due during the 500 ms stall, waiting from
+        // nearly all of it down to none: a fifth of the run, so the 90th
+        // percentile is well into the stall and the maximum is the stall
+        long p90 = stats.latency.getPercentile(0.9);
+        assertTrue(p90 >= 200_000_000L, "p90 " + p90);
+        assertTrue(stats.latency.getMax() >= 450_000_000L, "max " + stats.latency.getMax());
+        assertTrue(stats.latency.getPercentile(0.5) < 100_000_000L, "p50 " + stats.latency.getPercentile(0.5));
+
+        // Measured from the due time, never less than from the send
+        assertTrue(stats.latency.getMax() >= stats.service.getMax());
+        assertEquals(stats.latency.getCount(), stats.service.getCount());
+    }
+
+    @Test
+    @Timeout(60)
+    void testClosedLoopHidesTheStallInOneRequest() throws Exception {
+        // The same stall seen by one outstanding request: the load simply
+        // waits for it, so only that request is slow (coordinated omission)
+        int port = startStallingServer();
+        LoadGenerator.Stats stats = run(port, "--concurrency=1");
+
+        assertTrue(stats.latency.getMax() >= 450_000_000L, "max " + stats.latency.getMax());
+        long p99 = stats.latency.getPercentile(0.99);
+        assertTrue(p99 < 100_000_000L, "p99 " + p99);
+    }
+}
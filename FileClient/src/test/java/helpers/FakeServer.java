@@ -0,0 +1,152 @@
+package helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for a file server in binary mode on a free local port. Each
+ * request frame is handed to the test's handler on the connection's thread,
+ * and the handler answers it, later, out of order or not at all.
+ */
+public class FakeServer implements AutoCloseable {
+
+    public interface Handler {
+        void handle(Request request, Session session) throws IOException;
+    }
+
+    public static final class Request {
+        public final int id;
+        public final byte op;
+        public final String name;
+        public final byte[] payload;
+
+        Request(int id, byte op, String name, byte[] payload) {
+            this.id = id;
+            this.op = op;
+            this.name = name;
+            this.payload = payload;
+        }
+    }
+
+    // One client connection; replies may be sent from any thread
+    public static final class Session {
+        private final DataOutputStream out;
+
+        Session(DataOutputStream out) {
+            this.out = out;
+        }
+
+        public void ok(int id, byte[] payload) throws IOException {
+            reply(id, (byte) 0, payload);
+        }
+
+        public void error(int id, String message) throws IOException {
+            reply(id, (byte) 1, message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // A frame with any length field, to test how the client copes
+        public synchronized void raw(int length, int id, byte status) throws IOException {
+            out.writeInt(length);
+            out.writeInt(id);
+            out.writeByte(status);
+            out.flush();
+        }
+
+        private synchronized void reply(int id, byte status, byte[] payload) throws IOException {
+            out.writeInt(5 + payload.length);
+            out.writeInt(id);
+            out.writeByte(status);
+            out.write(payload);
+            out.flush();
+        }
+    }
+
+    private final ServerSocket listener;
+    private final Handler handler;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+    public FakeServer(Handler handler) throws IOException {
+        this.listener = new ServerSocket(0);
+        this.handler = handler;
+        Thread acceptor = new Thread(this::accept, "fake-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    public String getAddress() {
+        return "localhost:" + getPort();
+    }
+
+    // Connections accepted so far
+    public int getConnections() {
+        return accepted.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        listener.close();
+        for (Socket socket : sockets)
+            socket.close();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = listener.accept();
+                accepted.incrementAndGet();
+                sockets.add(socket);
+                Thread t = new Thread(() -> serve(socket), "fake-server-connection");
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException ignored) {
+            // closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            socket.setTcpNoDelay(true);
+            StringBuilder line = new StringBuilder();
+            for (int c; (c = in.read()) != '\n'; ) {
+                if (c == -1)
+                    return;
+                line.append((char) c);
+            }
+            if (!line.toString().trim().equals("BINARY"))
+                return;
+            out.write("OK\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            Session session = new Session(out);
+            while (true) {
+                int length = in.readInt();
+                int id = in.readInt();
+                byte op = in.readByte();
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                byte[] payload = new byte[length - 7 - name.length];
+                in.readFully(payload);
+                handler.handle(new Request(id, op, new String(name, StandardCharsets.UTF_8), payload), session);
+            }
+        } catch (IOException ignored) {
+            // the client went away
+        }
+    }
+}
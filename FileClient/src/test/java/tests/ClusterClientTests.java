@@ -0,0 +1,159 @@
+package tests;
+
+import ca.concordia.client.ClientConfig;
+import ca.concordia.client.ClusterClient;
+import ca.concordia.client.FileServerException;
+import helpers.FakeServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusterClientTests {
+
+    private static final byte OP_CREATE = 1;
+    private static final byte OP_READ = 2;
+    private static final byte OP_WRITE = 3;
+    private static final byte OP_LIST = 5;
+
+    /**
+     * A node keeping its files in memory. It holds the files created on it
+     * and answers "MOVED" with its redirect for any other name, like a
+     * cluster node that doesn't own the file.
+     */
+    private static final class Node implements FakeServer.Handler {
+        final Map<String, byte[]> files = new ConcurrentHashMap<>();
+        final AtomicInteger requests = new AtomicInteger();
+        volatile String redirect;   // null: hold every file
+
+        @Override
+        public void handle(FakeServer.Request request, FakeServer.Session session) throws IOException {
+            requests.incrementAndGet();
+            if (request.op == OP_LIST) {
+                session.ok(request.id, String.join("\n", new TreeSet<>(files.keySet())).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (redirect != null && !files.containsKey(request.name)) {
+                session.error(request.id, "MOVED " + redirect);
+                return;
+            }
+            switch (request.op) {
+                case OP_CREATE -> {
+                    files.putIfAbsent(request.name, new byte[0]);
+                    session.ok(request.id, new byte[0]);
+                }
+                case OP_WRITE -> {
+                    files.put(request.name, request.payload);
+                    session.ok(request.id, new byte[0]);
+                }
+                case OP_READ -> {
+                    byte[] data = files.get(request.name);
+                    if (data == null)
+                        session.error(request.id, "file not found");
+                    else
+                        session.ok(request.id, data);
+                }
+                default -> session.error(request.id, "unsupported");
+            }
+        }
+    }
+
+    private final List<FakeServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void cleanup() throws IOException {
+        for (FakeServer server : servers)
+            server.close();
+    }
+
+    private FakeServer start(Node node) throws IOException {
+        FakeServer server = new FakeServer(node);
+        servers.add(server);
+        return server;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    @Timeout(30)
+    void testRequestsGoToTheOwningNode() throws Exception {
+        Node a = new Node();
+        Node b = new Node();
+        String addressA = start(a).getAddress();
+        String addressB = start(b).getAddress();
+
+        try (ClusterClient cluster = new ClusterClient(new ClientConfig(), List.of(addressA, addressB))) {
+            Set<String> names = new TreeSet<>();
+            for (int i = 0; i < 32; i++) {
+                String name = "f" + i;
+                names.add(name);
+                cluster.create(name).thenCompose(v -> cluster.write(name, bytes("v" + name))).get(5, TimeUnit.SECONDS);
+            }
+            // Each file is on its owner only, and both nodes got some
+            for (String name : names) {
+                boolean onA = cluster.nodeOf(name).equals(addressA);
+                assertEquals(onA, a.files.containsKey(name), name);
+                assertEquals(!onA, b.files.containsKey(name), name);
+                assertArrayEquals(bytes("v" + name), cluster.read(name).get(5, TimeUnit.SECONDS));
+            }
+            assertFalse(a.files.isEmpty());
+            assertFalse(b.files.isEmpty());
+
+            // list() merges every node's names
+            assertEquals(names, new TreeSet<>(cluster.list().get(5, TimeUnit.SECONDS)));
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testMovedReplyTeachesTheClientANewNode() throws Exception {
+        Node a = new Node();
+        Node b = new Node();
+        String addressA = start(a).getAddress();
+        String addressB = start(b).getAddress();
+        a.redirect = addressB;
+        b.files.put("x", bytes("on b"));
+
+        // The client only knows a; a sends it on to b
+        try (ClusterClient cluster = new ClusterClient(new ClientConfig(), List.of(addressA))) {
+            assertArrayEquals(bytes("on b"), cluster.read("x").get(5, TimeUnit.SECONDS));
+            assertEquals(new TreeSet<>(List.of(addressA, addressB)), new TreeSet<>(cluster.getNodes()));
+            assertEquals(1, a.requests.get());
+            assertEquals(1, b.requests.get());
+
+            // b is on the ring now, and list() asks it too
+            assertEquals(List.of("x"), cluster.list().get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testMovedToTheSameNodeIsNotRetried() throws Exception {
+        Node a = new Node();
+        String addressA = start(a).getAddress();
+        a.redirect = addressA;
+
+        try (ClusterClient cluster = new ClusterClient(new ClientConfig(), List.of(addressA))) {
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> cluster.read("x").get(5, TimeUnit.SECONDS));
+            assertInstanceOf(FileServerException.class, e.getCause());
+            assertEquals("MOVED " + addressA, e.getCause().getMessage());
+            assertEquals(1, a.requests.get());
+        }
+    }
+}
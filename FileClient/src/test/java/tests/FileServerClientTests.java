@@ -0,0 +1,187 @@
+package tests;
+
+import ca.concordia.client.ClientConfig;
+import ca.concordia.client.FileServerClient;
+import ca.concordia.client.FileServerException;
+import helpers.FakeServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileServerClientTests {
+
+    private static final byte OP_READ = 2;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ClientConfig config(FakeServer server) {
+        return new ClientConfig().port(server.getPort());
+    }
+
+    // Answers every READ with the file's name, and a write with nothing
+    private static void echo(FakeServer.Request request, FakeServer.Session session) throws IOException {
+        session.ok(request.id, request.op == OP_READ ? bytes(request.name) : new byte[0]);
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        return e.getCause();
+    }
+
+    @Test
+    @Timeout(30)
+    void testPipelinedRequestsAreMatchedById() throws Exception {
+        int count = 8;
+        List<FakeServer.Request> held = new ArrayList<>();
+        // Nothing is answered until every request has arrived, then the
+        // replies go back in reverse order
+        try (FakeServer server = new FakeServer((request, session) -> {
+            held.add(request);
+            if (held.size() == count) {
+                for (int i = count - 1; i >= 0; i--)
+                    session.ok(held.get(i).id, bytes(held.get(i).name));
+            }
+        });
+             FileServerClient client = new FileServerClient(config(server).maxConnections(1))) {
+            List<CompletableFuture<byte[]>> reads = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+                reads.add(client.read("f" + i));
+            for (int i = 0; i < count; i++)
+                assertEquals("f" + i, new String(reads.get(i).get(5, TimeUnit.SECONDS), StandardCharsets.UTF_8));
+            assertEquals(1, server.getConnections());
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testPoolGrowsOnlyWhileConnectionsAreBusy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (FakeServer server = new FakeServer((request, session) -> {
+            if (request.name.startsWith("slow")) {
+                // Answer from elsewhere so this connection keeps reading
+                new Thread(() -> {
+                    try {
+                        release.await();
+                        echo(request, session);
+                    } catch (Exception ignored) {
+                    }
+                }).start();
+            } else {
+                echo(request, session);
+            }
+        });
+             FileServerClient client = new FileServerClient(config(server).maxConnections(3))) {
+            // One request at a time never needs a second connection
+            for (int i = 0; i < 20; i++)
+                assertArrayEquals(bytes("fast"), client.read("fast").get(5, TimeUnit.SECONDS));
+            assertEquals(1, client.getConnectionCount());
+
+            // Requests stuck in flight open connections up to the limit, then share them
+            List<CompletableFuture<byte[]>> slow = new ArrayList<>();
+            for (int i = 0; i < 6; i++)
+                slow.add(client.read("slow" + i));
+            assertEquals(3, client.getConnectionCount());
+            assertArrayEquals(bytes("fast"), client.read("fast").get(5, TimeUnit.SECONDS));
+
+            release.countDown();
+            for (int i = 0; i < 6; i++)
+                assertArrayEquals(bytes("slow" + i), slow.get(i).get(5, TimeUnit.SECONDS));
+            assertEquals(3, server.getConnections());
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testIdleConnectionsAreClosedAndReopened() throws Exception {
+        try (FakeServer server = new FakeServer(FileServerClientTests::echo);
+             FileServerClient client = new FileServerClient(config(server).idleTimeout(100))) {
+            client.write("a", bytes("x")).get(5, TimeUnit.SECONDS);
+            assertEquals(1, client.getConnectionCount());
+            while (client.getConnectionCount() > 0)
+                Thread.sleep(20);
+
+            client.write("a", bytes("x")).get(5, TimeUnit.SECONDS);
+            assertEquals(2, server.getConnections());
+        }
+    }
+
+    @Test
+    @Timeout(60)
+    void testIdleReaperNeverClosesAConnectionInUse() throws Exception {
+        // Connections go idle between requests all the time, so the reaper
+        // keeps racing requests for them; none may fail for it
+        try (FakeServer server = new FakeServer(FileServerClientTests::echo);
+             FileServerClient client = new FileServerClient(config(server).idleTimeout(1).maxConnections(1))) {
+            for (int i = 0; i < 500; i++) {
+                assertArrayEquals(bytes("f" + i), client.read("f" + i).get(5, TimeUnit.SECONDS));
+                if (i % 2 == 0)
+                    LockSupport.parkNanos(500_000 + (i % 7) * 200_000);
+            }
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testTimeoutFailsOnlyTheLateRequest() throws Exception {
+        try (FakeServer server = new FakeServer((request, session) -> {
+            if (!request.name.equals("never"))
+                echo(request, session);
+        });
+             FileServerClient client = new FileServerClient(config(server).requestTimeout(300).maxConnections(1))) {
+            CompletableFuture<byte[]> late = client.read("never");
+            assertArrayEquals(bytes("f"), client.read("f").get(5, TimeUnit.SECONDS));
+            assertInstanceOf(TimeoutException.class, failure(late));
+
+            // The connection is still good
+            assertArrayEquals(bytes("g"), client.read("g").get(5, TimeUnit.SECONDS));
+            assertEquals(1, server.getConnections());
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testErrorReplyFailsWithServerMessage() throws Exception {
+        try (FakeServer server = new FakeServer((request, session) -> session.error(request.id, "file not found"));
+             FileServerClient client = new FileServerClient(config(server))) {
+            Throwable cause = failure(client.read("missing"));
+            assertInstanceOf(FileServerException.class, cause);
+            assertEquals("file not found", cause.getMessage());
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testMalformedReplyFailsEveryPendingRequest() throws Exception {
+        try (FakeServer server = new FakeServer((request, session) -> {
+            if (request.name.equals("bad"))
+                session.raw(2, request.id, (byte) 0);   // shorter than its own header
+            else if (!request.name.equals("never"))
+                echo(request, session);
+        });
+             FileServerClient client = new FileServerClient(config(server).requestTimeout(0).maxConnections(1))) {
+            // With no request timeout these would hang if the reader died quietly
+            CompletableFuture<byte[]> waiting = client.read("never");
+            CompletableFuture<byte[]> bad = client.read("bad");
+            assertInstanceOf(IOException.class, failure(bad));
+            assertInstanceOf(IOException.class, failure(waiting));
+
+            // The broken connection is replaced
+            assertArrayEquals(bytes("f"), client.read("f").get(5, TimeUnit.SECONDS));
+            assertEquals(2, server.getConnections());
+        }
+    }
+}
@@ -1,13 +1,177 @@
 package ca.concordia;
 
+import ca.concordia.cluster.ClusterRouter;
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.allocation.BlockAllocator;
+import ca.concordia.filesystem.storage.StorageMode;
+import ca.concordia.server.CommandProcessor;
+import ca.concordia.server.ConnectionExecutor;
 import ca.concordia.server.FileServer;
+import ca.concordia.server.NioFileServer;
+import ca.concordia.server.ServerLimits;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Main {
     public static void main(String[] args) {
         System.out.printf("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        // --mode=blocking (default) or --mode=nio
+        // --executor=virtual (default) or --executor=bounded:<maxConnections>:<queueCapacity>  (blocking mode)
+        // --event-loops=<n>  (nio mode, defaults to the number of cores)
+        // --storage=channel (default) or --storage=mapped
+        // --allocation=contiguous (default) or --allocation=chained
+        // --allocation-policy=first_fit (default), best_fit or next_fit
+        // --durability=per_op (default), batched or async
+        // --cache-bytes=<n>  block read cache budget (default 0, disabled)
+        // --compress  store files written whole deflated when that saves space
+        // --dedup  format a new volume that shares identical blocks between files
+        // --volume=<file> (default filesystem.dat)
+        // --volume-bytes=<n>, --block-size=<n>, --max-files=<n>  geometry of a new volume
+        //   (defaults 64 MB, 128, 4096); an existing volume keeps the geometry it was formatted with
+        // --max-connections=<n>, --max-in-flight=<n>  admission limits (default 0, unlimited)
+        // --max-queued=<n>, --queue-timeout=<ms>  commands that may wait for an in-flight slot, and
+        //   for how long (defaults 64, 100; blocking mode)
+        // --idle-timeout=<ms>, --read-timeout=<ms>  (defaults 300000, 30000; 0 for none)
+        // --max-line-bytes=<n>, --max-frame-bytes=<n>  (default 16 MB)
+        // --port=<n> (default 12345)
+        // --cluster=<host:port>,...  the other nodes of a cluster started together; nodes talk
+        //   to each other on port + 10000, which only they should be able to reach
+        // --join=<host:port>  join the cluster of that node, taking over part of its files
+        // --node=<host:port>  this node as the others reach it (default localhost:<port>)
+        // --vnodes=<n>  points per node on the hash ring (default 64, the same on every node)
+        String mode = "blocking";
+        String executorSpec = "virtual";
+        int eventLoops = Runtime.getRuntime().availableProcessors();
+        FileSystemConfig config = new FileSystemConfig().maxFiles(4096);
+        String volume = "filesystem.dat";
+        long volumeBytes = FileServer.DEFAULT_VOLUME_BYTES;
+        int port = 12345;
+        List<String> members = null;
+        String seed = null;
+        String node = null;
+        int vnodes = ClusterRouter.DEFAULT_VNODES;
+        ServerLimits limits = new ServerLimits();
+        int maxQueued = limits.getMaxQueued();
+        long queueTimeout = limits.getQueueTimeoutMillis();
+        int maxLineBytes = limits.getMaxLineBytes();
+        int maxFrameBytes = limits.getMaxFrameBytes();
+        for (String arg : args) {
+            if (arg.startsWith("--mode="))
+                mode = arg.substring("--mode=".length());
+            else if (arg.startsWith("--executor="))
+                executorSpec = arg.substring("--executor=".length());
+            else if (arg.startsWith("--event-loops="))
+                eventLoops = Integer.parseInt(arg.substring("--event-loops=".length()));
+            else if (arg.startsWith("--storage="))
+                config.storageMode(StorageMode.valueOf(arg.substring("--storage=".length()).toUpperCase()));
+            else if (arg.startsWith("--allocation="))
+                config.allocationMode(FileSystemConfig.AllocationMode.valueOf(
+                        arg.substring("--allocation=".length()).toUpperCase()));
+            else if (arg.startsWith("--allocation-policy="))
+                config.allocationPolicy(BlockAllocator.Policy.valueOf(
+                        arg.substring("--allocation-policy=".length()).toUpperCase()));
+            else if (arg.startsWith("--durability="))
+                config.durability(FileSystemConfig.Durability.valueOf(
+                        arg.substring("--durability=".length()).toUpperCase()));
+            else if (arg.startsWith("--cache-bytes="))
+                config.cacheBytes(Long.parseLong(arg.substring("--cache-bytes=".length())));
+            else if (arg.equals("--compress"))
+                config.compression(true);
+            else if (arg.equals("--dedup"))
+                config.deduplication(true);
+            else if (arg.startsWith("--volume="))
+                volume = arg.substring("--volume=".length());
+            else if (arg.startsWith("--volume-bytes="))
+                volumeBytes = Long.parseLong(arg.substring("--volume-bytes=".length()));
+            else if (arg.startsWith("--block-size="))
+                config.blockSize(Integer.parseInt(arg.substring("--block-size=".length())));
+            else if (arg.startsWith("--max-files="))
+                config.maxFiles(Integer.parseInt(arg.substring("--max-files=".length())));
+            else if (arg.startsWith("--max-connections="))
+                limits.maxConnections(Integer.parseInt(arg.substring("--max-connections=".length())));
+            else if (arg.startsWith("--max-in-flight="))
+                limits.maxInFlight(Integer.parseInt(arg.substring("--max-in-flight=".length())));
+            else if (arg.startsWith("--max-queued="))
+                maxQueued = Integer.parseInt(arg.substring("--max-queued=".length()));
+            else if (arg.startsWith("--queue-timeout="))
+                queueTimeout = Long.parseLong(arg.substring("--queue-timeout=".length()));
+            else if (arg.startsWith("--idle-timeout="))
+                limits.idleTimeout(Integer.parseInt(arg.substring("--idle-timeout=".length())));
+            else if (arg.startsWith("--read-timeout="))
+                limits.readTimeout(Integer.parseInt(arg.substring("--read-timeout=".length())));
+            else if (arg.startsWith("--max-line-bytes="))
+                maxLineBytes = Integer.parseInt(arg.substring("--max-line-bytes=".length()));
+            else if (arg.startsWith("--max-frame-bytes="))
+                maxFrameBytes = Integer.parseInt(arg.substring("--max-frame-bytes=".length()));
+            else if (arg.startsWith("--port="))
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            else if (arg.startsWith("--cluster="))
+                members = Arrays.asList(arg.substring("--cluster=".length()).split(","));
+            else if (arg.startsWith("--join="))
+                seed = arg.substring("--join=".length());
+            else if (arg.startsWith("--node="))
+                node = arg.substring("--node=".length());
+            else if (arg.startsWith("--vnodes="))
+                vnodes = Integer.parseInt(arg.substring("--vnodes=".length()));
+        }
+        limits.queue(maxQueued, queueTimeout).maxRequestBytes(maxLineBytes, maxFrameBytes);
+
+        FileSystemManager fsManager = new FileSystemManager(volume, volumeBytes, config);
+
+        CommandProcessor processor = new CommandProcessor(fsManager);
+        if (members != null || seed != null) {
+            ClusterRouter router = new ClusterRouter(fsManager, node != null ? node : "localhost:" + port,
+                    members != null ? members : new ArrayList<>(), vnodes);
+            processor = router;
+            try {
+                router.listen();
+            } catch (IOException e) {
+                System.err.println("Could not listen for the other nodes: " + e.getMessage());
+                return;
+            }
+            if (seed != null)
+                joinWhenListening(router, port, seed);
+        }
+
+        if (mode.equalsIgnoreCase("nio")) {
+            NioFileServer server = new NioFileServer(port, processor, eventLoops, limits);
+            server.start();
+            return;
+        }
+
+        FileServer server = new FileServer(port, processor, ConnectionExecutor.fromSpec(executorSpec), limits);
         // Start the file server
         server.start();
     }
-}
\ No newline at end of file
+
+    // The members hand files over to this node while it joins, so it has to
+    // be listening first
+    private static void joinWhenListening(ClusterRouter router, int port, String seed) {
+        Thread joiner = new Thread(() -> {
+            try {
+                for (int i = 0; ; i++) {
+                    try (Socket probe = new Socket()) {
+                        probe.connect(new InetSocketAddress("localhost", port), 200);
+                        break;
+                    } catch (IOException e) {
+                        if (i == 50)
+                            throw e;
+                        Thread.sleep(200);
+                    }
+                }
+                router.join(seed);
+                System.out.println("Joined the cluster as " + router.getSelf() + ": " + router.getRing().getNodes());
+            } catch (Exception e) {
+                System.err.println("Could not join the cluster through " + seed + ": " + e.getMessage());
+            }
+        }, "cluster-join");
+        joiner.setDaemon(true);
+        joiner.start();
+    }
+}
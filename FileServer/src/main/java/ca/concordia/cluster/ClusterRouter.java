@@ -0,0 +1,536 @@
+package ca.concordia.cluster;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.ServerMetrics;
+import ca.concordia.server.CommandProcessor;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * CommandProcessor of a cluster node. File names are spread over the nodes by
+ * a HashRing; a command naming a file another node holds is passed on to that
+ * node and its reply returned, so clients may send anything to any node. LIST
+ * gathers the names held by every node.
+ *
+ * Nodes talk to each other on a port of their own, the node's port plus
+ * PEER_PORT_OFFSET, one request line and one reply line at a time, using
+ * commands clients can't send:
+ *
+ *   FWD hops line          runs line here, or passes it on (at most hops more
+ *                          times) if its file is elsewhere; the reply is Base64
+ *   MIGRATE name data      stores a file handed over by another node (data Base64)
+ *   CLUSTER NODES          the members, space-separated
+ *   CLUSTER JOIN node      adds a member, handing it the files it now owns
+ *   CLUSTER HANDOVER node  tells a joining node that node has handed over
+ *
+ * Whoever reaches the peer port can rewrite files and join the ring, so it
+ * should be reachable by the nodes only.
+ *
+ * A node joins through any member (join): it takes the members' ring plus
+ * itself, then has each member in turn hand over. A member moves only the
+ * files the new node owns in the new ring: it copies them across while they
+ * stay in use, then, with commands on those files held off, sends again the
+ * ones changed meanwhile, switches rings and deletes its copies. Until a
+ * member has handed over, the joining node sends requests for the files still
+ * to come from it to that member.
+ *
+ * Forwarding, LIST and handing over wait on other nodes, so commands run on
+ * threads that may block (mayBlock()).
+ */
+public class ClusterRouter extends CommandProcessor {
+
+    public static final int DEFAULT_VNODES = 64;
+    // Peers connect to a node's port plus this
+    public static final int PEER_PORT_OFFSET = 10_000;
+
+    // A command is passed on at most this many times, which is enough while
+    // nodes disagree about the ring during a join: the joining node may send
+    // a command back to a member that hands the file over just then, and
+    // the member sends it on once more
+    private static final int MAX_HOPS = 3;
+    private static final int PEER_TIMEOUT = 10_000;
+
+    private static final int LIST = ServerMetrics.commandOf("LIST");
+    private static final Set<String> NAMED = Set.of("CREATE", "READ", "WRITE", "APPEND", "PATCH", "DELETE");
+
+    private final String self;
+    private volatile HashRing ring;
+    private volatile HashRing previous; // ring before this node joined, until every member has handed over
+    private final Set<String> handedOver = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock placement = new ReentrantReadWriteLock();
+    // While admit() hands the files next gives to joining over, commands on them wait
+    private final Object handover = new Object();
+    private HashRing handoverRing; // guarded by handover
+    private String joining;        // guarded by handover
+    private final ExecutorService fanout;
+    private volatile ServerSocket listener;
+    private final Set<Socket> peerSockets = ConcurrentHashMap.newKeySet();
+
+    /**
+     * self is this node's "host:port" as the others reach it; members the
+     * other nodes of a cluster started together (empty for one to be joined
+     * later).
+     */
+    public ClusterRouter(FileSystemManager fsManager, String self, Collection<String> members, int vnodes) {
+        super(fsManager);
+        Set<String> nodes = new TreeSet<>(members);
+        nodes.add(self);
+        this.self = self;
+        this.ring = new HashRing(nodes, vnodes);
+
+        AtomicInteger counter = new AtomicInteger();
+        this.fanout = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "cluster-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Starts taking the other nodes' commands on the peer port, bound to the
+     * host this node is reached at. Needed before the node joins or is
+     * joined.
+     */
+    public void listen() throws IOException {
+        int colon = self.lastIndexOf(':');
+        ServerSocket socket = new ServerSocket(Peer.peerPort(self), 50,
+                InetAddress.getByName(self.substring(0, colon)));
+        listener = socket;
+        fanout.execute(() -> acceptPeers(socket));
+    }
+
+    /**
+     * Joins the cluster seed ("host:port") belongs to. This node must already
+     * be listening, the members hand their files over while this runs.
+     */
+    public void join(String seed) throws IOException {
+        String nodes = peer(seed).request("CLUSTER NODES", PEER_TIMEOUT);
+        if (nodes.startsWith("ERROR"))
+            throw new IOException(seed + ": " + nodes);
+        List<String> members = Arrays.asList(nodes.trim().split(" +"));
+
+        placement.writeLock().lock();
+        try {
+            previous = new HashRing(members, ring.getVirtualNodes());
+            ring = previous.with(self);
+        } finally {
+            placement.writeLock().unlock();
+        }
+
+        for (String member : members) {
+            if (member.equals(self))
+                continue;
+            String reply = peer(member).request("CLUSTER JOIN " + self, 0);
+            if (!reply.startsWith("OK"))
+                throw new IOException(member + ": " + reply);
+        }
+        previous = null;
+    }
+
+    public void close() {
+        ServerSocket socket = listener;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (Socket peer : peerSockets) {
+            try {
+                peer.close();
+            } catch (IOException ignored) {
+            }
+        }
+        fanout.shutdownNow();
+        for (Peer peer : peers.values())
+            peer.close();
+    }
+
+    @Override
+    public String ownerOf(String name) {
+        String owner = placementOf(name);
+        return owner.equals(self) ? null : owner;
+    }
+
+    @Override
+    public void beginLocal() {
+        placement.readLock().lock();
+    }
+
+    @Override
+    public void endLocal() {
+        placement.readLock().unlock();
+    }
+
+    @Override
+    public boolean mayBlock() {
+        return true;
+    }
+
+    // Clients' commands; peer commands only come in on the peer port
+    @Override
+    public String process(String line) {
+        return route(line, MAX_HOPS, true);
+    }
+
+    /**
+     * A batch whose files are all here runs as one, as on a single server;
+     * otherwise its lines run one at a time wherever their files are.
+     */
+    @Override
+    public List<String> processBatch(List<String> lines) {
+        placement.readLock().lock();
+        try {
+            if (allHere(lines))
+                return super.processBatch(lines);
+        } finally {
+            placement.readLock().unlock();
+        }
+        List<String> replies = new ArrayList<>(lines.size());
+        for (String line : lines)
+            replies.add(process(line));
+        return replies;
+    }
+
+    private boolean allHere(List<String> lines) {
+        for (String line : lines) {
+            if (ServerMetrics.commandOf(line) == LIST)
+                return false;
+            String name = nameOf(line);
+            if (name != null && !placementOf(name).equals(self))
+                return false;
+        }
+        return true;
+    }
+
+    // Runs line here if its file is here, else passes it on. LIST gathers
+    // every node's names, unless it was passed on itself.
+    private String route(String line, int hops, boolean gather) {
+        if (gather && ServerMetrics.commandOf(line) == LIST)
+            return list(line);
+
+        String name = nameOf(line);
+        String owner;
+        placement.readLock().lock();
+        try {
+            owner = name == null ? self : placementOf(name);
+            if (owner.equals(self) || hops == 0)
+                return super.process(line);
+        } finally {
+            placement.readLock().unlock();
+        }
+        return forward(owner, line, hops - 1);
+    }
+
+    private String forward(String node, String line, int hops) {
+        long start = System.nanoTime();
+        String reply;
+        try {
+            reply = peer(node).request("FWD " + hops + " " + line, PEER_TIMEOUT);
+            // Errors raised before the command ran (e.g. a bad hop count) aren't encoded
+            if (!reply.startsWith("ERROR "))
+                reply = new String(Base64.getDecoder().decode(reply));
+        } catch (IOException | IllegalArgumentException e) {
+            reply = "ERROR node " + node + " failed: " + e.getMessage();
+        }
+        getMetrics().commandForwarded();
+        getMetrics().recordCommand(ServerMetrics.commandOf(line), System.nanoTime() - start, !reply.startsWith("ERROR"));
+        return reply;
+    }
+
+    private String list(String line) {
+        List<Future<String>> parts = new ArrayList<>();
+        for (String node : ring.getNodes()) {
+            if (node.equals(self))
+                parts.add(CompletableFuture.completedFuture(route(line, 0, false)));
+            else
+                parts.add(fanout.submit(() -> forward(node, line, 0)));
+        }
+
+        // A file being handed over may be on two nodes for a moment
+        Set<String> names = new LinkedHashSet<>();
+        for (Future<String> part : parts) {
+            String reply;
+            try {
+                reply = part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "ERROR interrupted";
+            } catch (ExecutionException e) {
+                return "ERROR " + e.getCause().getMessage();
+            }
+            if (reply.startsWith("ERROR"))
+                return reply;
+            for (String name : reply.split(" ")) {
+                if (!name.isEmpty())
+                    names.add(name);
+            }
+        }
+        return String.join(" ", names);
+    }
+
+    private void acceptPeers(ServerSocket socket) {
+        try {
+            while (true) {
+                Socket peer = socket.accept();
+                try {
+                    fanout.execute(() -> servePeer(peer));
+                } catch (RejectedExecutionException e) {
+                    peer.close();
+                    return;
+                }
+            }
+        } catch (IOException ignored) {
+            // closed
+        }
+    }
+
+    private void servePeer(Socket socket) {
+        peerSockets.add(socket);
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), false);
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.print(peerCommand(line));
+                out.print('\n');
+                out.flush();
+            }
+        } catch (IOException ignored) {
+            // the node went away
+        } finally {
+            peerSockets.remove(socket);
+        }
+    }
+
+    private String peerCommand(String line) {
+        switch (commandOf(line)) {
+            case "FWD":
+                return forwarded(line.split(" ", 3));
+            case "MIGRATE":
+                return migrate(line.split(" ", 3));
+            case "CLUSTER":
+                return cluster(line.split(" ", 3));
+            default:
+                return "ERROR peers only send FWD, MIGRATE and CLUSTER";
+        }
+    }
+
+    // FWD hops line
+    private String forwarded(String[] parts) {
+        if (parts.length < 3)
+            return "ERROR usage: FWD hops command";
+        int hops;
+        try {
+            hops = Math.min(Integer.parseInt(parts[1]), MAX_HOPS);
+        } catch (NumberFormatException e) {
+            return "ERROR invalid hop count";
+        }
+        return Base64.getEncoder().encodeToString(route(parts[2], Math.max(hops, 0), false).getBytes());
+    }
+
+    // MIGRATE name data
+    private String migrate(String[] parts) {
+        if (parts.length < 2)
+            return "ERROR usage: MIGRATE name data";
+        FileSystemManager fs = getFileSystem();
+        placement.readLock().lock();
+        try {
+            byte[] data = Base64.getDecoder().decode(parts.length == 3 ? parts[2] : "");
+            fs.createFile(parts[1]); // does nothing if it exists
+            fs.writeFile(parts[1], data);
+            return "OK";
+        } catch (Exception e) {
+            return "ERROR " + (e.getMessage() == null ? "unknown error" : e.getMessage());
+        } finally {
+            placement.readLock().unlock();
+        }
+    }
+
+    private String cluster(String[] parts) {
+        String sub = parts.length > 1 ? parts[1].toUpperCase() : "";
+        if (sub.equals("NODES"))
+            return String.join(" ", ring.getNodes());
+        if (sub.equals("JOIN") && parts.length == 3)
+            return admit(parts[2].trim());
+        if (sub.equals("HANDOVER") && parts.length == 3) {
+            handedOver.add(parts[2].trim());
+            return "OK";
+        }
+        return "ERROR usage: CLUSTER NODES | CLUSTER JOIN node | CLUSTER HANDOVER node";
+    }
+
+    // Adds node to the ring, first handing it the files it will own. One
+    // join at a time; only commands on the files that move wait, and only
+    // for the final step.
+    private synchronized String admit(String node) {
+        FileSystemManager fs = getFileSystem();
+        try {
+            if (ring.getNodes().contains(node))
+                return "OK 0";
+            HashRing next = ring.with(node);
+            Peer peer = peer(node);
+
+            // Copy while the files stay in use, remembering what was sent
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            Map<String, byte[]> copied = new HashMap<>();
+            for (String name : movingTo(node, next)) {
+                byte[] data;
+                try {
+                    data = fs.readFile(name);
+                } catch (Exception e) {
+                    continue;   // deleted meanwhile
+                }
+                handOver(peer, "handing " + name + " to " + node,
+                        "MIGRATE " + name + " " + Base64.getEncoder().encodeToString(data));
+                copied.put(name, sha.digest(data));
+            }
+
+            // Hold off commands on the moving files; the write lock waits out
+            // those already running
+            placement.writeLock().lock();
+            try {
+                synchronized (handover) {
+                    handoverRing = next;
+                    joining = node;
+                }
+            } finally {
+                placement.writeLock().unlock();
+            }
+            try {
+                // Catch up on the files written, created or deleted during the copy
+                List<String> moving = movingTo(node, next);
+                for (String name : moving) {
+                    byte[] data = fs.readFile(name);
+                    if (!Arrays.equals(copied.remove(name), sha.digest(data)))
+                        handOver(peer, "handing " + name + " to " + node,
+                                "MIGRATE " + name + " " + Base64.getEncoder().encodeToString(data));
+                }
+                for (String name : copied.keySet()) {
+                    String reply = peer.request("FWD 0 DELETE " + name, PEER_TIMEOUT);
+                    if (!reply.startsWith("ERROR"))
+                        reply = new String(Base64.getDecoder().decode(reply));
+                    if (!reply.equals("OK"))
+                        return "ERROR deleting " + name + " on " + node + ": " + reply;
+                }
+                handOver(peer, "handing over to " + node, "CLUSTER HANDOVER " + self);
+
+                ring = next;
+                for (String name : moving)
+                    fs.deleteFile(name);
+                getMetrics().filesMigrated(moving.size());
+                return "OK " + moving.size();
+            } finally {
+                synchronized (handover) {
+                    handoverRing = null;
+                    joining = null;
+                    handover.notifyAll();
+                }
+            }
+        } catch (Exception e) {
+            return "ERROR " + (e.getMessage() == null ? "unknown error" : e.getMessage());
+        }
+    }
+
+    // The files here that node owns in next
+    private List<String> movingTo(String node, HashRing next) {
+        List<String> moving = new ArrayList<>();
+        for (String name : getFileSystem().listFiles()) {
+            if (next.owner(name).equals(node))
+                moving.add(name);
+        }
+        return moving;
+    }
+
+    private static void handOver(Peer peer, String what, String line) throws IOException {
+        String reply = peer.request(line, PEER_TIMEOUT);
+        if (!reply.equals("OK"))
+            throw new IOException(what + ": " + reply);
+    }
+
+    // Where name is served now: its owner in the ring, except that a joining
+    // node leaves the files not yet handed over to their previous owner.
+    // Callers hold the placement read lock.
+    private String placementOf(String name) {
+        awaitHandover(name);
+        String owner = ring.owner(name);
+        HashRing before = previous;
+        if (before != null && owner.equals(self)) {
+            String from = before.owner(name);
+            if (!handedOver.contains(from))
+                return from;
+        }
+        return owner;
+    }
+
+    // Waits while name is being handed over; the read lock held meanwhile
+    // doesn't hold admit() up, which doesn't take the write lock again
+    private void awaitHandover(String name) {
+        boolean interrupted = false;
+        synchronized (handover) {
+            while (handoverRing != null && handoverRing.owner(name).equals(joining)) {
+                try {
+                    handover.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private Peer peer(String node) {
+        return peers.computeIfAbsent(node, Peer::new);
+    }
+
+    private static String commandOf(String line) {
+        int space = line.indexOf(' ');
+        return (space == -1 ? line : line.substring(0, space)).toUpperCase();
+    }
+
+    // The file a command names, or null for commands without one
+    static String nameOf(String line) {
+        int space = line.indexOf(' ');
+        if (space == -1 || !NAMED.contains(commandOf(line)))
+            return null;
+        int end = line.indexOf(' ', space + 1);
+        return line.substring(space + 1, end == -1 ? line.length() : end);
+    }
+}
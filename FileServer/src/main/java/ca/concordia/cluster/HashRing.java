@@ -0,0 +1,78 @@
+package ca.concordia.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent-hash ring placing file names on cluster nodes. Each node
+ * ("host:port") is hashed to vnodes points on a 64-bit ring; a name belongs to
+ * the node owning the first point at or after the name's hash. Adding a node
+ * only moves the names that now fall just before its points, about 1/n of
+ * them, all onto the new node.
+ *
+ * Hashes are the first 8 bytes of SHA-256 of the UTF-8 text ("host:port#i"
+ * for a point), so every node and client computes the same placement.
+ * Immutable.
+ */
+public final class HashRing {
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final List<String> nodes;
+    private final int vnodes;
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    public HashRing(Collection<String> nodes, int vnodes) {
+        if (nodes.isEmpty() || vnodes <= 0)
+            throw new IllegalArgumentException("a ring needs nodes and points per node");
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+        this.vnodes = vnodes;
+        for (String node : this.nodes) {
+            for (int i = 0; i < vnodes; i++) {
+                // On a collision the smaller name wins, whatever the order nodes were added in
+                points.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+    }
+
+    public String owner(String name) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(name));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    // Sorted
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public int getVirtualNodes() {
+        return vnodes;
+    }
+
+    // This ring with node added
+    public HashRing with(String node) {
+        List<String> more = new ArrayList<>(nodes);
+        more.add(node);
+        return new HashRing(more, vnodes);
+    }
+
+    static long hash(String text) {
+        MessageDigest sha = SHA256.get();
+        return ByteBuffer.wrap(sha.digest(text.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+}
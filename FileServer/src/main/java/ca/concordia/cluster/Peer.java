@@ -0,0 +1,135 @@
+package ca.concordia.cluster;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Connections to another node's peer port, kept open and reused. A request
+ * takes an idle connection or opens one, so concurrent requests don't wait
+ * on each other.
+ */
+final class Peer {
+
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int MAX_IDLE = 8;
+
+    private final String address;
+    private final String host;
+    private final int port;
+    private final ConcurrentLinkedQueue<Link> idle = new ConcurrentLinkedQueue<>();
+
+    private static final class Link {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.out = new PrintWriter(socket.getOutputStream(), false);
+        }
+
+        String exchange(String line, int timeoutMillis) throws IOException {
+            socket.setSoTimeout(timeoutMillis);
+            out.print(line);
+            out.print('\n');
+            out.flush();
+            if (out.checkError())
+                throw new IOException("connection lost");
+            String reply = in.readLine();
+            if (reply == null)
+                throw new EOFException("connection closed");
+            return reply;
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    Peer(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException("node address must be host:port: " + address);
+        this.address = address;
+        this.host = address.substring(0, colon);
+        this.port = peerPort(address);
+    }
+
+    // Where the node at address ("host:port") takes peer commands
+    static int peerPort(String address) {
+        int port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1))
+                + ClusterRouter.PEER_PORT_OFFSET;
+        if (port > 0xFFFF)
+            throw new IllegalArgumentException("no room for a peer port above " + address);
+        return port;
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    /**
+     * Sends one line and returns the reply line; timeoutMillis 0 waits
+     * forever. A pooled connection the node has since closed is replaced
+     * once.
+     */
+    String request(String line, int timeoutMillis) throws IOException {
+        Link link = idle.poll();
+        boolean reused = link != null;
+        if (link == null)
+            link = open();
+        try {
+            String reply = link.exchange(line, timeoutMillis);
+            release(link);
+            return reply;
+        } catch (IOException e) {
+            link.close();
+            // A timed out request may still run; anything else on a reused
+            // connection means it had gone stale
+            if (!reused || e instanceof SocketTimeoutException)
+                throw e;
+        }
+        Link fresh = open();
+        try {
+            String reply = fresh.exchange(line, timeoutMillis);
+            release(fresh);
+            return reply;
+        } catch (IOException e) {
+            fresh.close();
+            throw e;
+        }
+    }
+
+    void close() {
+        Link link;
+        while ((link = idle.poll()) != null)
+            link.close();
+    }
+
+    private Link open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            return new Link(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw new IOException("node " + address + " unreachable", e);
+        }
+    }
+
+    private void release(Link link) {
+        if (idle.size() < MAX_IDLE)
+            idle.add(link);
+        else
+            link.close();
+    }
+}
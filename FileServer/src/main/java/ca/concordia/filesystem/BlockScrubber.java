@@ -0,0 +1,180 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.allocation.BlockAllocator;
+import ca.concordia.filesystem.storage.BlockDevice;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Zeroes freed data blocks in the background, so deleting a file only has to
+ * change metadata.
+ *
+ * Freed blocks go straight back to the allocator still holding their old
+ * bytes ("dirty-free"). That is safe because a file never keeps blocks its
+ * write didn't finish: a write whose data fails empties the file again, so a
+ * reader never sees what a block held before it was allocated. The scrubber
+ * only makes sure
+ * deleted data doesn't linger on the volume: shortly after a burst of frees it
+ * zeroes the dirty-free blocks in coalesced runs, one write per run, with no
+ * lock held while the disk works. The run's blocks stay free in the
+ * allocator meanwhile, so scrubbing never costs a write its space; one that
+ * is handed out mid-write is only written by its new owner once the zeroes
+ * are down (awaitScrubbed). Blocks allocated before their turn are dropped
+ * from the set, as their new owner overwrites them; if it fails to, it frees
+ * them and they are marked dirty again.
+ *
+ * The set lives in memory only; whatever is left at shutdown stays unzeroed.
+ */
+class BlockScrubber {
+
+    private static final int MAX_RUN_BYTES = 64 * 1024; // bounds how long a writer can wait
+    private static final long DELAY_MILLIS = 10;        // lets a burst of deletes coalesce
+
+    private final BlockDevice disk;
+    private final long dataStart;
+    private final int maxRun;
+    private final BlockAllocator allocator;
+    private final ReentrantReadWriteLock lock;
+    private final Thread thread;
+
+    // Guarded by this
+    private final BitSet dirty = new BitSet();
+    private long dirtyCount;
+    private long scrubbed;
+    private boolean signalled;
+    private boolean closed;
+    private long zeroingStart;  // the run being written, if zeroingCount > 0
+    private long zeroingCount;
+
+    BlockScrubber(BlockDevice disk, long dataStart, BlockAllocator allocator, ReentrantReadWriteLock lock) {
+        this.disk = disk;
+        this.dataStart = dataStart;
+        this.maxRun = Math.max(1, MAX_RUN_BYTES / disk.getBlockSize());
+        this.allocator = allocator;
+        this.lock = lock;
+        this.thread = new Thread(this::run, "block-scrubber");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // The blocks have just been freed in the allocator
+    synchronized void freed(long start, long count) {
+        dirtyCount += count - dirty.get((int) start, (int) (start + count)).cardinality();
+        dirty.set((int) start, (int) (start + count));
+        signalled = true;
+        notifyAll();
+    }
+
+    // Waits until none of the blocks is being zeroed. Called before writing
+    // blocks that may have been free a moment ago.
+    synchronized void awaitScrubbed(long start, long count) throws InterruptedIOException {
+        while (zeroingCount > 0 && zeroingStart < start + count && start < zeroingStart + zeroingCount) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the block scrubber");
+            }
+        }
+    }
+
+    synchronized long getDirtyBlocks() {
+        return dirtyCount;
+    }
+
+    synchronized long getScrubbedBlocks() {
+        return scrubbed;
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (awaitWork()) {
+            long[] run;
+            while (!isClosed() && (run = nextRun()) != null) {
+                boolean zeroed = false;
+                try {
+                    disk.zero(dataStart + run[0], (int) run[1]);
+                    zeroed = true;
+                } catch (IOException e) {
+                    // Nothing is exposed by giving up; the blocks just keep old bytes
+                    System.err.println("Block scrubber: " + e.getMessage());
+                }
+
+                synchronized (this) {
+                    if (zeroed)
+                        scrubbed += run[1];
+                    dirtyCount -= run[1];
+                    zeroingCount = 0;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    // Takes the next run, marked as being zeroed until run() is done with
+    // it, or returns null when there are none. Nothing can be allocated while
+    // it is picked, so a writer given one of its blocks afterwards will wait.
+    private long[] nextRun() {
+        lock.readLock().lock();
+        try {
+            return takeRun();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Sleeps until something was freed, then a little longer; false once closed
+    private synchronized boolean awaitWork() {
+        try {
+            while (!signalled && !closed)
+                wait();
+            if (!closed)
+                wait(DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        signalled = false;
+        return !closed;
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Removes the next run of dirty blocks that are still free from the set
+    // (still counted until written), or returns null when there are none.
+    // Caller holds the metadata lock, so the allocator can't change under it.
+    private synchronized long[] takeRun() {
+        for (int start = dirty.nextSetBit(0); start >= 0; start = dirty.nextSetBit(start)) {
+            if (!allocator.isFree(start)) {
+                dirty.clear(start);
+                dirtyCount--;
+                continue;
+            }
+            int end = start + 1;
+            while (end < start + maxRun && dirty.get(end) && allocator.isFree(end))
+                end++;
+            dirty.clear(start, end);
+            zeroingStart = start;
+            zeroingCount = end - start;
+            return new long[] {start, end - start};
+        }
+        return null;
+    }
+}
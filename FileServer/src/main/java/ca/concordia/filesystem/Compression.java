@@ -0,0 +1,64 @@
+package ca.concordia.filesystem;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Whole-file zlib compression of file contents. The native Deflater and
+ * Inflater are costly to create, so each thread keeps one of each.
+ */
+final class Compression {
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private Compression() {
+    }
+
+    // The deflated data, or null if it would take more than limit bytes; gives
+    // up as soon as the output passes the limit, so incompressible data costs
+    // little more than one pass over it
+    static byte[] deflate(byte[] data, int limit) {
+        if (limit <= 0)
+            return null;
+        Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[limit];
+            int n = 0;
+            while (!deflater.finished() && n < limit)
+                n += deflater.deflate(out, n, limit - n);
+            return deflater.finished() ? Arrays.copyOf(out, n) : null;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    // Inflates len stored bytes back into the size bytes they were made from
+    static byte[] inflate(byte[] stored, int len, int size) throws DataFormatException {
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(stored, 0, len);
+            byte[] data = new byte[size];
+            int n = 0;
+            while (n < size) {
+                int got = inflater.inflate(data, n, size - n);
+                if (got == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += got;
+            }
+            // With the output full, the stream's trailer may not have been read yet
+            if (n == size && !inflater.finished() && inflater.inflate(new byte[1]) != 0)
+                n++;
+            if (n != size || !inflater.finished())
+                throw new DataFormatException("compressed file is corrupt");
+            return data;
+        } finally {
+            inflater.reset();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package ca.concordia.filesystem;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Block sharing for a deduplicating volume: how many FNodes point at each data
+ * block, and which block holds a given content.
+ *
+ * Reference counts are not stored anywhere; they are the number of FNodes
+ * naming the block, counted again at mount. The content index maps a
+ * block's SHA-256 (first 128 bits) to a block holding exactly those bytes.
+ * It is kept in memory, rebuilt at mount by hashing the used blocks.
+ *
+ * Not thread-safe; guarded by the file system's metadata lock like the
+ * allocator.
+ */
+final class DedupIndex {
+
+    // Content of one block, zero-padded to the block size
+    static final class Fingerprint {
+        private final long high;
+        private final long low;
+
+        Fingerprint(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fingerprint && ((Fingerprint) o).high == high && ((Fingerprint) o).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) low;
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int[] refs;
+    private final Fingerprint[] prints;   // by block, null if not indexed
+    private final Map<Fingerprint, Integer> blocks = new HashMap<>();
+    private long sharedRefs;   // references beyond the first, i.e. blocks saved
+    private long hits;
+
+    DedupIndex(int blockCount) {
+        this.refs = new int[blockCount];
+        this.prints = new Fingerprint[blockCount];
+    }
+
+    // Fingerprints of data split into blocks, the last one zero-padded
+    static Fingerprint[] fingerprints(byte[] data, int len, int blockSize) {
+        Fingerprint[] out = new Fingerprint[(len + blockSize - 1) / blockSize];
+        byte[] padding = new byte[blockSize];
+        for (int i = 0; i < out.length; i++) {
+            int off = i * blockSize;
+            int n = Math.min(blockSize, len - off);
+            MessageDigest sha = SHA256.get();
+            sha.update(data, off, n);
+            if (n < blockSize)
+                sha.update(padding, 0, blockSize - n);
+            ByteBuffer digest = ByteBuffer.wrap(sha.digest());
+            out[i] = new Fingerprint(digest.getLong(), digest.getLong());
+        }
+        return out;
+    }
+
+    // A block holding this content, or -1
+    int lookup(Fingerprint print) {
+        Integer block = blocks.get(print);
+        return block == null ? -1 : block;
+    }
+
+    // Records that the block's bytes are now print, unless another block is
+    // already known to hold them
+    void index(int block, Fingerprint print) {
+        if (refs[block] == 0 || prints[block] != null || blocks.containsKey(print))
+            return;
+        prints[block] = print;
+        blocks.put(print, block);
+    }
+
+    // The block's bytes are about to change
+    void forget(int block) {
+        Fingerprint print = prints[block];
+        if (print != null) {
+            blocks.remove(print);
+            prints[block] = null;
+        }
+    }
+
+    void addRef(int block) {
+        if (refs[block]++ > 0)
+            sharedRefs++;
+    }
+
+    // Counts an addRef that saved writing a block
+    void hit() {
+        hits++;
+    }
+
+    // Drops a reference; returns true when that was the last and the block
+    // can be freed
+    boolean release(int block) {
+        if (--refs[block] > 0) {
+            sharedRefs--;
+            return false;
+        }
+        forget(block);
+        return true;
+    }
+
+    int getRefs(int block) {
+        return refs[block];
+    }
+
+    long getIndexedBlocks() {
+        return blocks.size();
+    }
+
+    long getSharedRefs() {
+        return sharedRefs;
+    }
+
+    long getHits() {
+        return hits;
+    }
+}
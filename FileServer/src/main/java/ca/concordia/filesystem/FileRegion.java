@@ -0,0 +1,92 @@
+package ca.concordia.filesystem;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+/**
+ * Where a file's bytes live on the backing file, captured at the time of the
+ * request so the contents can be streamed straight from disk to a channel.
+ * A file stored as several runs of blocks has one extent per run. A compressed
+ * file has no bytes on disk to point at, so its region carries the inflated
+ * contents instead.
+ *
+ * Until the region is closed its blocks stay allocated and unchanged, even if
+ * the file is rewritten, patched, deleted or moved meanwhile, so a transfer
+ * sends the file as it was and never another file's bytes.
+ */
+public class FileRegion implements Closeable {
+
+    private final long[] extentOffsets;  // byte offset of each extent on disk
+    private final long[] extentLengths;  // bytes of the file in each extent
+    private final byte[] contents;       // the bytes themselves, or null
+    private final long length;
+
+    private final long[] blocks;         // (start, count) runs of data blocks held
+    private Consumer<FileRegion> onClose;
+
+    public FileRegion(long[] extentOffsets, long[] extentLengths) {
+        this(extentOffsets, extentLengths, new long[0], null);
+    }
+
+    FileRegion(long[] extentOffsets, long[] extentLengths, long[] blocks, Consumer<FileRegion> onClose) {
+        this.extentOffsets = extentOffsets;
+        this.extentLengths = extentLengths;
+        this.contents = null;
+        long total = 0;
+        for (long len : extentLengths)
+            total += len;
+        this.length = total;
+        this.blocks = blocks;
+        this.onClose = onClose;
+    }
+
+    public FileRegion(byte[] contents) {
+        this.extentOffsets = new long[0];
+        this.extentLengths = new long[0];
+        this.contents = contents;
+        this.length = contents.length;
+        this.blocks = new long[0];
+    }
+
+    public int getExtentCount() {
+        return extentOffsets.length;
+    }
+
+    public long getExtentOffset(int i) {
+        return extentOffsets[i];
+    }
+
+    public long getExtentLength(int i) {
+        return extentLengths[i];
+    }
+
+    // Null unless the region was built from bytes in memory
+    public byte[] getContents() {
+        return contents;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    // Whether any held block is in [start, start + count)
+    boolean holds(long start, long count) {
+        for (int i = 0; i < blocks.length; i += 2) {
+            if (blocks[i] < start + count && start < blocks[i] + blocks[i + 1])
+                return true;
+        }
+        return false;
+    }
+
+    // Lets the blocks go; closing again does nothing
+    @Override
+    public void close() {
+        Consumer<FileRegion> release;
+        synchronized (this) {
+            release = onClose;
+            onClose = null;
+        }
+        if (release != null)
+            release.accept(this);
+    }
+}
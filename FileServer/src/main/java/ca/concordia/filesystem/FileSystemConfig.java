@@ -0,0 +1,162 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.allocation.BlockAllocator;
+import ca.concordia.filesystem.storage.StorageMode;
+
+/**
+ * Tunables of a FileSystemManager, chosen when it is constructed.
+ */
+public class FileSystemConfig {
+
+    public enum AllocationMode {
+        CONTIGUOUS,  // every file is one run of blocks; fails when space is fragmented
+        CHAINED      // a file may span several runs linked through its FNode chain
+    }
+
+    public enum Durability {
+        PER_OP,   // an operation returns once its journal record is forced (shared by concurrent ops)
+        BATCHED,  // as PER_OP, but forces wait for a group of records or a time limit
+        ASYNC     // operations don't wait; groups are forced in the background
+    }
+
+    private StorageMode storageMode = StorageMode.CHANNEL;
+    private BlockAllocator.Policy allocationPolicy = BlockAllocator.Policy.FIRST_FIT;
+    private AllocationMode allocationMode = AllocationMode.CONTIGUOUS;
+    private Durability durability = Durability.PER_OP;
+    private int groupCommitRecords = 64;
+    private long groupCommitDelayMillis = 5;
+    private String journalFile;
+    private long cacheBytes;
+    private int blockSize = 128;
+    private int maxFiles = 5;
+    private boolean scrubFreedBlocks = true;
+    private boolean compression;
+    private boolean deduplication;
+
+    public FileSystemConfig storageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+        return this;
+    }
+
+    public FileSystemConfig allocationPolicy(BlockAllocator.Policy allocationPolicy) {
+        this.allocationPolicy = allocationPolicy;
+        return this;
+    }
+
+    public FileSystemConfig allocationMode(AllocationMode allocationMode) {
+        this.allocationMode = allocationMode;
+        return this;
+    }
+
+    public FileSystemConfig durability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    // Limits of a BATCHED/ASYNC group: forced once it has this many records
+    // or its oldest record is this old
+    public FileSystemConfig groupCommit(int maxRecords, long maxDelayMillis) {
+        this.groupCommitRecords = maxRecords;
+        this.groupCommitDelayMillis = maxDelayMillis;
+        return this;
+    }
+
+    // Metadata journal location; defaults to the volume file name + ".journal".
+    // A FileSystemManager built on a bare BlockDevice has no journal unless set.
+    public FileSystemConfig journalFile(String journalFile) {
+        this.journalFile = journalFile;
+        return this;
+    }
+
+    // Geometry of newly formatted volumes; existing volumes keep their own
+    public FileSystemConfig blockSize(int blockSize) {
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    public FileSystemConfig maxFiles(int maxFiles) {
+        this.maxFiles = maxFiles;
+        return this;
+    }
+
+    // Budget of the block read cache; 0 (the default) disables it
+    public FileSystemConfig cacheBytes(long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+        return this;
+    }
+
+    // Zero freed blocks in the background (the default); deletes never wait
+    // for it either way
+    public FileSystemConfig scrubFreedBlocks(boolean scrubFreedBlocks) {
+        this.scrubFreedBlocks = scrubFreedBlocks;
+        return this;
+    }
+
+    // Default for whole-file writes: try to store contents deflated, keeping
+    // them as they are when that wouldn't save a block. Off by default;
+    // writeFile can choose per file either way.
+    public FileSystemConfig compression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    // Format new volumes to share identical blocks between files (see
+    // DedupIndex); an existing volume keeps the mode it was formatted with.
+    // Such a volume always allocates in CHAINED mode.
+    public FileSystemConfig deduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+        return this;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public BlockAllocator.Policy getAllocationPolicy() {
+        return allocationPolicy;
+    }
+
+    public AllocationMode getAllocationMode() {
+        return allocationMode;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public int getGroupCommitRecords() {
+        return groupCommitRecords;
+    }
+
+    public long getGroupCommitDelayMillis() {
+        return groupCommitDelayMillis;
+    }
+
+    public String getJournalFile() {
+        return journalFile;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public boolean isScrubFreedBlocks() {
+        return scrubFreedBlocks;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public boolean isDeduplication() {
+        return deduplication;
+    }
+}
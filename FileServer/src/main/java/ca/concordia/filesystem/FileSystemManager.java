@@ -1,49 +1,323 @@
 package ca.concordia.filesystem;
 
-import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.allocation.BlockAllocator;
+import ca.concordia.filesystem.storage.BlockDevice;
+import ca.concordia.filesystem.storage.CachingBlockDevice;
+import ca.concordia.filesystem.storage.MeteredBlockDevice;
+import ca.concordia.metrics.TimedReadWriteLock;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
 
 public class FileSystemManager {
 
-    private final int MAXFILES = 5;
-    private final int MAXBLOCKS = 10;
-    private static final int BLOCK_SIZE = 128;
+    private static final long[] NO_RUNS = new long[0];
+    private static final int LOCK_STRIPES = 64;
+    private static final long CHECKPOINT_BYTES = 1 << 20;
+    private static final int STREAM_BUFFER = 64 * 1024;
 
-    private final RandomAccessFile disk;
+    private final BlockDevice disk;
+    private final MeteredBlockDevice device; // the storage under any cache, timed
 
-    // Multiple readers allowed, single writer exclusive
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Geometry, read from the volume (or chosen when it was formatted)
+    private final int maxFiles;
+    private final int blockCount;
+    private final int blockSize;
+    private final int fnodeCount;
 
-    // Metadata
-    private final FEntry[] inodeTable;
-    private final boolean[] freeBlockList; // true = free, false = used
+    // The inode and FNode tables and the bitmap, in their on-disk layout
+    private final VolumeMetadata meta;
+    private final long dataStart;  // device block of data block 0
 
-    public FileSystemManager(String filename, int totalSizeBytes) {
+    // Write-ahead log of metadata changes; without one, changes are written
+    // straight back to the volume
+    private final MetadataJournal journal;
+
+    // Locking: a file's contents are guarded by its inode's stripe in fileLocks,
+    // held across the disk I/O. The metadata below (name index, inode slots,
+    // FNodes, allocator) is guarded by lock, only ever held for short critical
+    // sections and always taken after a stripe, never before.
+    // Multiple readers allowed, single writer exclusive. Both record their
+    // wait and hold times (the stripes together).
+    private final TimedReadWriteLock.Times lockTimes = new TimedReadWriteLock.Times();
+    private final TimedReadWriteLock.Times fileLockTimes = new TimedReadWriteLock.Times();
+    private final ReentrantReadWriteLock lock = new TimedReadWriteLock(lockTimes);
+    private final ReentrantReadWriteLock[] fileLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+    // A file's blocks are a chain of FNodes starting at its inode's first FNode
+    private final BlockAllocator allocator;
+    private final int[] freeFNodes;  // stack of unused FNode indices
+    private int freeFNodeCount;
+    private final boolean chained;   // files may span several runs of blocks
+
+    // Whether writeFile tries to store contents deflated unless told otherwise
+    private final boolean compress;
+
+    // Reference counts and content index of a deduplicating volume, else null
+    private final DedupIndex dedup;
+
+    // Zeroes freed blocks in the background; null if disabled
+    private final BlockScrubber scrubber;
+
+    // Regions not yet closed, whose blocks a transfer may still be reading.
+    // Freed runs they hold go back to the allocator once none does. Both
+    // guarded by openRegions.
+    private final List<FileRegion> openRegions = new ArrayList<>();
+    private final List<long[]> heldFrees = new ArrayList<>();
+
+    // Kept in step with the inode table under the write lock
+    private final String[] names;    // by inode slot, null if empty
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+    private final int[] freeSlots;   // stack of empty inode slots
+    private int freeSlotCount;
+
+    public FileSystemManager(String filename, long totalSizeBytes) {
+        this(filename, totalSizeBytes, new FileSystemConfig());
+    }
+
+    // Mounts the volume in filename, or formats a new one of totalSizeBytes of
+    // data with the config's geometry. An existing volume keeps its own geometry.
+    public FileSystemManager(String filename, long totalSizeBytes, FileSystemConfig config) {
+        this(openDisk(filename, totalSizeBytes, config), config,
+                config.getJournalFile() != null ? config.getJournalFile() : filename + ".journal",
+                dataBlocks(totalSizeBytes, config.getBlockSize()));
+    }
+
+    // Mounts the volume on the device, or formats one that fills it
+    public FileSystemManager(BlockDevice disk, FileSystemConfig config) {
+        this(new MeteredBlockDevice(disk), config, config.getJournalFile(), -1);
+    }
+
+    // Mounts the volume on the device, formatting it first if it holds none,
+    // and replays the journal over it
+    private FileSystemManager(BlockDevice disk, FileSystemConfig config, String journalFile, long dataBlocks) {
+        this.disk = disk;
+        this.device = (MeteredBlockDevice) (disk instanceof CachingBlockDevice
+                ? ((CachingBlockDevice) disk).getDelegate() : disk);
+        this.meta = volumeOn(disk, config, journalFile != null, dataBlocks);
+        this.maxFiles = meta.getMaxFiles();
+        this.blockCount = meta.getBlockCount();
+        this.blockSize = meta.getBlockSize();
+        this.fnodeCount = meta.getFNodeCount();
+        this.dataStart = meta.getMetadataBlocks();
+        if (disk.getBlockCount() < dataStart + blockCount)
+            throw new IllegalArgumentException("device too small for the volume");
+
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            fileLocks[i] = new TimedReadWriteLock(fileLockTimes);
+
+        this.dedup = meta.isDeduplicated() ? new DedupIndex(blockCount) : null;
+        this.chained = config.getAllocationMode() == FileSystemConfig.AllocationMode.CHAINED || dedup != null;
+        this.compress = config.isCompression();
+        this.allocator = new BlockAllocator(blockCount, config.getAllocationPolicy());
+        this.scrubber = config.isScrubFreedBlocks() ? new BlockScrubber(disk, dataStart, allocator, lock) : null;
+
+        // One FNode per data block (more if deduplicating), all free to begin with
+        this.freeFNodes = new int[fnodeCount];
+        for (int i = 0; i < fnodeCount; i++)
+            freeFNodes[i] = fnodeCount - 1 - i;
+        this.freeFNodeCount = fnodeCount;
+
+        // Lowest slots on top, so files fill the table in order
+        this.names = new String[maxFiles];
+        this.freeSlots = new int[maxFiles];
+        for (int i = 0; i < maxFiles; i++)
+            freeSlots[i] = maxFiles - 1 - i;
+        this.freeSlotCount = maxFiles;
+
+        try {
+            boolean mounted = meta.load(disk);
+            if (!mounted) {
+                meta.format();
+                meta.writeBack(disk);
+                disk.flush();
+            }
+
+            if (journalFile != null) {
+                this.journal = new MetadataJournal(journalFile, disk, meta.getVolumeId(), config);
+                // Fold committed changes into the volume, then start a new log
+                if (mounted && journal.replay(meta::apply) > 0) {
+                    meta.countInodes();
+                    meta.writeBack(disk);
+                    disk.flush();
+                }
+                journal.reset();
+                journal.start();
+            } else {
+                this.journal = null;
+            }
+
+            if (mounted)
+                mount();
+            if (mounted && dedup != null)
+                indexBlocks();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to mount volume", e);
+        }
+        if (scrubber != null)
+            scrubber.start();
+    }
+
+    // Rebuilds the free lists and indexes from the metadata just loaded
+    private void mount() {
+        freeFNodeCount = 0;
+        for (int i = fnodeCount - 1; i >= 0; i--) {
+            int block = meta.getFNodeBlock(i);
+            if (block == -1)
+                freeFNodes[freeFNodeCount++] = i;
+            else if (dedup != null)
+                dedup.addRef(block);
+        }
+
+        BitSet used = meta.getUsedBlocks();
+        for (int start = used.nextSetBit(0); start >= 0; start = used.nextSetBit(start)) {
+            int end = used.nextClearBit(start);
+            allocator.allocateAt(start, end - start);
+            start = end;
+        }
+
+        freeSlotCount = 0;
+        for (int slot = maxFiles - 1; slot >= 0; slot--) {
+            String name = meta.getInodeName(slot);
+            if (name == null) {
+                freeSlots[freeSlotCount++] = slot;
+                continue;
+            }
+            names[slot] = name;
+            nameIndex.put(name, slot);
+        }
+    }
+
+    // Hashes the blocks in use into the dedup index, reading runs of them
+    // through one buffer
+    private void indexBlocks() throws IOException {
+        byte[] buffer = new byte[Math.max(blockSize, STREAM_BUFFER / blockSize * blockSize)];
+        int perRead = buffer.length / blockSize;
+        BitSet used = meta.getUsedBlocks();
+        for (int start = used.nextSetBit(0); start >= 0; ) {
+            int n = 1;
+            while (n < perRead && used.get(start + n))
+                n++;
+            disk.read(dataStart + start, buffer, 0, n * blockSize);
+            DedupIndex.Fingerprint[] prints = DedupIndex.fingerprints(buffer, n * blockSize, blockSize);
+            for (int i = 0; i < n; i++)
+                dedup.index(start + i, prints[i]);
+            start = used.nextSetBit(start + n);
+        }
+    }
+
+    private static BlockDevice openDisk(String filename, long totalSizeBytes, FileSystemConfig config) {
         try {
-            this.disk = new RandomAccessFile(filename, "rw");
-            this.disk.setLength(totalSizeBytes);
+            // An existing volume is opened with the geometry it was formatted with
+            VolumeMetadata stored = null;
+            Path path = Paths.get(filename);
+            if (Files.exists(path)) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    ByteBuffer superblock = ByteBuffer.allocate(VolumeMetadata.SUPERBLOCK_BYTES);
+                    while (superblock.hasRemaining() && channel.read(superblock) > 0) {
+                    }
+                    stored = VolumeMetadata.probe(superblock.flip(), false);
+                }
+            }
+
+            VolumeMetadata layout = stored != null ? stored
+                    : new VolumeMetadata(config.getBlockSize(), (int) dataBlocks(totalSizeBytes, config.getBlockSize()),
+                            config.getMaxFiles(), flags(config), false);
+            BlockDevice disk = new MeteredBlockDevice(config.getStorageMode().open(filename, layout.getBlockSize(),
+                    (long) layout.getMetadataBlocks() + layout.getBlockCount()));
+            return config.getCacheBytes() > 0 ? new CachingBlockDevice(disk, config.getCacheBytes()) : disk;
         } catch (Exception e) {
             throw new RuntimeException("Failed to open disk file", e);
         }
+    }
+
+    private static long dataBlocks(long totalSizeBytes, int blockSize) {
+        long blocks = (totalSizeBytes + blockSize - 1) / blockSize;
+        if (blocks <= 0 || blocks > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid volume size for a block size of " + blockSize);
+        return blocks;
+    }
+
+    // The volume already on the device, or the one to format on it: dataBlocks
+    // of data, or as many as fit if -1
+    private static VolumeMetadata volumeOn(BlockDevice disk, FileSystemConfig config, boolean recording, long dataBlocks) {
+        try {
+            ByteBuffer superblock = ByteBuffer.allocate(disk.getBlockSize());
+            disk.read(0, superblock.array(), 0, superblock.capacity());
+            VolumeMetadata stored = VolumeMetadata.probe(superblock, recording);
+            if (stored != null) {
+                if (stored.getBlockSize() != disk.getBlockSize())
+                    throw new IllegalArgumentException("volume block size does not match the device");
+                return stored;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read superblock", e);
+        }
 
-        this.inodeTable = new FEntry[MAXFILES];
-        this.freeBlockList = new boolean[MAXBLOCKS];
-        Arrays.fill(freeBlockList, true);
+        if (dataBlocks == -1) {
+            long all = Math.min(disk.getBlockCount(), Integer.MAX_VALUE);
+            dataBlocks = all - new VolumeMetadata(disk.getBlockSize(), (int) all, config.getMaxFiles(), flags(config), false)
+                    .getMetadataBlocks();
+        }
+        return new VolumeMetadata(disk.getBlockSize(), (int) dataBlocks, config.getMaxFiles(), flags(config), recording);
+    }
+
+    // Superblock flags of a volume formatted with the config
+    private static int flags(FileSystemConfig config) {
+        return config.isDeduplication() ? VolumeMetadata.FLAG_DEDUP : 0;
+    }
+
+    // Takes the content lock of the file's inode and returns its slot, or -1
+    // (nothing locked) if there is no such file
+    private int lockFile(String fileName, boolean write) {
+        while (true) {
+            int idx = findFileIndex(fileName);
+            if (idx == -1)
+                return -1;
+
+            ReentrantReadWriteLock l = fileLocks[idx % LOCK_STRIPES];
+            Lock held = write ? l.writeLock() : l.readLock();
+            held.lock();
+
+            // The file may have been deleted (and the slot reused) while we waited
+            if (findFileIndex(fileName) == idx)
+                return idx;
+            held.unlock();
+        }
+    }
+
+    private void unlockFile(int idx, boolean write) {
+        ReentrantReadWriteLock l = fileLocks[idx % LOCK_STRIPES];
+        if (write)
+            l.writeLock().unlock();
+        else
+            l.readLock().unlock();
     }
 
     private int findFileIndex(String name) {
         lock.readLock().lock();
         try {
-            for (int i = 0; i < inodeTable.length; i++) {
-                FEntry e = inodeTable[i];
-                if (e != null && e.getFilename().equals(name)) {
-                    return i;
-                }
-            }
-            return -1;
+            Integer idx = nameIndex.get(name);
+            return idx == null ? -1 : idx;
         } finally {
             lock.readLock().unlock();
         }
@@ -60,20 +334,26 @@ public class FileSystemManager {
         if (findFileIndex(fileName) != -1)
             return;
 
+        long lsn;
         lock.writeLock().lock();
         try {
-            for (int i = 0; i < inodeTable.length; i++) {
-                if (inodeTable[i] == null) {
-                    inodeTable[i] = new FEntry(fileName, (short) 0, (short) -1);
-                    return;
-                }
-            }
+            // Another thread may have created it since the check above
+            if (nameIndex.containsKey(fileName))
+                return;
 
-            throw new IllegalStateException("no more free entries");
+            if (freeSlotCount == 0)
+                throw new IllegalStateException("no more free entries");
+
+            int slot = freeSlots[--freeSlotCount];
+            names[slot] = fileName;
+            nameIndex.put(fileName, slot);
+            meta.putInode(slot, fileName, 0, -1);
+            lsn = logMetadata();
 
         } finally {
             lock.writeLock().unlock();
         }
+        awaitDurable(lsn);
     }
 
     public void deleteFile(String fileName) throws Exception {
@@ -83,149 +363,1369 @@ public class FileSystemManager {
         if (fileName.length() > 11)
             throw new IllegalArgumentException("filename too long");
 
-        int idx = findFileIndex(fileName);
+        int idx = lockFile(fileName, true);
         if (idx == -1) return; // ignore missing file
 
-        int start, count;
-
-        lock.writeLock().lock();
         try {
-            FEntry entry = inodeTable[idx];
-            start = entry.getFirstBlock();
-            count = (int) Math.ceil(entry.getFilesize() / (double) BLOCK_SIZE);
+            long lsn;
+            lock.writeLock().lock();
+            try {
+                // Metadata only: the blocks keep their old bytes until the
+                // scrubber gets to them or a new owner overwrites them
+                releaseChain(meta.getInodeFirstFNode(idx));
 
-            // Free metadata blocks
-            if (start >= 0) {
-                for (int i = 0; i < count; i++)
-                    freeBlockList[start + i] = true;
+                // Remove inode entry
+                names[idx] = null;
+                nameIndex.remove(fileName);
+                freeSlots[freeSlotCount++] = idx;
+                meta.clearInode(idx);
+                lsn = logMetadata();
+
+            } finally {
+                lock.writeLock().unlock();
             }
+            awaitDurable(lsn);
+        } finally {
+            unlockFile(idx, true);
+        }
+    }
+
+    public void writeFile(String fileName, byte[] contents) throws Exception {
+        writeFile(fileName, contents, compress);
+    }
 
-            // Remove inode entry
-            inodeTable[idx] = null;
+    // Replaces the file's contents, stored deflated if compress is set and that
+    // saves at least one block. The file keeps its blocks when the new
+    // contents need as many, gives back its last ones when they need fewer and
+    // grows in place when the blocks after it are free; only otherwise, or
+    // while an open region holds some of them, does it move to newly
+    // allocated blocks.
+    public void writeFile(String fileName, byte[] contents, boolean compress) throws Exception {
+        // Compress before taking any lock
+        byte[] stored = contents;
+        if (compress && contents.length > blockSize) {
+            byte[] deflated = Compression.deflate(contents, (blocksFor(contents.length) - 1) * blockSize);
+            if (deflated != null)
+                stored = deflated;
+        }
+        int compressedSize = stored == contents ? 0 : stored.length;
+        if (dedup != null) {
+            writeDeduplicated(fileName, contents.length, stored, compressedSize);
+            return;
+        }
+        int newCount = blocksFor(stored.length);
 
+        int idx = lockFile(fileName, true);
+        if (idx == -1)
+            throw new Exception("file does not exist");
+
+        try {
+            long[] newRuns = NO_RUNS;
+            long lsn;
+
+            lock.writeLock().lock();
+            try {
+                int oldCount = blocksFor(storedSize(idx));
+                // Blocks an open region holds keep their bytes until it is closed
+                boolean inPlace = !isChainHeld(idx, 0, oldCount);
+                if (inPlace && (newCount <= oldCount || extendChain(idx, newCount - oldCount))) {
+                    // Rewrite in place
+                    if (newCount < oldCount)
+                        truncateChain(idx, newCount);
+                    newRuns = chainRuns(meta.getInodeFirstFNode(idx));
+                    meta.putInode(idx, fileName, contents.length, meta.getInodeFirstFNode(idx));
+                    meta.putInodeCompressedSize(idx, compressedSize);
+                } else {
+                    // Not enough room even with the old blocks: fail before touching them
+                    if (newCount > allocator.getFreeBlocks() + oldCount)
+                        throw new Exception("file too large");
+
+                    // Free old blocks (they are candidates for the new contents too)
+                    long[] oldRuns = releaseChain(meta.getInodeFirstFNode(idx));
+                    if (chained) {
+                        newRuns = allocator.allocateScattered(newCount);
+                    } else {
+                        long start = allocator.allocate(newCount);
+                        newRuns = start == -1 ? null : new long[]{start, newCount};
+                    }
+
+                    if (newRuns == null) {
+                        // Leave the file as it was, its blocks reserved again
+                        unreleaseRuns(oldRuns);
+                        meta.putInode(idx, fileName, meta.getInodeSize(idx), buildChain(oldRuns));
+                        throw new Exception("file too large");
+                    }
+                    meta.putInode(idx, fileName, contents.length, buildChain(newRuns));
+                    meta.putInodeCompressedSize(idx, compressedSize);
+                }
+                lsn = logMetadata(true);
+
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            // Write to disk under the file's own lock only, one call per contiguous run
+            try {
+                int offset = 0;
+                for (int i = 0; i < newRuns.length; i += 2) {
+                    int len = (int) Math.min(newRuns[i + 1] * blockSize, stored.length - offset);
+                    writeData(dataStart + newRuns[i], stored, offset, len);
+                    offset += len;
+                }
+            } catch (IOException | RuntimeException e) {
+                dataFailed(idx, lsn, e);
+                throw e;
+            }
+            dataWritten(lsn);
+            awaitDurable(lsn);
         } finally {
-            lock.writeLock().unlock();
+            unlockFile(idx, true);
         }
+    }
+
+    // writeFile on a deduplicating volume. Blocks whose contents the volume
+    // already holds are shared instead of written, so storing a copy of
+    // another file, or rewriting a file with what it holds, changes metadata
+    // only. Blocks the new contents reuse are held while the old chain is
+    // released, so those the two have in common aren't freed, and the old
+    // chain's FNodes, and the blocks only it names, are free for the new one.
+    private void writeDeduplicated(String fileName, long size, byte[] stored, int compressedSize) throws Exception {
+        DedupIndex.Fingerprint[] prints = DedupIndex.fingerprints(stored, stored.length, blockSize);
+
+        int idx = lockFile(fileName, true);
+        if (idx == -1)
+            throw new Exception("file does not exist");
 
-        // Clear blocks on disk AFTER freeing metadata
         try {
-            if (start >= 0) {
-                for (int i = 0; i < count; i++) {
-                    disk.seek((start + i) * BLOCK_SIZE);
-                    disk.write(new byte[BLOCK_SIZE]);
+            int[] blocks = new int[prints.length];
+            boolean[] fresh = new boolean[prints.length];  // blocks to write
+            long lsn;
+
+            lock.writeLock().lock();
+            try {
+                // Known contents first; a block repeated within the file is
+                // written once, for its first occurrence
+                Map<DedupIndex.Fingerprint, Integer> firsts = new HashMap<>();
+                int misses = 0;
+                for (int i = 0; i < prints.length; i++) {
+                    blocks[i] = dedup.lookup(prints[i]);
+                    if (blocks[i] == -1 && firsts.putIfAbsent(prints[i], i) == null) {
+                        fresh[i] = true;
+                        misses++;
+                    }
+                }
+                int oldLength = 0;
+                for (int f = meta.getInodeFirstFNode(idx); f != -1; f = meta.getFNodeNext(f))
+                    oldLength++;
+                if (prints.length > freeFNodeCount + oldLength)
+                    throw new Exception("file too large");
+
+                // Hold the blocks the new contents reuse, so releasing the
+                // old chain doesn't free those the two have in common
+                boolean[] held = new boolean[prints.length];
+                for (int i = 0; i < prints.length; i++) {
+                    if (blocks[i] != -1) {
+                        dedup.addRef(blocks[i]);
+                        held[i] = true;
+                    }
+                }
+                // The old chain's blocks nothing else names are freed by
+                // the release, and are candidates for the new contents too
+                Map<Integer, Integer> oldRefs = new HashMap<>();
+                for (int f = meta.getInodeFirstFNode(idx); f != -1; f = meta.getFNodeNext(f))
+                    oldRefs.merge(meta.getFNodeBlock(f), 1, Integer::sum);
+                List<Integer> freed = new ArrayList<>();
+                for (Map.Entry<Integer, Integer> e : oldRefs.entrySet()) {
+                    if (dedup.getRefs(e.getKey()) == e.getValue())
+                        freed.add(e.getKey());
+                }
+                if (misses > allocator.getFreeBlocks() + freed.size()) {
+                    releaseHeld(blocks, held);
+                    throw new Exception("file too large");
+                }
+
+                long[] oldRuns = releaseChain(meta.getInodeFirstFNode(idx));
+                long[] runs = misses > 0 ? allocator.allocateScattered(misses) : NO_RUNS;
+                if (runs == null) {
+                    // Leave the file as it was, its blocks reserved again
+                    // (those freed drop out of the index)
+                    for (int block : freed)
+                        unreleaseRuns(new long[]{block, 1});
+                    meta.putInode(idx, fileName, meta.getInodeSize(idx), buildChain(oldRuns));
+                    releaseHeld(blocks, held);
+                    throw new Exception("file too large");
+                }
+                if (misses > 0) {
+                    int r = 0;
+                    long next = runs[0];
+                    for (int i = 0; i < prints.length; i++) {
+                        if (!fresh[i])
+                            continue;
+                        if (next == runs[r] + runs[r + 1]) {
+                            r += 2;
+                            next = runs[r];
+                        }
+                        blocks[i] = (int) next++;
+                    }
+                }
+                for (int i = 0; i < prints.length; i++) {
+                    if (blocks[i] == -1)
+                        blocks[i] = blocks[firsts.get(prints[i])];
                 }
+
+                int head = buildChain(toRuns(blocks));
+                for (int i = 0; i < prints.length; i++) {
+                    if (held[i])
+                        dedup.hit();
+                }
+                releaseHeld(blocks, held);
+                meta.putInode(idx, fileName, size, head);
+                meta.putInodeCompressedSize(idx, compressedSize);
+                lsn = logMetadata(true);
+
+            } finally {
+                lock.writeLock().unlock();
             }
-        } catch (IOException e) {
-            throw new RuntimeException("Disk write error during delete", e);
+
+            // Write the new blocks, one call per stretch that is consecutive
+            // both in the file and on disk; the last block is padded out so
+            // its fingerprint covers what is on disk
+            try {
+                for (int i = 0; i < blocks.length; ) {
+                    if (!fresh[i]) {
+                        i++;
+                        continue;
+                    }
+                    int j = i + 1;
+                    while (j < blocks.length && fresh[j] && blocks[j] == blocks[j - 1] + 1)
+                        j++;
+                    int off = i * blockSize;
+                    int len = Math.min((j - i) * blockSize, stored.length - off);
+                    int whole = len / blockSize * blockSize;
+                    if (whole > 0)
+                        writeData(dataStart + blocks[i], stored, off, whole);
+                    if (whole < len)
+                        writeData(dataStart + blocks[j - 1], Arrays.copyOfRange(stored, off + whole, off + whole + blockSize),
+                                0, blockSize);
+                    i = j;
+                }
+            } catch (IOException | RuntimeException e) {
+                dataFailed(idx, lsn, e);
+                throw e;
+            }
+            dataWritten(lsn);
+
+            // Only now may other files find them
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < blocks.length; i++) {
+                    if (fresh[i])
+                        dedup.index(blocks[i], prints[i]);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            awaitDurable(lsn);
+        } finally {
+            unlockFile(idx, true);
         }
     }
 
-    public void writeFile(String fileName, byte[] contents) throws Exception {
-        int fileIdx = findFileIndex(fileName);
-        if (fileIdx == -1)
+    // Drops the references writeDeduplicated took on the blocks it reuses
+    private void releaseHeld(int[] blocks, boolean[] held) {
+        for (int i = 0; i < blocks.length; i++) {
+            if (held[i])
+                dedup.release(blocks[i]);
+        }
+    }
+
+    public byte[] readFile(String fileName) throws Exception {
+        int idx = lockFile(fileName, false);
+        if (idx == -1)
             throw new Exception("file does not exist");
 
-        int newCount = (int) Math.ceil(contents.length / (double) BLOCK_SIZE);
-        int newStart = -1;
+        try {
+            long[] runs;
+            long fileSize;
+            int compressedSize;
+
+            lock.readLock().lock();
+            try {
+                runs = chainRuns(meta.getInodeFirstFNode(idx));
+                fileSize = meta.getInodeSize(idx);
+                compressedSize = meta.getInodeCompressedSize(idx);
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (fileSize > Integer.MAX_VALUE - 8)
+                throw new Exception("file too large to read at once");
+            return readContents(runs, (int) fileSize, compressedSize);
+
+        } finally {
+            unlockFile(idx, false);
+        }
+    }
+
+    public long getFileSize(String fileName) throws Exception {
+        int idx = lockFile(fileName, false);
+        if (idx == -1)
+            throw new Exception("file does not exist");
 
-        lock.writeLock().lock();
         try {
-            FEntry entry = inodeTable[fileIdx];
+            lock.readLock().lock();
+            try {
+                return meta.getInodeSize(idx);
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            unlockFile(idx, false);
+        }
+    }
 
-            // Free old blocks
-            int oldStart = entry.getFirstBlock();
-            int oldCount = (int) Math.ceil(entry.getFilesize() / (double) BLOCK_SIZE);
+    // Reads up to len bytes at offset into dst and returns how many, or -1 if
+    // offset is at or past the end of the file
+    public int read(String fileName, long offset, byte[] dst, int off, int len) throws Exception {
+        if (offset < 0 || len < 0)
+            throw new IllegalArgumentException("invalid range");
 
-            if (oldStart >= 0) {
-                for (int i = 0; i < oldCount; i++)
-                    freeBlockList[oldStart + i] = true;
+        int idx = lockFile(fileName, false);
+        if (idx == -1)
+            throw new Exception("file does not exist");
+
+        try {
+            long[] runs;
+            long size;
+            int compressedSize;
+            lock.readLock().lock();
+            try {
+                runs = chainRuns(meta.getInodeFirstFNode(idx));
+                size = meta.getInodeSize(idx);
+                compressedSize = meta.getInodeCompressedSize(idx);
+            } finally {
+                lock.readLock().unlock();
             }
 
-            // Find new contiguous space
-            for (int i = 0; i <= MAXBLOCKS - newCount; i++) {
-                boolean ok = true;
-                for (int j = 0; j < newCount; j++) {
-                    if (!freeBlockList[i + j]) {
-                        ok = false;
-                        break;
+            if (offset >= size)
+                return -1;
+            int n = (int) Math.min(len, size - offset);
+            if (compressedSize > 0)
+                System.arraycopy(readContents(runs, (int) size, compressedSize), (int) offset, dst, off, n);
+            else
+                readRange(runs, offset, dst, off, n);
+            return n;
+
+        } finally {
+            unlockFile(idx, false);
+        }
+    }
+
+    // The bytes of [offset, offset + len) that exist; empty past the end, so a
+    // tail reader can poll from its last position for new bytes only
+    public byte[] read(String fileName, long offset, int len) throws Exception {
+        if (offset < 0 || len < 0)
+            throw new IllegalArgumentException("invalid range");
+
+        int idx = lockFile(fileName, false);
+        if (idx == -1)
+            throw new Exception("file does not exist");
+
+        try {
+            long[] runs;
+            long size;
+            int compressedSize;
+            lock.readLock().lock();
+            try {
+                runs = chainRuns(meta.getInodeFirstFNode(idx));
+                size = meta.getInodeSize(idx);
+                compressedSize = meta.getInodeCompressedSize(idx);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            byte[] data = new byte[(int) Math.max(0, Math.min(len, size - offset))];
+            if (compressedSize > 0 && data.length > 0)
+                System.arraycopy(readContents(runs, (int) size, compressedSize), (int) offset, data, 0, data.length);
+            else
+                readRange(runs, offset, data, 0, data.length);
+            return data;
+
+        } finally {
+            unlockFile(idx, false);
+        }
+    }
+
+    public void append(String fileName, byte[] data) throws Exception {
+        append(fileName, data, 0, data.length);
+    }
+
+    // Adds bytes to the end of the file, only touching its last block and the
+    // new ones
+    public void append(String fileName, byte[] data, int off, int len) throws Exception {
+        writeAt(fileName, -1, data, off, len);
+    }
+
+    public void patch(String fileName, long offset, byte[] data) throws Exception {
+        patch(fileName, offset, data, 0, data.length);
+    }
+
+    // Overwrites the bytes at offset, only rewriting the blocks they fall in.
+    // offset may be at most the file's size; bytes past the end extend it.
+    public void patch(String fileName, long offset, byte[] data, int off, int len) throws Exception {
+        if (offset < 0)
+            throw new IllegalArgumentException("invalid offset");
+        writeAt(fileName, offset, data, off, len);
+    }
+
+    // Writes len bytes at offset (-1 for the end of the file). A file that has
+    // to grow does so in place when the blocks after it are free; otherwise a
+    // chained file links new blocks from anywhere and a contiguous one moves
+    // to a run big enough for all of it. A compressed file is first rewritten
+    // uncompressed, since deflated bytes can't be changed in place. Bytes an
+    // open region may still send are never overwritten: a chained file swaps
+    // those blocks for copies, a contiguous one moves.
+    private void writeAt(String fileName, long offset, byte[] data, int off, int len) throws Exception {
+        int idx = lockFile(fileName, true);
+        if (idx == -1)
+            throw new Exception("file does not exist");
+
+        try {
+            if (isCompressed(idx))
+                writeFile(fileName, readFile(fileName), false);
+
+            long oldSize;
+            long newSize;
+            long[] runs;
+            long moveTo = -1;
+            long[] copies = NO_RUNS;
+            long lsn = 0;
+
+            lock.writeLock().lock();
+            try {
+                oldSize = meta.getInodeSize(idx);
+                if (offset == -1)
+                    offset = oldSize;
+                else if (offset > oldSize)
+                    throw new IllegalArgumentException("offset past end of file");
+                newSize = Math.max(oldSize, offset + len);
+                int have = blocksFor(oldSize);
+                int need = blocksFor(newSize);
+
+                // Blocks [first, end) get new bytes; those an open region
+                // holds, or that other files share, have to be copied first
+                int first = (int) (offset / blockSize);
+                long overlap = Math.min(offset + len, oldSize);
+                boolean held = offset < overlap && isChainHeld(idx, first, blocksFor(overlap));
+                int end = dedup != null ? Math.min(have, blocksFor(offset + len)) : blocksFor(overlap);
+                int moving = len > 0 && (dedup != null || held) ? relocations(idx, first, end) : 0;
+
+                if (held && !chained) {
+                    // A contiguous file can't swap single blocks, so all of it moves
+                    if ((moveTo = allocator.allocate(need)) == -1)
+                        throw new Exception("file too large");
+                } else if (moving + Math.max(0, need - have) > allocator.getFreeBlocks()) {
+                    throw new Exception("file too large");
+                } else if (need > have && !extendChain(idx, need - have)) {
+                    if (chained || (moveTo = allocator.allocate(need)) == -1)
+                        throw new Exception("file too large");
+                }
+                if (moveTo == -1 && len > 0 && (dedup != null || held))
+                    copies = relocate(idx, first, end);
+                runs = chainRuns(meta.getInodeFirstFNode(idx));
+                if (moveTo == -1 && newSize != oldSize)
+                    meta.putInode(idx, fileName, newSize, meta.getInodeFirstFNode(idx));
+                // Relocating repoints FNodes even when the size stays the same
+                if (moveTo == -1 && (newSize != oldSize || copies.length > 0))
+                    lsn = logMetadata(true);
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            if (moveTo != -1) {
+                // Copy the old contents to the new run, then switch the file over
+                int need = blocksFor(newSize);
+                try {
+                    copyBlocks(runs, dataStart + moveTo);
+                } catch (IOException e) {
+                    lock.writeLock().lock();
+                    try {
+                        allocator.free(moveTo, need);
+                    } finally {
+                        lock.writeLock().unlock();
                     }
+                    throw e;
+                }
+                runs = new long[]{moveTo, need};
+                lock.writeLock().lock();
+                try {
+                    releaseChain(meta.getInodeFirstFNode(idx));
+                    meta.putInode(idx, fileName, newSize, buildChain(runs));
+                    lsn = logMetadata(true);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            // The record waits for the copies and the new bytes, and must
+            // not hold up anyone needing the metadata lock meanwhile. Bytes
+            // the file already had only ever hold its own data, so only a
+            // write that moved, grew or relocated it empties it on failure.
+            boolean published = moveTo != -1 || newSize != oldSize || copies.length > 0;
+            try {
+                try {
+                    copyRelocated(copies);
+                    writeRange(runs, offset, data, off, len, oldSize);
+                } catch (IOException | RuntimeException e) {
+                    if (published)
+                        dataFailed(idx, lsn, e);
+                    throw e;
+                }
+                dataWritten(lsn);
+            } finally {
+                if (copies.length > 0)
+                    lsn = Math.max(lsn, releaseRelocated(copies));
+            }
+            awaitDurable(lsn);
+
+        } finally {
+            unlockFile(idx, true);
+        }
+    }
+
+    // Stream over the file's contents, read through positional reads. A
+    // compressed file is inflated once, up front.
+    public InputStream openInputStream(String fileName) throws Exception {
+        int idx = lockFile(fileName, false);
+        if (idx == -1)
+            throw new Exception("file does not exist");
+        try {
+            if (isCompressed(idx))
+                return new ByteArrayInputStream(readFile(fileName));
+        } finally {
+            unlockFile(idx, false);
+        }
+
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                try {
+                    int n = FileSystemManager.this.read(fileName, position, b, off, len);
+                    if (n > 0)
+                        position += n;
+                    return n;
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e.getMessage(), e);
                 }
-                if (ok) {
-                    newStart = i;
-                    break;
+            }
+        };
+    }
+
+    // Stream that appends to the file through a fixed-size buffer; unless
+    // appending, the file is emptied first. Must be closed.
+    public OutputStream openOutputStream(String fileName, boolean append) throws Exception {
+        if (!append)
+            writeFile(fileName, new byte[0]);
+        else
+            getFileSize(fileName);
+
+        return new OutputStream() {
+            private final byte[] buffer = new byte[STREAM_BUFFER];
+            private int count;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buffer.length)
+                    flush();
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buffer.length)
+                        flush();
+                    int n = Math.min(len, buffer.length - count);
+                    System.arraycopy(b, off, buffer, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (count == 0)
+                    return;
+                try {
+                    append(fileName, buffer, 0, count);
+                    count = 0;
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e.getMessage(), e);
                 }
             }
 
-            if (newStart == -1)
-                throw new Exception("file too large");
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    // Runs a group of operations holding every lock once for the whole group;
+    // the operations' own lock calls then become uncontended re-entries.
+    public <T> T runExclusive(Callable<T> work) throws Exception {
+        for (ReentrantReadWriteLock l : fileLocks)
+            l.writeLock().lock();
+        T result;
+        lock.writeLock().lock();
+        try {
+            result = work.call();
+        } finally {
+            lock.writeLock().unlock();
+            for (int i = fileLocks.length - 1; i >= 0; i--)
+                fileLocks[i].writeLock().unlock();
+        }
+        // The group's operations skipped their own waits; one covers them all
+        if (journal != null)
+            awaitDurable(journal.getRecords());
+        return result;
+    }
+
+    // Snapshot of where the file's bytes are. The transfer that follows runs
+    // without locks; writes to the file meanwhile go to other blocks, so it
+    // sends the contents as they were when the region was opened.
+    public FileRegion openRegion(String fileName) throws Exception {
+        return openRegion(fileName, 0, Long.MAX_VALUE);
+    }
+
+    // Region of [offset, offset + length) of the file, clipped to its end
+    public FileRegion openRegion(String fileName, long offset, long length) throws Exception {
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("invalid range");
+
+        int idx = lockFile(fileName, false);
+        if (idx == -1)
+            throw new Exception("file does not exist");
+
+        try {
+            long[] runs;
+            long size;
+            int compressedSize;
+            lock.readLock().lock();
+            try {
+                runs = chainRuns(meta.getInodeFirstFNode(idx));
+                size = meta.getInodeSize(idx);
+                compressedSize = meta.getInodeCompressedSize(idx);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            long end = Math.min(size, offset + Math.min(length, Long.MAX_VALUE - offset));
+            if (compressedSize > 0) {
+                // Nothing on disk to point at; the region carries the inflated bytes
+                byte[] contents = readContents(runs, (int) size, compressedSize);
+                return new FileRegion(Arrays.copyOfRange(contents, (int) Math.min(offset, end), (int) end));
+            }
 
-            // Mark new blocks used
-            for (int i = 0; i < newCount; i++)
-                freeBlockList[newStart + i] = false;
+            long[] offsets = new long[runs.length / 2];
+            long[] lengths = new long[runs.length / 2];
+            long[] held = new long[runs.length];
+            int extents = 0;
+            long runStart = 0;
+            for (int i = 0; i < runs.length && runStart < end; i += 2) {
+                long runEnd = runStart + runs[i + 1] * blockSize;
+                long from = Math.max(offset, runStart);
+                long to = Math.min(end, runEnd);
+                if (from < to) {
+                    offsets[extents] = (dataStart + runs[i]) * blockSize + (from - runStart);
+                    lengths[extents] = to - from;
+                    held[2 * extents] = runs[i] + (from - runStart) / blockSize;
+                    held[2 * extents + 1] = runs[i] + (to - runStart + blockSize - 1) / blockSize - held[2 * extents];
+                    extents++;
+                }
+                runStart = runEnd;
+            }
+            FileRegion region = new FileRegion(Arrays.copyOf(offsets, extents), Arrays.copyOf(lengths, extents),
+                    Arrays.copyOf(held, 2 * extents), this::closeRegion);
+            // Still under the file's lock, so its blocks can't have been freed yet
+            synchronized (openRegions) {
+                openRegions.add(region);
+            }
+            return region;
 
-            // Update metadata
-            entry.setFilesize((short) contents.length);
-            entry.setFirstBlock((short) newStart);
+        } finally {
+            unlockFile(idx, false);
+        }
+    }
 
+    // Frees the held runs no other open region still holds. Nothing can
+    // allocate them meanwhile, as they stay in use in the allocator.
+    private void closeRegion(FileRegion region) {
+        List<long[]> released = new ArrayList<>();
+        synchronized (openRegions) {
+            openRegions.remove(region);
+            for (Iterator<long[]> it = heldFrees.iterator(); it.hasNext(); ) {
+                long[] run = it.next();
+                if (!isHeld(run[0], run[1])) {
+                    it.remove();
+                    released.add(run);
+                }
+            }
+        }
+        if (released.isEmpty())
+            return;
+        lock.writeLock().lock();
+        try {
+            for (long[] run : released)
+                reclaimBlocks(run[0], run[1]);
         } finally {
             lock.writeLock().unlock();
         }
+    }
 
-        // Write to disk (outside lock)
-        int offset = 0;
-        for (int i = 0; i < newCount; i++) {
-            disk.seek((newStart + i) * BLOCK_SIZE);
+    // Whether an open region holds any of blocks [first, end) of the file
+    private boolean isChainHeld(int idx, int first, int end) {
+        synchronized (openRegions) {
+            if (openRegions.isEmpty())
+                return false;
+        }
+        int pos = 0;
+        for (int f = meta.getInodeFirstFNode(idx); f != -1 && pos < end; f = meta.getFNodeNext(f), pos++) {
+            if (pos >= first && isBlockHeld(meta.getFNodeBlock(f)))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isBlockHeld(long block) {
+        synchronized (openRegions) {
+            return !openRegions.isEmpty() && isHeld(block, 1);
+        }
+    }
 
-            int chunk = Math.min(BLOCK_SIZE, contents.length - offset);
-            disk.write(contents, offset, chunk);
+    // Caller synchronizes on openRegions
+    private boolean isHeld(long start, long count) {
+        for (FileRegion region : openRegions) {
+            if (region.holds(start, count))
+                return true;
+        }
+        return false;
+    }
 
-            if (chunk < BLOCK_SIZE)
-                disk.write(new byte[BLOCK_SIZE - chunk]);
+    // Streams part of a region to the target without copying it onto the heap.
+    // Stops at the end of an extent, and may transfer fewer than count bytes if
+    // the target is non-blocking; callers loop until they have sent it all.
+    public long transferTo(FileRegion region, long offset, long count, WritableByteChannel target) throws IOException {
+        byte[] contents = region.getContents();
+        if (contents != null) {
+            long n = Math.min(count, contents.length - offset);
+            return n <= 0 ? 0 : target.write(ByteBuffer.wrap(contents, (int) offset, (int) n));
+        }
+        for (int i = 0; i < region.getExtentCount(); i++) {
+            long len = region.getExtentLength(i);
+            if (offset < len) {
+                long n = Math.min(count, len - offset);
+                return n <= 0 ? 0 : disk.transferTo(region.getExtentOffset(i) + offset, n, target);
+            }
+            offset -= len;
+        }
+        return 0;
+    }
+
+    // Whether changes return only once the journal has forced them to disk
+    // (PER_OP and BATCHED durability)
+    public boolean waitsForDisk() {
+        return journal != null && journal.waitsForForce();
+    }
 
-            offset += chunk;
+    // Forces written data and the journal to disk
+    public void flush() throws IOException {
+        if (journal != null)
+            journal.sync();
+        disk.flush();
+    }
+
+    public void close() throws IOException {
+        if (scrubber != null)
+            scrubber.close();
+        if (journal != null) {
+            journal.awaitData();
+            lock.writeLock().lock();
+            try {
+                checkpoint();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            journal.close();
         }
+        disk.flush();
+        disk.close();
     }
 
-    public byte[] readFile(String fileName) throws Exception {
-        int start, size;
+    public String getCacheStats() {
+        return disk instanceof CachingBlockDevice ? disk.toString() : "cache disabled";
+    }
+
+    public String getJournalStats() {
+        if (journal == null)
+            return "journal disabled";
+        return String.format("records=%d forces=%d bytes=%d", journal.getRecords(), journal.getForces(), journal.size());
+    }
+
+    /**
+     * Adds the file system's counters and latency percentiles to out: device
+     * I/O, lock wait and hold times, allocator fill and fragmentation, and the
+     * cache, journal and scrubber when enabled.
+     */
+    public void collectMetrics(Map<String, Number> out) {
+        device.collect("disk", out);
+        lockTimes.collect("lock.meta", out);
+        fileLockTimes.collect("lock.file", out);
 
         lock.readLock().lock();
         try {
-            int idx = findFileIndex(fileName);
-            if (idx == -1)
-                throw new Exception("file does not exist");
+            out.put("files", maxFiles - freeSlotCount);
+            out.put("alloc.blocks", allocator.getBlockCount());
+            out.put("alloc.used", allocator.getUsedBlocks());
+            out.put("alloc.fill", allocator.getUsedBlocks() / (double) allocator.getBlockCount());
+            out.put("alloc.extents", allocator.getFreeExtentCount());
+            out.put("alloc.largest", allocator.getLargestFreeExtent());
+            out.put("alloc.fragmentation", allocator.getFragmentation());
+            out.put("alloc.failed", allocator.getFailedAllocations());
+            out.put("files.bytes", meta.getTotalSize());
+            out.put("files.stored_bytes", meta.getTotalStoredSize());
+            out.put("files.compressed", meta.getCompressedInodes());
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (disk instanceof CachingBlockDevice) {
+            CachingBlockDevice cache = (CachingBlockDevice) disk;
+            out.put("cache.hits", cache.getHits());
+            out.put("cache.misses", cache.getMisses());
+            out.put("cache.evictions", cache.getEvictions());
+            out.put("cache.blocks", cache.getCachedBlocks());
+        }
+        if (journal != null) {
+            out.put("journal.records", journal.getRecords());
+            out.put("journal.forces", journal.getForces());
+            out.put("journal.bytes", journal.size());
+        }
+        if (dedup != null) {
+            lock.readLock().lock();
+            try {
+                out.put("dedup.indexed", dedup.getIndexedBlocks());
+                out.put("dedup.saved", dedup.getSharedRefs());
+                out.put("dedup.hits", dedup.getHits());
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        if (scrubber != null) {
+            out.put("scrub.dirty", scrubber.getDirtyBlocks());
+            out.put("scrub.scrubbed", scrubber.getScrubbedBlocks());
+        }
+    }
 
-            FEntry entry = inodeTable[idx];
-            start = entry.getFirstBlock();
-            size = entry.getFilesize();
+    // Hands the metadata changes made under the write lock to the journal (or,
+    // without one, writes them straight back); returns the record to wait for
+    private long logMetadata() throws IOException {
+        return logMetadata(false);
+    }
 
+    // beforeData: the changes point at blocks the caller is about to write,
+    // and it calls dataWritten once they are, or dataFailed if writing them
+    // failed
+    private long logMetadata(boolean beforeData) throws IOException {
+        if (journal == null) {
+            meta.writeBack(disk);
+            return 0;
+        }
+        return journal.append(meta.takeChanges(), beforeData);
+    }
+
+    // The data record lsn points at didn't all reach the disk, so its blocks
+    // may still hold what they held before the file got them. The file is
+    // emptied (the blocks are freed like any others, so the scrubber zeroes
+    // them again) and only then is the record let go, together with the one
+    // undoing it. If even that fails the record is never let go.
+    private void dataFailed(int idx, long lsn, Exception cause) {
+        lock.writeLock().lock();
+        try {
+            releaseChain(meta.getInodeFirstFNode(idx));
+            meta.putInode(idx, names[idx], 0, -1);
+            meta.putInodeCompressedSize(idx, 0);
+            logMetadata();
+        } catch (IOException | RuntimeException e) {
+            cause.addSuppressed(e);
+            if (journal != null)
+                journal.dataFailed(lsn, cause);
+            return;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        dataWritten(lsn);
+    }
+
+    private void dataWritten(long lsn) {
+        if (journal != null)
+            journal.dataWritten(lsn);
+    }
+
+    // Called once the metadata lock is released and the data written; also
+    // checkpoints a journal grown large. Inside runExclusive the group waits
+    // once at the end instead.
+    private void awaitDurable(long lsn) throws IOException {
+        if (journal == null || lock.isWriteLockedByCurrentThread())
+            return;
+        journal.awaitDurable(lsn);
+        if (journal.size() >= CHECKPOINT_BYTES) {
+            // Not under the lock: a write whose data failed takes it to
+            // empty the file before it lets its record go. If another write
+            // has started since, the next one to finish checkpoints instead.
+            journal.awaitData();
+            lock.writeLock().lock();
+            try {
+                if (journal.size() >= CHECKPOINT_BYTES && !journal.isAwaitingData())
+                    checkpoint();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Moves the journaled changes into the volume and empties the journal;
+    // requires the metadata write lock
+    private void checkpoint() throws IOException {
+        journal.sync();
+        meta.writeBack(disk);
+        disk.flush();
+        journal.reset();
+    }
+
+    // Fill and fragmentation of the volume, e.g. for diagnostics
+    public String getAllocatorStats() {
+        lock.readLock().lock();
+        try {
+            return allocator.toString();
         } finally {
             lock.readLock().unlock();
         }
+    }
 
-        if (start < 0)
-            return new byte[0];
+    // Freed blocks not yet zeroed; 0 when the scrubber is disabled
+    public long getDirtyFreeBlocks() {
+        return scrubber == null ? 0 : scrubber.getDirtyBlocks();
+    }
 
-        byte[] data = new byte[size];
-        int blocks = (int) Math.ceil(size / (double) BLOCK_SIZE);
+    public String getScrubberStats() {
+        if (scrubber == null)
+            return "disabled";
+        return String.format("dirty=%d scrubbed=%d", scrubber.getDirtyBlocks(), scrubber.getScrubbedBlocks());
+    }
 
+    private int blocksFor(long bytes) {
+        return (int) ((bytes + blockSize - 1) / blockSize);
+    }
+
+    // Bytes the file takes up in its blocks: its deflated length if compressed
+    private long storedSize(int idx) {
+        int compressedSize = meta.getInodeCompressedSize(idx);
+        return compressedSize > 0 ? compressedSize : meta.getInodeSize(idx);
+    }
+
+    private boolean isCompressed(int idx) {
+        lock.readLock().lock();
+        try {
+            return meta.getInodeCompressedSize(idx) > 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The whole contents of a file of size bytes stored in the runs, one read
+    // per run, inflated if compressedSize says the blocks hold a deflated copy
+    private byte[] readContents(long[] runs, int size, int compressedSize) throws IOException {
+        byte[] data = new byte[compressedSize > 0 ? compressedSize : size];
         int offset = 0;
-        for (int i = 0; i < blocks; i++) {
-            disk.seek((start + i) * BLOCK_SIZE);
-            int chunk = Math.min(BLOCK_SIZE, size - offset);
-            disk.readFully(data, offset, chunk);
-            offset += chunk;
+        for (int i = 0; i < runs.length && offset < data.length; i += 2) {
+            int len = (int) Math.min(runs[i + 1] * blockSize, data.length - offset);
+            disk.read(dataStart + runs[i], data, offset, len);
+            offset += len;
+        }
+        if (compressedSize == 0)
+            return data;
+        try {
+            return Compression.inflate(data, data.length, size);
+        } catch (DataFormatException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // Gives back the blocks of a file's chain after its first keep
+    private void truncateChain(int idx, int keep) {
+        int head = meta.getInodeFirstFNode(idx);
+        if (keep == 0) {
+            releaseChain(head);
+            meta.putInode(idx, names[idx], meta.getInodeSize(idx), -1);
+            return;
+        }
+        int last = head;
+        for (int i = 1; i < keep; i++)
+            last = meta.getFNodeNext(last);
+        releaseChain(meta.getFNodeNext(last));
+        meta.putFNode(last, meta.getFNodeBlock(last), -1);
+    }
+
+    // Adds blocks to the end of a file's chain: right after its last block if
+    // those are free, else (chained mode, or an empty file) wherever there is
+    // room. Returns false, changing nothing, if neither works.
+    private boolean extendChain(int idx, int extra) {
+        if (extra > freeFNodeCount)
+            return false;
+        int head = meta.getInodeFirstFNode(idx);
+        int tail = -1;
+        for (int f = head; f != -1; f = meta.getFNodeNext(f))
+            tail = f;
+
+        long[] runs = null;
+        if (tail != -1 && allocator.allocateAt(meta.getFNodeBlock(tail) + 1L, extra)) {
+            runs = new long[]{meta.getFNodeBlock(tail) + 1L, extra};
+        } else if (chained) {
+            runs = allocator.allocateScattered(extra);
+        } else if (tail == -1) {
+            long start = allocator.allocate(extra);
+            runs = start == -1 ? null : new long[]{start, extra};
         }
+        if (runs == null)
+            return false;
+
+        int added = buildChain(runs);
+        if (tail == -1)
+            meta.putInode(idx, names[idx], meta.getInodeSize(idx), added);
+        else
+            meta.putFNode(tail, meta.getFNodeBlock(tail), added);
+        return true;
+    }
 
-        return data;
+    // Copies len bytes at file offset out of the file's runs. A head that
+    // doesn't start on a block boundary is read through a one-block scratch
+    // buffer; everything else goes straight into dst.
+    private void readRange(long[] runs, long offset, byte[] dst, int off, int len) throws IOException {
+        long runStart = 0;
+        for (int i = 0; i < runs.length && len > 0; i += 2) {
+            long runEnd = runStart + runs[i + 1] * blockSize;
+            if (offset < runEnd) {
+                long block = dataStart + runs[i] + (offset - runStart) / blockSize;
+                int within = (int) ((offset - runStart) % blockSize);
+                if (within != 0) {
+                    byte[] scratch = new byte[blockSize];
+                    int n = Math.min(len, blockSize - within);
+                    disk.read(block, scratch, 0, within + n);
+                    System.arraycopy(scratch, within, dst, off, n);
+                    offset += n;
+                    off += n;
+                    len -= n;
+                    block++;
+                }
+                int n = (int) Math.min(len, runEnd - offset);
+                if (n > 0) {
+                    disk.read(block, dst, off, n);
+                    offset += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+            runStart = runEnd;
+        }
+    }
+
+    // Copies len bytes from src into the file's runs at offset. Whole blocks
+    // are written directly; a partial block with old bytes in it that must
+    // survive (anything before oldSize) is read, patched and written back.
+    private void writeRange(long[] runs, long offset, byte[] src, int off, int len, long oldSize) throws IOException {
+        long runStart = 0;
+        for (int i = 0; i < runs.length && len > 0; i += 2) {
+            long runEnd = runStart + runs[i + 1] * blockSize;
+            while (offset < runEnd && len > 0) {
+                long block = dataStart + runs[i] + (offset - runStart) / blockSize;
+                int within = (int) ((offset - runStart) % blockSize);
+                long room = Math.min(len, runEnd - offset);
+                int n;
+                if (within == 0 && offset + room >= oldSize) {
+                    // Nothing old after this, so the zero padding is fine
+                    n = (int) room;
+                    writeData(block, src, off, n);
+                } else if (within == 0 && room >= blockSize) {
+                    n = (int) (room / blockSize * blockSize);
+                    writeData(block, src, off, n);
+                } else {
+                    n = (int) Math.min(room, blockSize - within);
+                    byte[] scratch = new byte[blockSize];
+                    disk.read(block, scratch, 0, blockSize);
+                    System.arraycopy(src, off, scratch, within, n);
+                    writeData(block, scratch, 0, blockSize);
+                }
+                offset += n;
+                off += n;
+                len -= n;
+            }
+            runStart = runEnd;
+        }
+    }
+
+    // Writes data blocks from device block block on. Blocks that were free a
+    // moment ago may still be getting zeroed by the scrubber; that finishes first.
+    private void writeData(long block, byte[] src, int off, int len) throws IOException {
+        if (scrubber != null)
+            scrubber.awaitScrubbed(block - dataStart, blocksFor(len));
+        disk.write(block, src, off, len);
+    }
+
+    // Copies the blocks of the runs, in order, to consecutive device blocks
+    // from target, through a fixed-size buffer
+    private void copyBlocks(long[] runs, long target) throws IOException {
+        byte[] buffer = new byte[Math.max(blockSize, STREAM_BUFFER / blockSize * blockSize)];
+        int perCopy = buffer.length / blockSize;
+        for (int i = 0; i < runs.length; i += 2) {
+            for (long b = 0; b < runs[i + 1]; b += perCopy) {
+                int n = (int) Math.min(perCopy, runs[i + 1] - b);
+                disk.read(dataStart + runs[i] + b, buffer, 0, n * blockSize);
+                writeData(target, buffer, 0, n * blockSize);
+                target += n;
+            }
+        }
+    }
+
+    // Walks a chain and returns its blocks as packed (start, length) runs,
+    // merging FNodes whose blocks are consecutive on disk
+    private long[] chainRuns(int head) {
+        if (head < 0)
+            return NO_RUNS;
+
+        long[] runs = new long[8];
+        int n = 0;
+        for (int f = head; f != -1; f = meta.getFNodeNext(f)) {
+            int block = meta.getFNodeBlock(f);
+            if (n > 0 && runs[n - 2] + runs[n - 1] == block) {
+                runs[n - 1]++;
+                continue;
+            }
+            if (n + 2 > runs.length)
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            runs[n++] = block;
+            runs[n++] = 1;
+        }
+        return Arrays.copyOf(runs, n);
+    }
+
+    // Links one FNode per block of the runs into a chain; returns its head or -1
+    private int buildChain(long[] runs) {
+        int head = -1;
+        int prev = -1;
+        for (int i = 0; i < runs.length; i += 2) {
+            for (long b = runs[i]; b < runs[i] + runs[i + 1]; b++) {
+                int f = freeFNodes[--freeFNodeCount];
+                meta.putFNode(f, (int) b, -1);
+                if (dedup != null)
+                    dedup.addRef((int) b);
+                if (prev == -1)
+                    head = f;
+                else
+                    meta.putFNode(prev, meta.getFNodeBlock(prev), f);
+                prev = f;
+            }
+            meta.setUsed(runs[i], runs[i + 1], true);
+        }
+        return head;
+    }
+
+    // Returns a chain's FNodes and blocks to the free pools; returns its runs
+    private long[] releaseChain(int head) {
+        long[] runs = chainRuns(head);
+        for (int f = head; f != -1; ) {
+            int next = meta.getFNodeNext(f);
+            meta.putFNode(f, -1, -1);
+            freeFNodes[freeFNodeCount++] = f;
+            f = next;
+        }
+        for (int i = 0; i < runs.length; i += 2) {
+            if (dedup == null) {
+                freeBlocks(runs[i], runs[i + 1]);
+                continue;
+            }
+            // Only blocks no other FNode names are freed
+            for (long b = runs[i]; b < runs[i] + runs[i + 1]; b++) {
+                if (dedup.release((int) b))
+                    freeBlocks(b, 1);
+            }
+        }
+        return runs;
+    }
+
+    // Free on the volume at once; in memory only once no open region holds them
+    private void freeBlocks(long start, long count) {
+        meta.setUsed(start, count, false);
+        synchronized (openRegions) {
+            if (!openRegions.isEmpty() && isHeld(start, count)) {
+                heldFrees.add(new long[]{start, count});
+                return;
+            }
+        }
+        reclaimBlocks(start, count);
+    }
+
+    // Takes back runs releaseChain just freed (not on a deduplicating volume):
+    // out of heldFrees if a region holds them, else out of the allocator, so
+    // closing the region can't free them from under their file again
+    private void unreleaseRuns(long[] runs) {
+        for (int i = 0; i < runs.length; i += 2) {
+            boolean held = false;
+            synchronized (openRegions) {
+                for (Iterator<long[]> it = heldFrees.iterator(); it.hasNext(); ) {
+                    long[] run = it.next();
+                    if (run[0] == runs[i] && run[1] == runs[i + 1]) {
+                        it.remove();
+                        held = true;
+                        break;
+                    }
+                }
+            }
+            if (!held && !allocator.allocateAt(runs[i], (int) runs[i + 1]))
+                throw new IllegalStateException("released blocks were allocated again");
+        }
+    }
+
+    private void reclaimBlocks(long start, long count) {
+        allocator.free(start, (int) count);
+        if (scrubber != null)
+            scrubber.freed(start, count);
+    }
+
+    // Packs a list of blocks into (start, length) runs of consecutive ones
+    private static long[] toRuns(int[] blocks) {
+        long[] runs = new long[2 * blocks.length];
+        int n = 0;
+        for (int b : blocks) {
+            if (n > 0 && runs[n - 2] + runs[n - 1] == b) {
+                runs[n - 1]++;
+            } else {
+                runs[n++] = b;
+                runs[n++] = 1;
+            }
+        }
+        return Arrays.copyOf(runs, n);
+    }
+
+    // How many of blocks [first, end) of a file relocate would move
+    private int relocations(int idx, int first, int end) {
+        int moving = 0;
+        int pos = 0;
+        for (int f = meta.getInodeFirstFNode(idx); f != -1 && pos < end; f = meta.getFNodeNext(f), pos++) {
+            if (pos >= first && mustRelocate(meta.getFNodeBlock(f)))
+                moving++;
+        }
+        return moving;
+    }
+
+    // Before blocks [first, end) of a file change in place: each one an open
+    // region holds, or on a deduplicating volume another FNode also names,
+    // is swapped for a new block, and on a deduplicating volume the rest
+    // leave the content index. The caller has checked that at least
+    // relocations() blocks are free; regions only ever let go meanwhile.
+    // Returns packed (old, new) pairs to copy, whose old blocks stay
+    // allocated (keep an extra reference, if deduplicating) until
+    // copyRelocated is done with them, so no other file can start changing
+    // them meanwhile.
+    private long[] relocate(int idx, int first, int end) {
+        int[] moved = new int[end - first];  // FNodes to repoint
+        int moving = 0;
+        int pos = 0;
+        for (int f = meta.getInodeFirstFNode(idx); f != -1 && pos < end; f = meta.getFNodeNext(f), pos++) {
+            int block = meta.getFNodeBlock(f);
+            if (pos < first)
+                continue;
+            if (mustRelocate(block))
+                moved[moving++] = f;
+            else if (dedup != null)
+                dedup.forget(block);
+        }
+        if (moving == 0)
+            return NO_RUNS;
+
+        long[] runs = allocator.allocateScattered(moving);
+        if (runs == null)
+            throw new IllegalStateException("no room for blocks counted free");
+        long[] copies = new long[2 * moving];
+        int r = 0;
+        long next = runs[0];
+        for (int i = 0; i < moving; i++) {
+            if (next == runs[r] + runs[r + 1]) {
+                r += 2;
+                next = runs[r];
+            }
+            int f = moved[i];
+            copies[2 * i] = meta.getFNodeBlock(f);
+            copies[2 * i + 1] = next;
+            meta.putFNode(f, (int) next, meta.getFNodeNext(f));
+            meta.setUsed(next, 1, true);
+            if (dedup != null)
+                dedup.addRef((int) next);
+            next++;
+        }
+        return copies;
+    }
+
+    private boolean mustRelocate(int block) {
+        return (dedup != null && dedup.getRefs(block) > 1) || isBlockHeld(block);
+    }
+
+    // Copies the blocks relocate swapped out
+    private void copyRelocated(long[] copies) throws IOException {
+        byte[] buffer = new byte[blockSize];
+        for (int i = 0; i < copies.length; i += 2) {
+            disk.read(dataStart + copies[i], buffer, 0, blockSize);
+            writeData(dataStart + copies[i + 1], buffer, 0, blockSize);
+        }
+    }
+
+    // Lets go of the blocks relocate swapped out once they are copied;
+    // returns the record of any blocks that freed, or 0
+    private long releaseRelocated(long[] copies) throws IOException {
+        lock.writeLock().lock();
+        try {
+            boolean freed = false;
+            for (int i = 0; i < copies.length; i += 2) {
+                if (dedup == null || dedup.release((int) copies[i])) {
+                    freeBlocks(copies[i], 1);
+                    freed = true;
+                }
+            }
+            return freed ? logMetadata() : 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public String[] listFiles() {
         lock.readLock().lock();
         try {
-            return Arrays.stream(inodeTable)
-                    .filter(e -> e != null && e.getFilename() != null && !e.getFilename().isEmpty())
-                    .map(FEntry::getFilename)
+            return Arrays.stream(names)
+                    .filter(n -> n != null && !n.isEmpty())
                     .toArray(String[]::new);
         } finally {
             lock.readLock().unlock();
@@ -0,0 +1,395 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.storage.BlockDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of metadata changes, kept in a file next to the volume.
+ *
+ *   header: int magic | long volumeId
+ *   record: int bodyLength | int crc32(body) | body
+ *
+ * A record is one operation's changes to the metadata image (see
+ * VolumeMetadata.takeChanges). Records are appended in memory and written out
+ * in groups: whoever needs its record on disk writes everything appended so
+ * far and forces once for the lot, while the threads that appended in the
+ * meantime wait for that force instead of issuing their own (group commit).
+ *
+ * A record may point at data blocks its writer has yet to fill. It is appended
+ * in order all the same, but neither it nor anything after it is written out
+ * until the writer reports the data written (dataWritten), and a group with
+ * such records forces the volume before the log, so after a crash the log
+ * never points at blocks holding stale bytes.
+ *
+ * When the log grows large the owner checkpoints: syncs the log, writes the
+ * metadata image back to the volume, and resets the log.
+ */
+class MetadataJournal {
+
+    private static final int MAGIC = 0x43464a31; // "CFJ1"
+    private static final int HEADER_BYTES = 12;
+
+    private final FileChannel channel;
+    private final BlockDevice volume;
+    private final long volumeId;
+    private final FileSystemConfig.Durability durability;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final Thread flusher;  // BATCHED and ASYNC only
+
+    // Guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(4096);
+    private int[] pendingEnds = new int[64]; // where each record in pending ends
+    private long appendedLsn;      // records appended so far
+    private long takenLsn;         // records taken out of pending by a group
+    private long durableLsn;       // records written and forced
+    private long dataLsn;          // last record appended ahead of its data
+    private final TreeSet<Long> awaitingData = new TreeSet<>();
+    private long oldestPendingNanos;
+    private boolean flushing;      // a thread is writing a group outside the monitor
+    private boolean closed;
+    private IOException failure;
+    private long writePosition = HEADER_BYTES;
+    private long forces;
+
+    MetadataJournal(String filename, BlockDevice volume, long volumeId, FileSystemConfig config) throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.volume = volume;
+        this.volumeId = volumeId;
+        this.durability = config.getDurability();
+        this.maxBatch = config.getGroupCommitRecords();
+        this.maxDelayNanos = config.getGroupCommitDelayMillis() * 1_000_000L;
+
+        if (durability == FileSystemConfig.Durability.PER_OP) {
+            this.flusher = null;
+        } else {
+            this.flusher = new Thread(this::runFlusher, "journal-flusher");
+            this.flusher.setDaemon(true);
+        }
+    }
+
+    void start() {
+        if (flusher != null)
+            flusher.start();
+    }
+
+    /**
+     * Applies every complete record left in the log, in order, and stops at the
+     * first torn or corrupt one. Returns how many were applied. A log written
+     * for another volume is ignored.
+     */
+    int replay(Consumer<ByteBuffer> apply) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_BYTES)
+            return 0;
+
+        ByteBuffer log = ByteBuffer.allocate((int) size);
+        while (log.hasRemaining() && channel.read(log, log.position()) >= 0) {
+        }
+        log.flip();
+        if (log.getInt() != MAGIC || log.getLong() != volumeId)
+            return 0;
+
+        CRC32 crc = new CRC32();
+        int records = 0;
+        while (log.remaining() >= 8) {
+            int length = log.getInt();
+            int checksum = log.getInt();
+            if (length < 0 || length > log.remaining())
+                break;
+
+            ByteBuffer body = log.slice();
+            body.limit(length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum)
+                break;
+
+            apply.accept(body);
+            log.position(log.position() + length);
+            records++;
+        }
+        return records;
+    }
+
+    /** Empties the log; only call when everything in it is also on the volume. */
+    synchronized void reset() throws IOException {
+        pending.clear();
+        takenLsn = durableLsn = appendedLsn;
+        channel.truncate(HEADER_BYTES);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putLong(volumeId).flip();
+        while (header.hasRemaining())
+            channel.write(header, header.position());
+        channel.force(false);
+        writePosition = HEADER_BYTES;
+    }
+
+    /**
+     * Appends one operation's changes and returns its log sequence number.
+     * beforeData: they point at blocks the caller has yet to write, and the
+     * record waits for dataWritten (0 is returned if there are no changes).
+     */
+    synchronized long append(ByteBuffer changes, boolean beforeData) {
+        if (!changes.hasRemaining())
+            return beforeData ? 0 : appendedLsn;
+
+        int length = changes.remaining();
+        if (pending.remaining() < 8 + length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + 8 + length));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(changes.duplicate());
+        pending.putInt(length).putInt((int) crc.getValue()).put(changes);
+        int records = (int) (appendedLsn - takenLsn);
+        if (records == pendingEnds.length)
+            pendingEnds = Arrays.copyOf(pendingEnds, records * 2);
+        pendingEnds[records] = pending.position();
+
+        if (appendedLsn == durableLsn)
+            oldestPendingNanos = System.nanoTime();
+        appendedLsn++;
+        if (beforeData) {
+            awaitingData.add(appendedLsn);
+            dataLsn = appendedLsn;
+        }
+        if (flusher != null && readyLsn() - durableLsn >= maxBatch)
+            notifyAll();
+        return appendedLsn;
+    }
+
+    /** The blocks record lsn points at are written; lsn 0 is ignored. */
+    synchronized void dataWritten(long lsn) {
+        if (awaitingData.remove(lsn))
+            notifyAll();
+    }
+
+    /**
+     * The blocks record lsn points at weren't written, and the change couldn't
+     * be undone either. The record is never let go, so nothing from it on is
+     * committed; waiters get the error instead.
+     */
+    synchronized void dataFailed(long lsn, Exception cause) {
+        if (awaitingData.contains(lsn) && failure == null) {
+            failure = new IOException("data of record " + lsn + " was not written", cause);
+            notifyAll();
+        }
+    }
+
+    /** Returns once no record is waiting for its data. */
+    synchronized void awaitData() throws IOException {
+        while (!awaitingData.isEmpty()) {
+            checkFailure();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted waiting for the journal", e);
+            }
+        }
+    }
+
+    synchronized boolean isAwaitingData() {
+        return !awaitingData.isEmpty();
+    }
+
+    // Records before the first still waiting for its data may be written out
+    private long readyLsn() {
+        return awaitingData.isEmpty() ? appendedLsn : awaitingData.first() - 1;
+    }
+
+    /**
+     * Returns once record lsn is as durable as the configured level asks for:
+     * forced (PER_OP), forced by the next group (BATCHED), or not at all (ASYNC).
+     */
+    void awaitDurable(long lsn) throws IOException {
+        switch (durability) {
+            case ASYNC:
+                return;
+            case BATCHED:
+                waitFor(lsn);
+                return;
+            default:
+                flushTo(lsn);
+        }
+    }
+
+    /**
+     * Forces everything appended so far, whatever the durability level, once
+     * the data those records wait for is written.
+     */
+    void sync() throws IOException {
+        long lsn;
+        synchronized (this) {
+            lsn = appendedLsn;
+        }
+        flushTo(lsn);
+    }
+
+    // Whether awaitDurable waits for a force
+    boolean waitsForForce() {
+        return durability != FileSystemConfig.Durability.ASYNC;
+    }
+
+    synchronized long size() {
+        return writePosition + pending.position();
+    }
+
+    synchronized long getForces() {
+        return forces;
+    }
+
+    synchronized long getRecords() {
+        return appendedLsn;
+    }
+
+    void close() throws IOException {
+        sync();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.close();
+    }
+
+    // Waits for another thread (the flusher) to make lsn durable
+    private synchronized void waitFor(long lsn) throws IOException {
+        while (durableLsn < lsn) {
+            checkFailure();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted waiting for the journal", e);
+            }
+        }
+    }
+
+    // Makes lsn durable, leading a group flush if nobody else is flushing
+    private void flushTo(long lsn) throws IOException {
+        while (true) {
+            ByteBuffer group;
+            long upTo;
+            boolean forceData;
+            synchronized (this) {
+                while (failure == null && durableLsn < lsn && (flushing || readyLsn() < lsn)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted waiting for the journal", e);
+                    }
+                }
+                checkFailure();
+                if (durableLsn >= lsn)
+                    return;
+
+                // Take everything that may be written, other threads' records included
+                flushing = true;
+                upTo = readyLsn();
+                forceData = dataLsn > takenLsn;
+                int records = (int) (upTo - takenLsn);
+                int cut = pendingEnds[records - 1];
+                group = ByteBuffer.allocate(cut).put(pending.array(), 0, cut).flip();
+                pending.flip().position(cut);
+                pending.compact();
+                int left = (int) (appendedLsn - upTo);
+                for (int i = 0; i < left; i++)
+                    pendingEnds[i] = pendingEnds[records + i] - cut;
+                takenLsn = upTo;
+            }
+            writeGroup(group, upTo, forceData);
+        }
+    }
+
+    // Writes and forces a group outside the monitor, then wakes its waiters.
+    // The data its records point at is forced first.
+    private void writeGroup(ByteBuffer group, long upTo, boolean forceData) throws IOException {
+        IOException error = null;
+        long position;
+        synchronized (this) {
+            position = writePosition;
+            writePosition += group.remaining();
+        }
+        try {
+            if (forceData)
+                volume.flush();
+            while (group.hasRemaining())
+                position += channel.write(group, position);
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            flushing = false;
+            if (error == null) {
+                durableLsn = Math.max(durableLsn, upTo);
+                forces++;
+            } else {
+                failure = error;
+            }
+            notifyAll();
+        }
+        if (error != null)
+            throw error;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("journal write failed", failure);
+    }
+
+    // BATCHED/ASYNC: forces a group once it has maxBatch records or its oldest
+    // record has waited maxDelay
+    private void runFlusher() {
+        while (true) {
+            long lsn;
+            synchronized (this) {
+                try {
+                    while (!closed) {
+                        long waiting = readyLsn() - durableLsn;
+                        if (waiting > 0 && !flushing) {
+                            long age = System.nanoTime() - oldestPendingNanos;
+                            if (waiting >= maxBatch || age >= maxDelayNanos)
+                                break;
+                            wait(Math.max(1, (maxDelayNanos - age) / 1_000_000L));
+                        } else {
+                            wait(Math.max(1, maxDelayNanos / 1_000_000L));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed)
+                    return;
+                lsn = readyLsn();
+            }
+            try {
+                flushTo(lsn);
+            } catch (IOException e) {
+                // Recorded in failure; waiters see it
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.storage.BlockDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * In-memory image of the metadata region at the start of a volume, laid out
+ * exactly as it is on disk so mounting is one bulk read and saving a change is
+ * a write of the few blocks it touched. All integers are big-endian.
+ *
+ *   superblock:  int magic | int version | int blockSize | int blockCount | int maxFiles | long volumeId |
+ *                int flags
+ *   inode table: maxFiles x (byte nameLength | 11 chars name | long size | int firstFNode |
+ *                int compressedSize), padded to 40 bytes
+ *   FNode table: fnodeCount x (int blockIndex | int next), blockIndex -1 when free
+ *   free bitmap: one bit per data block, set when in use (BitSet byte order)
+ *
+ * The geometry is chosen at format time and read back from the superblock on
+ * every mount. The region is padded to whole blocks; data block i lives at
+ * device block getMetadataBlocks() + i. The image doubles as the in-memory
+ * inode and FNode tables, so they cost a few bytes per entry, not an object.
+ *
+ * A deduplicating volume (FLAG_DEDUP) lets FNodes of several files name the
+ * same block, and has DEDUP_FNODES_PER_BLOCK FNodes per data block so its
+ * files can reference more blocks than it has; otherwise fnodeCount is
+ * blockCount.
+ *
+ * size is the file's length as read back; compressedSize is the length of its
+ * deflated form on disk, or 0 if the contents are stored as they are. Totals
+ * of both over the inode table are kept as the inodes change, so reporting
+ * them never scans the table.
+ *
+ * When recording, every change is also kept as a (int position | int length |
+ * bytes) entry for the journal; replaying those entries reproduces the image.
+ */
+class VolumeMetadata {
+
+    static final int MAGIC = 0x43465331; // "CFS1"
+    static final int VERSION = 5;
+    static final int SUPERBLOCK_BYTES = 32;
+
+    static final int FLAG_DEDUP = 1;
+    static final int DEDUP_FNODES_PER_BLOCK = 4;
+
+    private static final int NAME_CHARS = 11;
+    private static final int INODE_BYTES = 40;
+    private static final int FNODE_BYTES = 8;
+
+    private final int blockSize;
+    private final int blockCount;
+    private final int maxFiles;
+    private final int flags;
+    private final int fnodeCount;
+
+    private final int inodeOffset;
+    private final int fnodeOffset;
+    private final int bitmapOffset;
+    private final int metadataBlocks;
+
+    private final ByteBuffer image;
+    private final BitSet dirty = new BitSet(); // blocks of the image not yet written back
+
+    private final boolean recording;
+    private ByteBuffer changes;
+
+    // Over all inodes: sizes, bytes stored in blocks, how many are compressed
+    private long totalSize;
+    private long totalStored;
+    private int compressedInodes;
+
+    VolumeMetadata(int blockSize, int blockCount, int maxFiles) {
+        this(blockSize, blockCount, maxFiles, 0, false);
+    }
+
+    VolumeMetadata(int blockSize, int blockCount, int maxFiles, int flags, boolean recording) {
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.maxFiles = maxFiles;
+        this.flags = flags;
+
+        if (blockSize < SUPERBLOCK_BYTES || maxFiles <= 0 || blockCount <= 0)
+            throw new IllegalArgumentException("invalid volume geometry");
+        long fnodeCount = (flags & FLAG_DEDUP) != 0 ? (long) blockCount * DEDUP_FNODES_PER_BLOCK : blockCount;
+        if (fnodeCount > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many blocks for a deduplicating volume");
+        this.fnodeCount = (int) fnodeCount;
+
+        long fnodes = SUPERBLOCK_BYTES + (long) maxFiles * INODE_BYTES;
+        long bitmap = fnodes + fnodeCount * FNODE_BYTES;
+        long blocks = (bitmap + (blockCount + 7L) / 8 + blockSize - 1) / blockSize;
+        if (blocks * blockSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("volume metadata would exceed 2 GB");
+
+        this.inodeOffset = SUPERBLOCK_BYTES;
+        this.fnodeOffset = (int) fnodes;
+        this.bitmapOffset = (int) bitmap;
+        this.metadataBlocks = (int) blocks;
+
+        this.image = ByteBuffer.allocate(metadataBlocks * blockSize);
+        this.recording = recording;
+        this.changes = ByteBuffer.allocate(recording ? 256 : 0);
+    }
+
+    /**
+     * Reads the geometry from a superblock and returns an (unloaded) image for
+     * it, or null if the bytes are not a superblock.
+     */
+    static VolumeMetadata probe(ByteBuffer superblock, boolean recording) throws IOException {
+        if (superblock.remaining() < SUPERBLOCK_BYTES || superblock.getInt(0) != MAGIC)
+            return null;
+        if (superblock.getInt(4) != VERSION)
+            throw new IOException("unsupported volume version " + superblock.getInt(4));
+        return new VolumeMetadata(superblock.getInt(8), superblock.getInt(12), superblock.getInt(16),
+                superblock.getInt(28), recording);
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getBlockCount() {
+        return blockCount;
+    }
+
+    int getMaxFiles() {
+        return maxFiles;
+    }
+
+    int getFNodeCount() {
+        return fnodeCount;
+    }
+
+    boolean isDeduplicated() {
+        return (flags & FLAG_DEDUP) != 0;
+    }
+
+    int getMetadataBlocks() {
+        return metadataBlocks;
+    }
+
+    // Random id chosen at format time, so a journal can't be replayed onto
+    // the wrong volume
+    long getVolumeId() {
+        return image.getLong(20);
+    }
+
+    // Resets the image to an empty volume; the whole region becomes dirty
+    void format() {
+        Arrays.fill(image.array(), (byte) 0);
+        image.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, blockSize).putInt(12, blockCount).putInt(16, maxFiles);
+        image.putLong(20, new Random().nextLong()).putInt(28, flags);
+        for (int i = 0; i < fnodeCount; i++)
+            putFNode(i, -1, -1);
+        dirty.set(0, metadataBlocks);
+        changes.clear();
+        countInodes();
+    }
+
+    // Reads the region in one call. Returns false if the device holds no
+    // volume (e.g. a new or foreign file), in which case it should be formatted.
+    boolean load(BlockDevice disk) throws IOException {
+        disk.read(0, image.array(), 0, image.capacity());
+        if (image.getInt(0) != MAGIC)
+            return false;
+        if (image.getInt(4) != VERSION)
+            throw new IOException("unsupported volume version " + image.getInt(4));
+        if (image.getInt(8) != blockSize || image.getInt(12) != blockCount || image.getInt(16) != maxFiles
+                || image.getInt(28) != flags)
+            throw new IOException("volume geometry does not match");
+        dirty.clear();
+        countInodes();
+        return true;
+    }
+
+    // Writes the blocks changed since the last call, one write per dirty run
+    void writeBack(BlockDevice disk) throws IOException {
+        for (int start = dirty.nextSetBit(0); start >= 0; start = dirty.nextSetBit(start)) {
+            int end = dirty.nextClearBit(start);
+            disk.write(start, image.array(), start * blockSize, (end - start) * blockSize);
+            start = end;
+        }
+        dirty.clear();
+    }
+
+    // Changes recorded since the last call, ready to be journaled
+    ByteBuffer takeChanges() {
+        changes.flip();
+        ByteBuffer taken = ByteBuffer.allocate(changes.remaining()).put(changes).flip();
+        changes.clear();
+        return taken;
+    }
+
+    // Re-applies journaled changes to the image; countInodes() once done
+    void apply(ByteBuffer record) {
+        while (record.hasRemaining()) {
+            int pos = record.getInt();
+            int len = record.getInt();
+            record.get(image.array(), pos, len);
+            dirty.set(pos / blockSize, (pos + len - 1) / blockSize + 1);
+        }
+    }
+
+    void putInode(int slot, String name, long size, int firstFNode) {
+        int pos = inodeOffset + slot * INODE_BYTES;
+        count(slot, -1);
+        image.put(pos, (byte) name.length());
+        for (int i = 0; i < NAME_CHARS; i++)
+            image.putChar(pos + 1 + 2 * i, i < name.length() ? name.charAt(i) : 0);
+        image.putLong(pos + 1 + 2 * NAME_CHARS, size);
+        image.putInt(pos + 9 + 2 * NAME_CHARS, firstFNode);
+        count(slot, 1);
+        touch(pos, INODE_BYTES);
+    }
+
+    void putInodeCompressedSize(int slot, int compressedSize) {
+        int pos = inodeOffset + slot * INODE_BYTES + 13 + 2 * NAME_CHARS;
+        count(slot, -1);
+        image.putInt(pos, compressedSize);
+        count(slot, 1);
+        touch(pos, 4);
+    }
+
+    // Zeroes the whole entry, so a file created in the slot later starts clean
+    void clearInode(int slot) {
+        int pos = inodeOffset + slot * INODE_BYTES;
+        count(slot, -1);
+        Arrays.fill(image.array(), pos, pos + INODE_BYTES, (byte) 0);
+        touch(pos, INODE_BYTES);
+    }
+
+    // Recomputes the totals from the whole table, e.g. after a replay
+    void countInodes() {
+        totalSize = 0;
+        totalStored = 0;
+        compressedInodes = 0;
+        for (int slot = 0; slot < maxFiles; slot++)
+            count(slot, 1);
+    }
+
+    // Adds the slot's inode to the totals, or with sign -1 takes it out; an
+    // empty slot is all zeroes and counts for nothing
+    private void count(int slot, int sign) {
+        long size = getInodeSize(slot);
+        int compressedSize = getInodeCompressedSize(slot);
+        totalSize += sign * size;
+        totalStored += sign * (compressedSize > 0 ? compressedSize : size);
+        if (compressedSize > 0)
+            compressedInodes += sign;
+    }
+
+    long getTotalSize() {
+        return totalSize;
+    }
+
+    long getTotalStoredSize() {
+        return totalStored;
+    }
+
+    int getCompressedInodes() {
+        return compressedInodes;
+    }
+
+    // Null for an empty slot
+    String getInodeName(int slot) {
+        int pos = inodeOffset + slot * INODE_BYTES;
+        int len = image.get(pos);
+        if (len <= 0)
+            return null;
+        char[] name = new char[len];
+        for (int i = 0; i < len; i++)
+            name[i] = image.getChar(pos + 1 + 2 * i);
+        return new String(name);
+    }
+
+    long getInodeSize(int slot) {
+        return image.getLong(inodeOffset + slot * INODE_BYTES + 1 + 2 * NAME_CHARS);
+    }
+
+    int getInodeFirstFNode(int slot) {
+        return image.getInt(inodeOffset + slot * INODE_BYTES + 9 + 2 * NAME_CHARS);
+    }
+
+    int getInodeCompressedSize(int slot) {
+        return image.getInt(inodeOffset + slot * INODE_BYTES + 13 + 2 * NAME_CHARS);
+    }
+
+    void putFNode(int index, int blockIndex, int next) {
+        int pos = fnodeOffset + index * FNODE_BYTES;
+        image.putInt(pos, blockIndex).putInt(pos + 4, next);
+        touch(pos, FNODE_BYTES);
+    }
+
+    int getFNodeBlock(int index) {
+        return image.getInt(fnodeOffset + index * FNODE_BYTES);
+    }
+
+    int getFNodeNext(int index) {
+        return image.getInt(fnodeOffset + index * FNODE_BYTES + 4);
+    }
+
+    void setUsed(long start, long count, boolean used) {
+        for (long b = start; b < start + count; b++) {
+            int pos = bitmapOffset + (int) (b >>> 3);
+            int bit = 1 << (b & 7);
+            image.put(pos, (byte) (used ? image.get(pos) | bit : image.get(pos) & ~bit));
+        }
+        touch(bitmapOffset + (int) (start >>> 3), (int) ((count + 7) / 8) + 1);
+    }
+
+    // The bitmap as a BitSet, for scanning runs of used blocks at mount
+    BitSet getUsedBlocks() {
+        return BitSet.valueOf(image.duplicate().position(bitmapOffset).limit(bitmapOffset + (blockCount + 7) / 8));
+    }
+
+    private void touch(int pos, int len) {
+        int end = Math.min(pos + len, image.capacity());
+        dirty.set(pos / blockSize, (end - 1) / blockSize + 1);
+
+        if (recording) {
+            if (changes.remaining() < 8 + end - pos) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(changes.capacity() * 2, changes.position() + 8 + end - pos));
+                changes.flip();
+                changes = bigger.put(changes);
+            }
+            changes.putInt(pos).putInt(end - pos).put(image.array(), pos, end - pos);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package ca.concordia.filesystem.allocation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Free-space allocator for a volume of fixed-size blocks.
+ *
+ * A long[] bitmap (bit set = used) is the source of truth and is scanned a
+ * word at a time. Alongside it the free space is indexed as extents, by offset
+ * (to merge neighbours on free) and by size (for best-fit).
+ *
+ * Not thread-safe: callers serialize access (FileSystemManager does so under
+ * its lock).
+ */
+public class BlockAllocator {
+
+    public enum Policy {
+        FIRST_FIT,  // lowest-addressed run that fits
+        BEST_FIT,   // smallest free extent that fits
+        NEXT_FIT    // first fit, resuming where the last allocation ended
+    }
+
+    private final long blockCount;
+    private final long[] bitmap;
+    private final Policy policy;
+
+    // Free extents: start -> length, and the same extents ordered by (length, start)
+    private final TreeMap<Long, Long> extentsByOffset = new TreeMap<>();
+    private final TreeSet<long[]> extentsBySize = new TreeSet<>(
+            Comparator.<long[]>comparingLong(e -> e[1]).thenComparingLong(e -> e[0]));
+
+    private long freeBlocks;
+    private long cursor; // NEXT_FIT resume point
+
+    // Statistics
+    private long allocations;
+    private long failedAllocations;
+    private long frees;
+
+    public BlockAllocator(long blockCount, Policy policy) {
+        if (blockCount <= 0)
+            throw new IllegalArgumentException("blockCount must be positive");
+        this.blockCount = blockCount;
+        this.bitmap = new long[(int) ((blockCount + 63) >>> 6)];
+        this.policy = policy;
+        this.freeBlocks = blockCount;
+        addExtent(0, blockCount);
+    }
+
+    /**
+     * Allocates count contiguous blocks and returns the first, or -1 if no free
+     * run is long enough.
+     */
+    public long allocate(int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("count must be positive");
+
+        long start = findRun(count);
+        if (start == -1) {
+            failedAllocations++;
+            return -1;
+        }
+
+        markUsed(start, count);
+        cursor = start + count;
+        allocations++;
+        return start;
+    }
+
+    /**
+     * Allocates count blocks in as few runs as possible: one contiguous run if the
+     * policy finds one, otherwise the largest free extents first. Returns the
+     * runs as packed (start, length) pairs, or null (allocating nothing) if
+     * fewer than count blocks are free.
+     */
+    public long[] allocateScattered(int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("count must be positive");
+        if (count > freeBlocks) {
+            failedAllocations++;
+            return null;
+        }
+
+        long start = findRun(count);
+        if (start != -1) {
+            markUsed(start, count);
+            cursor = start + count;
+            allocations++;
+            return new long[]{start, count};
+        }
+
+        long[] runs = new long[8];
+        int n = 0;
+        int remaining = count;
+        while (remaining > 0) {
+            long[] largest = extentsBySize.last();
+            long run = Math.min(largest[1], remaining);
+            long runStart = largest[0];
+            markUsed(runStart, (int) run);
+
+            if (n + 2 > runs.length)
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            runs[n++] = runStart;
+            runs[n++] = run;
+            remaining -= run;
+        }
+        allocations++;
+        return Arrays.copyOf(runs, n);
+    }
+
+    /**
+     * Allocates the given blocks if all of them are free. Used to grow a file in
+     * place and to rebuild the allocator from persisted metadata.
+     */
+    public boolean allocateAt(long start, int count) {
+        if (start < 0 || count <= 0 || start + count > blockCount)
+            return false;
+        if (nextSetBit(start) < start + count)
+            return false;
+
+        markUsed(start, count);
+        allocations++;
+        return true;
+    }
+
+    public void free(long start, int count) {
+        if (start < 0 || count <= 0 || start + count > blockCount)
+            throw new IllegalArgumentException("block range out of bounds");
+        if (nextClearBit(start) < start + count)
+            throw new IllegalStateException("freeing blocks that are not allocated");
+
+        setRange(start, start + count, false);
+        freeBlocks += count;
+        frees++;
+
+        // Merge with the neighbouring free extents
+        long mergedStart = start;
+        long mergedEnd = start + count;
+
+        Map.Entry<Long, Long> before = extentsByOffset.floorEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            removeExtent(before.getKey(), before.getValue());
+            mergedStart = before.getKey();
+        }
+        Map.Entry<Long, Long> after = extentsByOffset.ceilingEntry(start + count);
+        if (after != null && after.getKey() == start + count) {
+            removeExtent(after.getKey(), after.getValue());
+            mergedEnd = after.getKey() + after.getValue();
+        }
+        addExtent(mergedStart, mergedEnd - mergedStart);
+    }
+
+    public boolean isFree(long block) {
+        return (bitmap[(int) (block >>> 6)] & (1L << block)) == 0;
+    }
+
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    public long getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    public long getUsedBlocks() {
+        return blockCount - freeBlocks;
+    }
+
+    public int getFreeExtentCount() {
+        return extentsByOffset.size();
+    }
+
+    public long getLargestFreeExtent() {
+        return extentsBySize.isEmpty() ? 0 : extentsBySize.last()[1];
+    }
+
+    /**
+     * 0 when all free space is one extent, approaching 1 as it splinters into
+     * many small extents.
+     */
+    public double getFragmentation() {
+        return freeBlocks == 0 ? 0.0 : 1.0 - (double) getLargestFreeExtent() / freeBlocks;
+    }
+
+    public long getAllocations() {
+        return allocations;
+    }
+
+    public long getFailedAllocations() {
+        return failedAllocations;
+    }
+
+    public long getFrees() {
+        return frees;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("blocks=%d used=%d free=%d extents=%d largest=%d fragmentation=%.3f"
+                        + " allocations=%d failed=%d frees=%d",
+                blockCount, getUsedBlocks(), freeBlocks, getFreeExtentCount(), getLargestFreeExtent(),
+                getFragmentation(), allocations, failedAllocations, frees);
+    }
+
+    private long findRun(int count) {
+        switch (policy) {
+            case BEST_FIT:
+                long[] fit = extentsBySize.ceiling(new long[]{-1, count});
+                return fit == null ? -1 : fit[0];
+            case NEXT_FIT:
+                long start = findFreeRun(cursor, count);
+                if (start == -1 && cursor > 0)
+                    start = findFreeRun(0, count);
+                return start;
+            default:
+                return findFreeRun(0, count);
+        }
+    }
+
+    // First free run of at least count blocks at or after from, skipping whole words at a time
+    private long findFreeRun(long from, int count) {
+        long pos = from;
+        while (pos < blockCount) {
+            long start = nextClearBit(pos);
+            if (start >= blockCount)
+                return -1;
+            long end = nextSetBit(start);
+            if (end - start >= count)
+                return start;
+            pos = end;
+        }
+        return -1;
+    }
+
+    private long nextClearBit(long from) {
+        int w = (int) (from >>> 6);
+        if (w >= bitmap.length)
+            return blockCount;
+        long word = ~bitmap[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == bitmap.length)
+                return blockCount;
+            word = ~bitmap[w];
+        }
+        return Math.min(((long) w << 6) + Long.numberOfTrailingZeros(word), blockCount);
+    }
+
+    private long nextSetBit(long from) {
+        int w = (int) (from >>> 6);
+        if (w >= bitmap.length)
+            return blockCount;
+        long word = bitmap[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == bitmap.length)
+                return blockCount;
+            word = bitmap[w];
+        }
+        return Math.min(((long) w << 6) + Long.numberOfTrailingZeros(word), blockCount);
+    }
+
+    private void markUsed(long start, int count) {
+        setRange(start, start + count, true);
+        freeBlocks -= count;
+
+        // Split the free extent that contains the range
+        Map.Entry<Long, Long> e = extentsByOffset.floorEntry(start);
+        long eStart = e.getKey();
+        long eEnd = eStart + e.getValue();
+        removeExtent(eStart, e.getValue());
+        if (start > eStart)
+            addExtent(eStart, start - eStart);
+        if (start + count < eEnd)
+            addExtent(start + count, eEnd - start - count);
+    }
+
+    // Sets or clears bits [from, to), a whole word at a time where possible
+    private void setRange(long from, long to, boolean used) {
+        int first = (int) (from >>> 6);
+        int last = (int) ((to - 1) >>> 6);
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+
+        for (int w = first; w <= last; w++) {
+            long mask = -1L;
+            if (w == first) mask &= firstMask;
+            if (w == last) mask &= lastMask;
+            if (used)
+                bitmap[w] |= mask;
+            else
+                bitmap[w] &= ~mask;
+        }
+    }
+
+    private void addExtent(long start, long length) {
+        extentsByOffset.put(start, length);
+        extentsBySize.add(new long[]{start, length});
+    }
+
+    private void removeExtent(long start, long length) {
+        extentsByOffset.remove(start);
+        extentsBySize.remove(new long[]{start, length});
+    }
+}
@@ -5,10 +5,10 @@ import java.util.LinkedList;
 public class FEntry {
 
     private String filename;
-    private short filesize;
-    private short firstBlock; // Pointers to data blocks
+    private long filesize;
+    private int firstBlock; // Index of the first FNode in the file's block chain, -1 if empty
 
-    public FEntry(String filename, short filesize, short firstblock) throws IllegalArgumentException{
+    public FEntry(String filename, long filesize, int firstblock) throws IllegalArgumentException{
         //Check filename is max 11 bytes long
         if (filename.length() > 11) {
             throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
@@ -30,22 +30,22 @@ public class FEntry {
         this.filename = filename;
     }
 
-    public short getFilesize() {
+    public long getFilesize() {
         return filesize;
     }
 
-    public void setFilesize(short filesize) {
+    public void setFilesize(long filesize) {
         if (filesize < 0) {
             throw new IllegalArgumentException("Filesize cannot be negative.");
         }
         this.filesize = filesize;
     }
 
-    public short getFirstBlock() {
+    public int getFirstBlock() {
         return firstBlock;
     }
 
-    public void setFirstBlock(short fb) {
+    public void setFirstBlock(int fb) {
     this.firstBlock = fb;
     }
 }
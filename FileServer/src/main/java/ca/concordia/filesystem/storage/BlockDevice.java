@@ -0,0 +1,32 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Fixed-size block storage behind a FileSystemManager. Reads and writes start at
+ * the first byte of a block and may run across consecutive blocks, so a
+ * contiguous run of blocks moves in one call.
+ */
+public interface BlockDevice extends Closeable {
+
+    int getBlockSize();
+
+    long getBlockCount();
+
+    /** Reads len bytes starting at the beginning of block. */
+    void read(long block, byte[] dst, int off, int len) throws IOException;
+
+    /** Writes len bytes starting at the beginning of block and zero-fills the rest of the last block. */
+    void write(long block, byte[] src, int off, int len) throws IOException;
+
+    /** Zero-fills count blocks starting at block. */
+    void zero(long block, int count) throws IOException;
+
+    /** Sends up to count bytes starting at byte position to target without copying them onto the heap. */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    /** Forces written blocks to the storage medium. */
+    void flush() throws IOException;
+}
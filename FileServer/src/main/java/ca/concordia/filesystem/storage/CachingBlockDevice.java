@@ -0,0 +1,235 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read cache of whole blocks in front of another BlockDevice, bounded by a
+ * byte budget and evicting with CLOCK (a hit only sets a bit, so hits never
+ * reorder anything). Writes go straight through and drop the blocks they
+ * touch from the cache.
+ *
+ * The frames are split into segments by block number, each with its own
+ * monitor, so concurrent readers of different blocks rarely contend.
+ * transferTo bypasses the cache and streams from the underlying device.
+ */
+public class CachingBlockDevice implements BlockDevice {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final BlockDevice delegate;
+    private final int blockSize;
+    private final Segment[] segments;
+
+    // Bumped by every write; a block read from disk is only cached if no
+    // write happened since the read started, so stale data never gets in
+    private final AtomicLong writes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CachingBlockDevice(BlockDevice delegate, long cacheBytes) {
+        this.delegate = delegate;
+        this.blockSize = delegate.getBlockSize();
+
+        int frames = (int) Math.max(1, Math.min(Integer.MAX_VALUE, cacheBytes / blockSize));
+        int count = Math.min(MAX_SEGMENTS, frames);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++)
+            segments[i] = new Segment(frames / count + (i < frames % count ? 1 : 0));
+    }
+
+    public BlockDevice getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public long getBlockCount() {
+        return delegate.getBlockCount();
+    }
+
+    @Override
+    public void read(long block, byte[] dst, int off, int len) throws IOException {
+        int end = off + len;
+        long b = block;
+        while (off < end) {
+            if (segment(b).get(b, dst, off, Math.min(blockSize, end - off))) {
+                hits.increment();
+                off += Math.min(blockSize, end - off);
+                b++;
+                continue;
+            }
+
+            // Fetch the whole run of missing blocks from here with one read
+            long start = b;
+            int startOff = off;
+            do {
+                misses.increment();
+                off += Math.min(blockSize, end - off);
+                b++;
+            } while (off < end && !segment(b).contains(b));
+            load(start, (int) (b - start), dst, startOff, off - startOff);
+        }
+    }
+
+    private void load(long start, int blocks, byte[] dst, int off, int len) throws IOException {
+        long version = writes.get();
+        byte[] buf = new byte[blocks * blockSize];
+        delegate.read(start, buf, 0, buf.length);
+        System.arraycopy(buf, 0, dst, off, len);
+        for (int i = 0; i < blocks; i++)
+            segment(start + i).put(start + i, buf, i * blockSize, version);
+    }
+
+    @Override
+    public void write(long block, byte[] src, int off, int len) throws IOException {
+        delegate.write(block, src, off, len);
+        invalidate(block, (len + blockSize - 1) / blockSize);
+    }
+
+    @Override
+    public void zero(long block, int count) throws IOException {
+        delegate.zero(block, count);
+        invalidate(block, count);
+    }
+
+    private void invalidate(long block, int count) {
+        writes.incrementAndGet();
+        for (long b = block; b < block + count; b++)
+            segment(b).remove(b);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return delegate.transferTo(position, count, target);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    public long getCapacityBlocks() {
+        long total = 0;
+        for (Segment s : segments)
+            total += s.blocks.length;
+        return total;
+    }
+
+    public long getCachedBlocks() {
+        long total = 0;
+        for (Segment s : segments)
+            total += s.size();
+        return total;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        long h = getHits();
+        long m = getMisses();
+        return String.format("capacity=%d cached=%d hits=%d misses=%d evictions=%d hitRate=%.3f",
+                getCapacityBlocks(), getCachedBlocks(), h, m, getEvictions(), h + m == 0 ? 0.0 : h / (double) (h + m));
+    }
+
+    private Segment segment(long block) {
+        return segments[(int) (block % segments.length)];
+    }
+
+    private final class Segment {
+        private final HashMap<Long, Integer> frameOf = new HashMap<>();
+        private final long[] blocks;        // block held by each frame, -1 if empty
+        private final boolean[] referenced; // CLOCK bit, set on every hit
+        private final byte[] data;
+        private final int[] freeFrames;
+        private int freeCount;
+        private int hand;
+
+        Segment(int frames) {
+            this.blocks = new long[frames];
+            this.referenced = new boolean[frames];
+            this.data = new byte[frames * blockSize];
+            this.freeFrames = new int[frames];
+            for (int i = 0; i < frames; i++) {
+                blocks[i] = -1;
+                freeFrames[i] = frames - 1 - i;
+            }
+            this.freeCount = frames;
+        }
+
+        synchronized boolean get(long block, byte[] dst, int off, int len) {
+            Integer frame = frameOf.get(block);
+            if (frame == null)
+                return false;
+            referenced[frame] = true;
+            System.arraycopy(data, frame * blockSize, dst, off, len);
+            return true;
+        }
+
+        synchronized boolean contains(long block) {
+            return frameOf.containsKey(block);
+        }
+
+        synchronized int size() {
+            return frameOf.size();
+        }
+
+        synchronized void put(long block, byte[] src, int off, long version) {
+            if (writes.get() != version || frameOf.containsKey(block))
+                return;
+
+            int frame = freeCount > 0 ? freeFrames[--freeCount] : evict();
+            System.arraycopy(src, off, data, frame * blockSize, blockSize);
+            blocks[frame] = block;
+            referenced[frame] = false;
+            frameOf.put(block, frame);
+        }
+
+        synchronized void remove(long block) {
+            Integer frame = frameOf.remove(block);
+            if (frame != null) {
+                blocks[frame] = -1;
+                freeFrames[freeCount++] = frame;
+            }
+        }
+
+        // Sweeps the hand past recently used frames, clearing their bits, and
+        // frees the first one that wasn't
+        private int evict() {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % blocks.length;
+            }
+            int frame = hand;
+            hand = (hand + 1) % blocks.length;
+            frameOf.remove(blocks[frame]);
+            evictions.increment();
+            return frame;
+        }
+    }
+}
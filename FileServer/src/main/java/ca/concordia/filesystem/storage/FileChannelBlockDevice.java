@@ -0,0 +1,159 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Block device on positional FileChannel I/O. Nothing shares a file pointer, so
+ * any number of threads can read and write different blocks at the same time
+ * without locking.
+ *
+ * FileChannel has no positional scatter/gather, so a run of blocks is staged in
+ * a pooled direct buffer together with its zero padding and moved with one
+ * positional call. (A heap buffer would be copied through a temporary direct
+ * buffer by the JDK anyway, so the staging copy costs nothing extra.) The pool
+ * is shared rather than per-thread so thousands of connection threads don't
+ * each pin a buffer.
+ */
+public class FileChannelBlockDevice implements BlockDevice {
+
+    private static final int MAX_STAGING_BYTES = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final long blockCount;
+    private final int stagingBytes;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> staging = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer zeros; // only ever read through duplicates
+
+    public FileChannelBlockDevice(String filename, int blockSize, long blockCount) throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+
+        // Grow the file if needed, but never shrink it: anything past the end
+        // of the device may still be somebody's data
+        long total = blockSize * blockCount;
+        if (channel.size() < total)
+            channel.write(ByteBuffer.allocate(1), total - 1);
+
+        // Whole blocks only, so a staged run always ends on a block boundary
+        this.stagingBytes = Math.max(blockSize, (MAX_STAGING_BYTES / blockSize) * blockSize);
+        this.zeros = ByteBuffer.allocateDirect(stagingBytes);
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public void read(long block, byte[] dst, int off, int len) throws IOException {
+        ByteBuffer buf = acquire();
+        try {
+            long pos = block * blockSize;
+            while (len > 0) {
+                int n = Math.min(len, stagingBytes);
+                buf.clear().limit(n);
+                readFully(buf, pos);
+                buf.flip();
+                buf.get(dst, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        } finally {
+            release(buf);
+        }
+    }
+
+    @Override
+    public void write(long block, byte[] src, int off, int len) throws IOException {
+        ByteBuffer buf = acquire();
+        try {
+            long pos = block * blockSize;
+            while (len > 0) {
+                int n = Math.min(len, stagingBytes);
+                buf.clear();
+                buf.put(src, off, n);
+
+                // Zero-fill the rest of the last block in the same call
+                int tail = n % blockSize;
+                if (tail != 0)
+                    buf.put(zeros.duplicate().limit(blockSize - tail));
+
+                buf.flip();
+                writeFully(buf, pos);
+                pos += buf.limit();
+                off += n;
+                len -= n;
+            }
+        } finally {
+            release(buf);
+        }
+    }
+
+    @Override
+    public void zero(long block, int count) throws IOException {
+        long pos = block * blockSize;
+        long len = (long) count * blockSize;
+        while (len > 0) {
+            int n = (int) Math.min(len, stagingBytes);
+            writeFully(zeros.duplicate().limit(n), pos);
+            pos += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, count, target);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer buf = staging.poll();
+        return buf != null ? buf : ByteBuffer.allocateDirect(stagingBytes);
+    }
+
+    private void release(ByteBuffer buf) {
+        if (staging.size() < MAX_POOLED_BUFFERS)
+            staging.offer(buf);
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                throw new IOException("read past end of device");
+            pos += n;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining())
+            pos += channel.write(buf, pos);
+    }
+}
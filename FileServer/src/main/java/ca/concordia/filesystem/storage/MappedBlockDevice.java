@@ -0,0 +1,132 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Block device on a memory-mapped backing file. Block reads and writes are
+ * memory copies into the mapping (no syscall); dirty pages reach the file when
+ * the OS writes them back or when flush() forces them.
+ *
+ * A single MappedByteBuffer is limited to 2 GB, so the volume is mapped as a
+ * series of block-aligned segments.
+ */
+public class MappedBlockDevice implements BlockDevice {
+
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final byte[] ZEROS = new byte[4096];
+
+    private final RandomAccessFile file;
+    private final int blockSize;
+    private final long blockCount;
+    private final long segmentBytes;
+    private final MappedByteBuffer[] segments;
+
+    public MappedBlockDevice(String filename, int blockSize, long blockCount) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+
+        // Grow the file if needed, never truncate it
+        long total = blockSize * blockCount;
+        if (this.file.length() < total)
+            this.file.setLength(total);
+
+        this.segmentBytes = (MAX_SEGMENT_BYTES / blockSize) * blockSize;
+        int count = (int) ((total + segmentBytes - 1) / segmentBytes);
+        this.segments = new MappedByteBuffer[count];
+
+        FileChannel channel = file.getChannel();
+        for (int i = 0; i < count; i++) {
+            long start = i * segmentBytes;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(segmentBytes, total - start));
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    // Absolute get/put only, so concurrent callers never share a buffer position
+
+    @Override
+    public void read(long block, byte[] dst, int off, int len) throws IOException {
+        long pos = block * blockSize;
+        while (len > 0) {
+            MappedByteBuffer seg = segments[(int) (pos / segmentBytes)];
+            int index = (int) (pos % segmentBytes);
+            int n = Math.min(len, seg.capacity() - index);
+            seg.get(index, dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(long block, byte[] src, int off, int len) throws IOException {
+        long pos = block * blockSize;
+        put(pos, src, off, len);
+
+        int tail = len % blockSize;
+        if (tail != 0)
+            fill(pos + len, blockSize - tail);
+    }
+
+    @Override
+    public void zero(long block, int count) throws IOException {
+        fill(block * blockSize, (long) count * blockSize);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        MappedByteBuffer seg = segments[(int) (position / segmentBytes)];
+        int index = (int) (position % segmentBytes);
+        ByteBuffer view = seg.duplicate();
+        view.position(index).limit((int) Math.min(seg.capacity(), index + count));
+        return target.write(view);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (MappedByteBuffer seg : segments)
+            seg.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        file.close();
+    }
+
+    private void put(long pos, byte[] src, int off, int len) {
+        while (len > 0) {
+            MappedByteBuffer seg = segments[(int) (pos / segmentBytes)];
+            int index = (int) (pos % segmentBytes);
+            int n = Math.min(len, seg.capacity() - index);
+            seg.put(index, src, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void fill(long pos, long len) {
+        while (len > 0) {
+            int n = (int) Math.min(len, ZEROS.length);
+            put(pos, ZEROS, 0, n);
+            pos += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package ca.concordia.filesystem.storage;
+
+import ca.concordia.metrics.LatencyHistogram;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times every operation on another BlockDevice. A FileSystemManager
+ * puts one directly on top of its storage, under the block cache if there is
+ * one, so the numbers are real device I/O.
+ */
+public class MeteredBlockDevice implements BlockDevice {
+
+    private final BlockDevice delegate;
+
+    private final LatencyHistogram reads = new LatencyHistogram();
+    private final LatencyHistogram writes = new LatencyHistogram();
+    private final LatencyHistogram zeros = new LatencyHistogram();
+    private final LatencyHistogram flushes = new LatencyHistogram();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesTransferred = new LongAdder();
+
+    public MeteredBlockDevice(BlockDevice delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return delegate.getBlockSize();
+    }
+
+    @Override
+    public long getBlockCount() {
+        return delegate.getBlockCount();
+    }
+
+    @Override
+    public void read(long block, byte[] dst, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        delegate.read(block, dst, off, len);
+        reads.record(System.nanoTime() - start);
+        bytesRead.add(len);
+    }
+
+    @Override
+    public void write(long block, byte[] src, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        delegate.write(block, src, off, len);
+        writes.record(System.nanoTime() - start);
+        bytesWritten.add(len);
+    }
+
+    @Override
+    public void zero(long block, int count) throws IOException {
+        long start = System.nanoTime();
+        delegate.zero(block, count);
+        zeros.record(System.nanoTime() - start);
+        bytesWritten.add((long) count * getBlockSize());
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long n = delegate.transferTo(position, count, target);
+        bytesTransferred.add(n);
+        return n;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime();
+        delegate.flush();
+        flushes.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    public void collect(String prefix, Map<String, Number> out) {
+        reads.collect(prefix + ".read", out);
+        writes.collect(prefix + ".write", out);
+        zeros.collect(prefix + ".zero", out);
+        flushes.collect(prefix + ".flush", out);
+        out.put(prefix + ".bytes_read", bytesRead.sum());
+        out.put(prefix + ".bytes_written", bytesWritten.sum());
+        out.put(prefix + ".bytes_transferred", bytesTransferred.sum());
+    }
+}
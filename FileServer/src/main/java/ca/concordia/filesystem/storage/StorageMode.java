@@ -0,0 +1,18 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.IOException;
+
+public enum StorageMode {
+
+    CHANNEL,  // positional FileChannel reads and writes
+    MAPPED;   // memory copies into a MappedByteBuffer
+
+    public BlockDevice open(String filename, int blockSize, long blockCount) throws IOException {
+        switch (this) {
+            case MAPPED:
+                return new MappedBlockDevice(filename, blockSize, blockCount);
+            default:
+                return new FileChannelBlockDevice(filename, blockSize, blockCount);
+        }
+    }
+}
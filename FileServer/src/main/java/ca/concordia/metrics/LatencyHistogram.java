@@ -0,0 +1,101 @@
+package ca.concordia.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with HDR-style log-linear buckets:
+ * every power of two is split into 8 equal sub-buckets, so a percentile is
+ * reported within 12.5% of the true value from 1 ns up to about 18 minutes
+ * (larger values land in the last bucket).
+ *
+ * Every bucket is a LongAdder, so concurrent recorders don't contend on a
+ * shared counter and record() never allocates once the adders have grown
+ * their cells. Reads are not atomic snapshots; a percentile taken while
+ * others record may be off by the few values recorded meanwhile.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;  // 2^40 ns, about 18 minutes
+    private static final int BUCKETS = index((1L << (MAX_EXPONENT + 1)) - 1) + 1;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        buckets[Math.min(index(nanos), BUCKETS - 1)].increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    // Values below 16 get a bucket each; above that, the exponent picks the
+    // group and the 3 bits after the leading one pick the bucket in it
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // Largest value that falls in the bucket
+    private static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    // The value below which the fraction q of recorded values fall, rounded up
+    // to the end of its bucket (but never above the largest value recorded)
+    public long getPercentile(double q) {
+        long n = count.sum();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank)
+                return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    // Adds count, mean, p50, p99, p999 and max under the prefix
+    public void collect(String prefix, Map<String, Number> out) {
+        out.put(prefix + ".count", getCount());
+        out.put(prefix + ".mean_ns", getMean());
+        out.put(prefix + ".p50_ns", getPercentile(0.50));
+        out.put(prefix + ".p99_ns", getPercentile(0.99));
+        out.put(prefix + ".p999_ns", getPercentile(0.999));
+        out.put(prefix + ".max_ns", getMax());
+    }
+}
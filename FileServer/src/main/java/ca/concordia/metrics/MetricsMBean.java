@@ -0,0 +1,85 @@
+package ca.concordia.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Read-only MBean with one attribute per entry of ServerMetrics.snapshot().
+ * Consoles read the attributes one by one, so a snapshot is reused for up to
+ * MAX_AGE instead of being taken again for each of them.
+ */
+class MetricsMBean implements DynamicMBean {
+
+    private static final long MAX_AGE = TimeUnit.SECONDS.toNanos(1);
+
+    private final ServerMetrics metrics;
+    private Map<String, Number> last;
+    private long lastTaken;
+
+    MetricsMBean(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private synchronized Map<String, Number> snapshot() {
+        long now = System.nanoTime();
+        if (last == null || now - lastTaken > MAX_AGE) {
+            last = metrics.snapshot();
+            lastTaken = now;
+        }
+        return last;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = snapshot().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> snapshot = snapshot();
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            if (snapshot.containsKey(name))
+                list.add(new Attribute(name, snapshot.get(name)));
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> snapshot = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> e : snapshot.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                    e.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "File server metrics", attributes,
+                null, new MBeanOperationInfo[0], null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("no operations");
+    }
+}
@@ -0,0 +1,217 @@
+package ca.concordia.metrics;
+
+import ca.concordia.filesystem.FileSystemManager;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of one server: latency and errors per command, bytes on the wire and
+ * connections, plus everything its FileSystemManager reports. Shared by the
+ * connection handlers of both engines and both protocols.
+ *
+ * The numbers are read as a flat map of name to value (snapshot), which the
+ * STATS command prints and the MBean registered by register() exposes as
+ * attributes.
+ */
+public class ServerMetrics {
+
+    // Known commands; anything else is counted as OTHER
+    public static final String[] COMMANDS = {
+            "CREATE", "READ", "WRITE", "DELETE", "LIST", "APPEND", "PATCH", "UPLOAD", "BATCH", "STATS", "OTHER"};
+
+    private final FileSystemManager fsManager;
+    private final LatencyHistogram[] latency = new LatencyHistogram[COMMANDS.length];
+    private final LongAdder[] errors = new LongAdder[COMMANDS.length];
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LongAdder readTimeouts = new LongAdder();
+    private final LongAdder writeTimeouts = new LongAdder();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder commandsRejected = new LongAdder();
+    private final LongAdder tooLarge = new LongAdder();
+    private final LongAdder readPauses = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder migrated = new LongAdder();
+
+    private ObjectName registeredAs;
+
+    public ServerMetrics(FileSystemManager fsManager) {
+        this.fsManager = fsManager;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            latency[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    // Index in COMMANDS of the command a request line starts with, ignoring
+    // case; doesn't allocate
+    public static int commandOf(String line) {
+        for (int i = 0; i < COMMANDS.length - 1; i++) {
+            String c = COMMANDS[i];
+            if (line.regionMatches(true, 0, c, 0, c.length())
+                    && (line.length() == c.length() || line.charAt(c.length()) == ' '))
+                return i;
+        }
+        return COMMANDS.length - 1;
+    }
+
+    public void recordCommand(int command, long nanos, boolean ok) {
+        latency[command].record(nanos);
+        if (!ok)
+            errors[command].increment();
+    }
+
+    public void addBytesIn(long n) {
+        bytesIn.add(n);
+    }
+
+    public void addBytesOut(long n) {
+        bytesOut.add(n);
+    }
+
+    public void connectionOpened() {
+        opened.increment();
+    }
+
+    public void connectionClosed() {
+        closed.increment();
+    }
+
+    public void connectionRejected() {
+        rejected.increment();
+    }
+
+    // A connection closed for sending nothing within the idle timeout
+    public void idleTimeout() {
+        idleTimeouts.increment();
+    }
+
+    // A connection closed for sending part of a request and stalling
+    public void readTimeout() {
+        readTimeouts.increment();
+    }
+
+    // A connection closed for not taking its replies
+    public void writeTimeout() {
+        writeTimeouts.increment();
+    }
+
+    public void commandAdmitted() {
+        admitted.increment();
+    }
+
+    public void commandFinished() {
+        finished.increment();
+    }
+
+    // delta is 1 when a command starts waiting for a slot, -1 when it stops
+    public void commandQueued(int delta) {
+        queued.add(delta);
+    }
+
+    // A command answered BUSY
+    public void commandRejected() {
+        commandsRejected.increment();
+    }
+
+    // A line or frame over the size limit
+    public void requestTooLarge() {
+        tooLarge.increment();
+    }
+
+    // Reading from a connection paused until its replies are taken
+    public void readPaused() {
+        readPauses.increment();
+    }
+
+    // A command passed on to the cluster node holding its file
+    public void commandForwarded() {
+        forwarded.increment();
+    }
+
+    // Files handed over to a node joining the cluster
+    public void filesMigrated(long n) {
+        migrated.add(n);
+    }
+
+    public long getActiveConnections() {
+        return opened.sum() - closed.sum();
+    }
+
+    public Map<String, Number> snapshot() {
+        Map<String, Number> out = new LinkedHashMap<>();
+        out.put("connections.active", getActiveConnections());
+        out.put("connections.total", opened.sum());
+        out.put("connections.rejected", rejected.sum());
+        out.put("connections.idle_timeouts", idleTimeouts.sum());
+        out.put("connections.read_timeouts", readTimeouts.sum());
+        out.put("connections.write_timeouts", writeTimeouts.sum());
+        out.put("commands.in_flight", admitted.sum() - finished.sum());
+        out.put("commands.queued", queued.sum());
+        out.put("commands.rejected", commandsRejected.sum());
+        out.put("requests.too_large", tooLarge.sum());
+        out.put("backpressure.pauses", readPauses.sum());
+        out.put("cluster.forwarded", forwarded.sum());
+        out.put("cluster.migrated", migrated.sum());
+        out.put("bytes.in", bytesIn.sum());
+        out.put("bytes.out", bytesOut.sum());
+        for (int i = 0; i < COMMANDS.length; i++) {
+            latency[i].collect("cmd." + COMMANDS[i], out);
+            out.put("cmd." + COMMANDS[i] + ".errors", errors[i].sum());
+        }
+        fsManager.collectMetrics(out);
+        return out;
+    }
+
+    // One line of space-separated name=value pairs, only the names starting
+    // with prefix (all of them if it is empty)
+    public String report(String prefix) {
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+            if (!e.getKey().startsWith(prefix))
+                continue;
+            if (line.length() > 0)
+                line.append(' ');
+            line.append(e.getKey()).append('=');
+            Number v = e.getValue();
+            if (v instanceof Double)
+                line.append(String.format("%.3f", v.doubleValue()));
+            else
+                line.append(v);
+        }
+        return line.toString();
+    }
+
+    // Exposes the snapshot over JMX as ca.concordia:type=FileServer,port=<port>
+    public synchronized void register(int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("ca.concordia:type=FileServer,port=" + port);
+            server.registerMBean(new MetricsMBean(this), name);
+            registeredAs = name;
+        } catch (Exception e) {
+            System.err.println("Metrics MBean not registered: " + e.getMessage());
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registeredAs == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+        } catch (Exception ignored) {
+        }
+        registeredAs = null;
+    }
+}
@@ -0,0 +1,117 @@
+package ca.concordia.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ReentrantReadWriteLock that records, for its read and write sides, how long
+ * lock() waited and how long the lock was then held (outermost acquisition to
+ * the matching unlock; re-entries aren't counted separately). A read hold is
+ * timed from the first reader in to the last one out, the span a writer waits
+ * behind, so no per-thread state is kept. Several locks may share one Times,
+ * e.g. the stripes of a striped lock.
+ *
+ * Only lock() and unlock() are timed; tryLock and lockInterruptibly behave as
+ * usual but aren't recorded.
+ */
+public class TimedReadWriteLock extends ReentrantReadWriteLock {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final class Times {
+        final LatencyHistogram readWait = new LatencyHistogram();
+        final LatencyHistogram readHold = new LatencyHistogram();
+        final LatencyHistogram writeWait = new LatencyHistogram();
+        final LatencyHistogram writeHold = new LatencyHistogram();
+
+        public void collect(String prefix, Map<String, Number> out) {
+            readWait.collect(prefix + ".read.wait", out);
+            readHold.collect(prefix + ".read.hold", out);
+            writeWait.collect(prefix + ".write.wait", out);
+            writeHold.collect(prefix + ".write.hold", out);
+        }
+    }
+
+    private final Times times;
+    private final TimedReadLock readLock;
+    private final TimedWriteLock writeLock;
+
+    // Threads holding the read lock, and when the first of them took it
+    private final AtomicInteger readers = new AtomicInteger();
+    private volatile long readSince;
+    private long writeSince; // guarded by the write lock itself
+
+    public TimedReadWriteLock(Times times) {
+        this.times = times;
+        this.readLock = new TimedReadLock(this);
+        this.writeLock = new TimedWriteLock(this);
+    }
+
+    @Override
+    public ReentrantReadWriteLock.ReadLock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public ReentrantReadWriteLock.WriteLock writeLock() {
+        return writeLock;
+    }
+
+    private final class TimedReadLock extends ReentrantReadWriteLock.ReadLock {
+        private static final long serialVersionUID = 1L;
+
+        TimedReadLock(ReentrantReadWriteLock lock) {
+            super(lock);
+        }
+
+        @Override
+        public void lock() {
+            long start = System.nanoTime();
+            super.lock();
+            if (getReadHoldCount() == 1) {
+                long now = System.nanoTime();
+                times.readWait.record(now - start);
+                if (readers.getAndIncrement() == 0)
+                    readSince = now;
+            }
+        }
+
+        @Override
+        public void unlock() {
+            if (getReadHoldCount() == 1) {
+                // Read before leaving: once the count is 0 a new reader may reset it
+                long since = readSince;
+                if (readers.decrementAndGet() == 0)
+                    times.readHold.record(System.nanoTime() - since);
+            }
+            super.unlock();
+        }
+    }
+
+    private final class TimedWriteLock extends ReentrantReadWriteLock.WriteLock {
+        private static final long serialVersionUID = 1L;
+
+        TimedWriteLock(ReentrantReadWriteLock lock) {
+            super(lock);
+        }
+
+        @Override
+        public void lock() {
+            long start = System.nanoTime();
+            super.lock();
+            if (getWriteHoldCount() == 1) {
+                long now = System.nanoTime();
+                times.writeWait.record(now - start);
+                writeSince = now;
+            }
+        }
+
+        @Override
+        public void unlock() {
+            if (getWriteHoldCount() == 1)
+                times.writeHold.record(System.nanoTime() - writeSince);
+            super.unlock();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ca.concordia.server;
+
+import ca.concordia.metrics.ServerMetrics;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which connections and commands a server takes on, per its
+ * ServerLimits. Past the limits work is turned away at once with BUSY rather
+ * than queued without bound, so what is admitted keeps its latency while the
+ * rest can be retried elsewhere or later.
+ *
+ * A command holds one of maxInFlight slots while it executes. When waiting is
+ * allowed, up to maxQueued commands may wait queueTimeout for a slot.
+ */
+public class AdmissionControl {
+
+    public static final String BUSY = "BUSY";
+
+    private final ServerMetrics metrics;
+    private final int maxConnections;
+    private final Semaphore slots; // null if unlimited
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    public AdmissionControl(ServerLimits limits, ServerMetrics metrics, boolean mayWait) {
+        this.metrics = metrics;
+        this.maxConnections = limits.getMaxConnections();
+        this.slots = limits.getMaxInFlight() > 0 ? new Semaphore(limits.getMaxInFlight()) : null;
+        this.maxQueued = mayWait ? limits.getMaxQueued() : 0;
+        this.queueTimeoutMillis = limits.getQueueTimeoutMillis();
+    }
+
+    // Takes a connection slot; false if the server is full and the
+    // connection should be turned away
+    public boolean openConnection() {
+        if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void closeConnection() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Takes a command slot, waiting for one if allowed. Returns false if the
+     * command should be answered BUSY; otherwise exit() must follow.
+     */
+    public boolean enter() {
+        if (slots != null && !slots.tryAcquire() && !await()) {
+            metrics.commandRejected();
+            return false;
+        }
+        metrics.commandAdmitted();
+        return true;
+    }
+
+    public void exit() {
+        metrics.commandFinished();
+        if (slots != null)
+            slots.release();
+    }
+
+    private boolean await() {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+        metrics.commandQueued(1);
+        try {
+            return slots.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+            metrics.commandQueued(-1);
+        }
+    }
+}
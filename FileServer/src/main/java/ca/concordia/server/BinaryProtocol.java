@@ -0,0 +1,338 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileRegion;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.ServerMetrics;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing, entered by sending the text command BINARY and
+ * waiting for its "OK". All integers are big-endian.
+ *
+ *   request:  int length | int requestId | byte opcode | short nameLength | name (UTF-8) | payload
+ *   response: int length | int requestId | byte status | payload
+ *
+ * length counts the bytes that follow it. Clients may pipeline any number of
+ * requests; each response echoes its request's id. A READ reply's payload is
+ * streamed from the backing file with FileChannel.transferTo, so it never lands
+ * in a byte[].
+ *
+ * OP_READ_RANGE's payload is long offset | int length and streams that range
+ * (clipped to the end of the file) like READ. A reply's length field is 32
+ * bits, so a READ of more than MAX_STREAMED bytes is refused; such files are
+ * read in ranges. OP_APPEND adds its payload to
+ * the end of the file; a large upload is an OP_WRITE of the first chunk
+ * followed by OP_APPENDs, each frame passing through a bounded buffer.
+ * OP_PATCH's payload is long offset | bytes and overwrites the file there.
+ * OP_STATS answers the server's metrics as STATS does in the text protocol,
+ * using the name field as the prefix filter.
+ *
+ * OP_BATCH carries a sequence of sub-requests as its payload, each encoded as
+ * int length | byte opcode | short nameLength | name | payload, and runs them
+ * under a single file system lock acquisition. Its payload in the reply is the
+ * sequence of sub-replies, int length | byte status | payload (READ data inline).
+ *
+ * A request turned away by the server's AdmissionControl is answered with
+ * STATUS_ERROR and the payload "BUSY". QUIT and STATS always go through.
+ *
+ * On a cluster node a request naming a file another node holds is answered
+ * STATUS_ERROR with "MOVED host:port", inside a batch per sub-request, and
+ * LIST lists only this node's files; the binary protocol is meant for clients
+ * that route by the ring themselves.
+ */
+public class BinaryProtocol {
+
+    public static final byte OP_CREATE = 1;
+    public static final byte OP_READ = 2;
+    public static final byte OP_WRITE = 3;
+    public static final byte OP_DELETE = 4;
+    public static final byte OP_LIST = 5;
+    public static final byte OP_QUIT = 6;
+    public static final byte OP_BATCH = 7;
+    public static final byte OP_READ_RANGE = 8;
+    public static final byte OP_APPEND = 9;
+    public static final byte OP_PATCH = 10;
+    public static final byte OP_STATS = 11;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    // Most a streamed reply can carry, its length also counting id and status
+    public static final long MAX_STREAMED = Integer.MAX_VALUE - 5;
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    /**
+     * A reply is a header (plus any small inline payload) and, for READ, a file
+     * region to stream after it.
+     */
+    public static final class Reply {
+        private final ByteBuffer head;
+        private final FileRegion region;
+        private final boolean quit;
+
+        Reply(ByteBuffer head, FileRegion region, boolean quit) {
+            this.head = head;
+            this.region = region;
+            this.quit = quit;
+        }
+
+        public ByteBuffer getHead() {
+            return head;
+        }
+
+        public FileRegion getRegion() {
+            return region;
+        }
+
+        public boolean isQuit() {
+            return quit;
+        }
+    }
+
+    private final FileSystemManager fsManager;
+    private final ServerMetrics metrics;
+    private final CommandProcessor processor;
+    private final AdmissionControl admission;
+
+    public BinaryProtocol(FileSystemManager fsManager) {
+        this(fsManager, new ServerMetrics(fsManager));
+    }
+
+    public BinaryProtocol(FileSystemManager fsManager, ServerMetrics metrics) {
+        this(new CommandProcessor(fsManager, metrics), new AdmissionControl(new ServerLimits(), metrics, false));
+    }
+
+    public BinaryProtocol(CommandProcessor processor, AdmissionControl admission) {
+        this.fsManager = processor.getFileSystem();
+        this.metrics = processor.getMetrics();
+        this.processor = processor;
+        this.admission = admission;
+    }
+
+    /**
+     * Executes one frame. The buffer holds the frame body (everything after the
+     * length field) and is consumed.
+     */
+    public Reply execute(ByteBuffer frame) {
+        long start = System.nanoTime();
+        byte op = frame.remaining() > 4 ? frame.get(frame.position() + 4) : 0;
+        if (op == OP_QUIT || op == OP_STATS)
+            return record(op, start, run(frame));
+
+        if (!admission.enter())
+            return error(frame.getInt(frame.position()), AdmissionControl.BUSY);
+        processor.beginLocal();
+        try {
+            return record(op, start, run(frame));
+        } finally {
+            processor.endLocal();
+            admission.exit();
+        }
+    }
+
+    private Reply record(byte op, long start, Reply reply) {
+        metrics.recordCommand(commandOf(op), System.nanoTime() - start, reply.getHead().get(8) == STATUS_OK);
+        return reply;
+    }
+
+    // The metrics' command an opcode counts as
+    private static int commandOf(byte op) {
+        switch (op) {
+            case OP_READ:
+            case OP_READ_RANGE:
+                return ServerMetrics.commandOf("READ");
+            case OP_CREATE:
+                return ServerMetrics.commandOf("CREATE");
+            case OP_WRITE:
+                return ServerMetrics.commandOf("WRITE");
+            case OP_DELETE:
+                return ServerMetrics.commandOf("DELETE");
+            case OP_LIST:
+                return ServerMetrics.commandOf("LIST");
+            case OP_APPEND:
+                return ServerMetrics.commandOf("APPEND");
+            case OP_PATCH:
+                return ServerMetrics.commandOf("PATCH");
+            case OP_BATCH:
+                return ServerMetrics.commandOf("BATCH");
+            case OP_STATS:
+                return ServerMetrics.commandOf("STATS");
+            default:
+                return ServerMetrics.commandOf("");
+        }
+    }
+
+    private Reply run(ByteBuffer frame) {
+        int id = 0;
+        try {
+            id = frame.getInt();
+            byte op = frame.get();
+            String name = readName(frame);
+            checkPlacement(op, name);
+
+            switch (op) {
+                case OP_READ:
+                    return streamed(id, fsManager.openRegion(name));
+
+                case OP_READ_RANGE:
+                    return streamed(id, fsManager.openRegion(name, frame.getLong(), frame.getInt()));
+
+                case OP_QUIT:
+                    return new Reply(inline(id, STATUS_OK, NO_PAYLOAD), null, true);
+
+                case OP_BATCH:
+                    return ok(id, executeBatch(frame));
+
+                default:
+                    return ok(id, executeInline(op, name, frame));
+            }
+        } catch (BufferUnderflowException e) {
+            return error(id, "malformed frame");
+        } catch (Exception e) {
+            return error(id, e.getMessage() == null ? "unknown error" : e.getMessage());
+        }
+    }
+
+    public static Reply error(int id, String message) {
+        return new Reply(inline(id, STATUS_ERROR, message.getBytes(StandardCharsets.UTF_8)), null, false);
+    }
+
+    private static Reply ok(int id, byte[] payload) {
+        return new Reply(inline(id, STATUS_OK, payload), null, false);
+    }
+
+    // Commands answered from the heap: everything outside a batch except READ
+    private byte[] executeInline(byte op, String name, ByteBuffer frame) throws Exception {
+        switch (op) {
+            case OP_CREATE:
+                fsManager.createFile(name);
+                return NO_PAYLOAD;
+
+            case OP_READ:
+                return fsManager.readFile(name);
+
+            case OP_WRITE:
+                byte[] data = new byte[frame.remaining()];
+                frame.get(data);
+                fsManager.writeFile(name, data);
+                return NO_PAYLOAD;
+
+            case OP_DELETE:
+                fsManager.deleteFile(name);
+                return NO_PAYLOAD;
+
+            case OP_READ_RANGE:
+                long offset = frame.getLong();
+                int length = frame.getInt();
+                return fsManager.read(name, offset, Math.min(length, MAX_FRAME_SIZE));
+
+            case OP_APPEND:
+                byte[] tail = new byte[frame.remaining()];
+                frame.get(tail);
+                fsManager.append(name, tail);
+                return NO_PAYLOAD;
+
+            case OP_PATCH:
+                long at = frame.getLong();
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                fsManager.patch(name, at, bytes);
+                return NO_PAYLOAD;
+
+            case OP_LIST:
+                return String.join("\n", fsManager.listFiles()).getBytes(StandardCharsets.UTF_8);
+
+            case OP_STATS:
+                return metrics.report(name).getBytes(StandardCharsets.UTF_8);
+
+            default:
+                throw new IllegalArgumentException("unknown command");
+        }
+    }
+
+    private byte[] executeBatch(ByteBuffer frame) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer sub = ByteBuffer.allocate(5);
+
+        fsManager.runExclusive(() -> {
+            while (frame.hasRemaining()) {
+                int length = frame.getInt();
+                if (length <= 0 || length > frame.remaining())
+                    throw new IllegalArgumentException("malformed frame");
+
+                ByteBuffer body = ByteBuffer.wrap(frame.array(), frame.arrayOffset() + frame.position(), length);
+                frame.position(frame.position() + length);
+
+                long start = System.nanoTime();
+                byte op = 0;
+                byte status = STATUS_OK;
+                byte[] payload;
+                try {
+                    op = body.get();
+                    String name = readName(body);
+                    checkPlacement(op, name);
+                    payload = executeInline(op, name, body);
+                } catch (BufferUnderflowException e) {
+                    status = STATUS_ERROR;
+                    payload = "malformed frame".getBytes(StandardCharsets.UTF_8);
+                } catch (Exception e) {
+                    status = STATUS_ERROR;
+                    payload = (e.getMessage() == null ? "unknown error" : e.getMessage())
+                            .getBytes(StandardCharsets.UTF_8);
+                }
+
+                metrics.recordCommand(commandOf(op), System.nanoTime() - start, status == STATUS_OK);
+
+                sub.clear();
+                sub.putInt(1 + payload.length).put(status);
+                out.write(sub.array(), 0, 5);
+                out.write(payload, 0, payload.length);
+            }
+            return null;
+        });
+        return out.toByteArray();
+    }
+
+    // A file held by another cluster node is answered with where it is
+    private void checkPlacement(byte op, String name) {
+        if (op == OP_LIST || op == OP_STATS || op == OP_QUIT || op == OP_BATCH)
+            return;
+        String owner = processor.ownerOf(name);
+        if (owner != null)
+            throw new IllegalStateException("MOVED " + owner);
+    }
+
+    private static String readName(ByteBuffer frame) {
+        int len = frame.getShort() & 0xFFFF;
+        if (len > frame.remaining())
+            throw new IllegalArgumentException("malformed frame");
+        String name = new String(frame.array(), frame.arrayOffset() + frame.position(), len, StandardCharsets.UTF_8);
+        frame.position(frame.position() + len);
+        return name;
+    }
+
+    private static ByteBuffer inline(int id, byte status, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(9 + payload.length);
+        buf.putInt(5 + payload.length).putInt(id).put(status).put(payload).flip();
+        return buf;
+    }
+
+    private static Reply streamed(int id, FileRegion region) {
+        if (region.getLength() > MAX_STREAMED) {
+            region.close();
+            return error(id, "file too large for one reply, read it in ranges");
+        }
+        return new Reply(header(id, STATUS_OK, region.getLength()), region, false);
+    }
+
+    private static ByteBuffer header(int id, byte status, long payloadLength) {
+        ByteBuffer buf = ByteBuffer.allocate(9);
+        buf.putInt((int) (5 + payloadLength)).putInt(id).put(status).flip();
+        return buf;
+    }
+}
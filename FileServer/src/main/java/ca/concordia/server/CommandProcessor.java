@@ -0,0 +1,193 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.ServerMetrics;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Executes one line of the text protocol against the file system and returns
+ * the reply line (without the trailing newline). Shared by every server engine.
+ */
+public class CommandProcessor {
+
+    // Largest ranged read answered in one reply
+    public static final int MAX_RANGE = 16 * 1024 * 1024;
+
+    private final FileSystemManager fsManager;
+    private final ServerMetrics metrics;
+
+    public CommandProcessor(FileSystemManager fsManager) {
+        this(fsManager, new ServerMetrics(fsManager));
+    }
+
+    public CommandProcessor(FileSystemManager fsManager, ServerMetrics metrics) {
+        this.fsManager = fsManager;
+        this.metrics = metrics;
+    }
+
+    public FileSystemManager getFileSystem() {
+        return fsManager;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The node that holds name, or null if it is this one. Always null here;
+     * a cluster node's processor routes commands to the other nodes.
+     */
+    public String ownerOf(String name) {
+        return null;
+    }
+
+    // Bracket commands run straight against getFileSystem() rather than
+    // through process, so that the files they touch don't move to another
+    // node meanwhile
+    public void beginLocal() {
+    }
+
+    public void endLocal() {
+    }
+
+    /**
+     * Whether commands may wait a long time on something other than the file
+     * system's locks, e.g. journal forces or other nodes; the NIO engine then
+     * runs them off its event loops.
+     */
+    public boolean mayBlock() {
+        return fsManager.waitsForDisk();
+    }
+
+    public String process(String line) {
+        if (line.trim().isEmpty())
+            return "ERROR empty command";
+
+        long start = System.nanoTime();
+        String reply;
+        try {
+            reply = processCommand(line);
+        } catch (Exception e) {
+            reply = "ERROR " + (e.getMessage() == null ? "unknown error" : e.getMessage());
+        }
+        metrics.recordCommand(ServerMetrics.commandOf(line), System.nanoTime() - start, !reply.startsWith("ERROR"));
+        return reply;
+    }
+
+    /**
+     * Executes the lines in order while holding the file system lock once for
+     * the whole group. Returns one reply per line.
+     */
+    public List<String> processBatch(List<String> lines) {
+        try {
+            return fsManager.runExclusive(() -> {
+                List<String> replies = new ArrayList<>(lines.size());
+                for (String line : lines)
+                    replies.add(process(line));
+                return replies;
+            });
+        } catch (Exception e) {
+            List<String> replies = new ArrayList<>(lines.size());
+            for (int i = 0; i < lines.size(); i++)
+                replies.add("ERROR " + (e.getMessage() == null ? "unknown error" : e.getMessage()));
+            return replies;
+        }
+    }
+
+    private String processCommand(String line) throws Exception {
+
+        String[] parts = line.split(" ", 3);
+        String command = parts[0].toUpperCase();
+
+        switch (command) {
+
+            case "CREATE":
+                if (parts.length < 2)
+                    return "ERROR missing filename";
+                fsManager.createFile(parts[1]);
+                return "OK";
+
+            case "READ":
+                if (parts.length < 2)
+                    return "ERROR missing filename";
+                if (parts.length == 3)
+                    return readRange(parts[1], parts[2]);
+                return new String(fsManager.readFile(parts[1]));
+
+            case "APPEND":
+                if (parts.length < 2)
+                    return "ERROR missing filename";
+                fsManager.append(parts[1], (parts.length == 3 ? parts[2] : "").getBytes());
+                return "OK";
+
+            case "PATCH":
+                if (parts.length < 3)
+                    return "ERROR missing offset";
+                return patch(parts[1], parts[2]);
+
+            case "WRITE":
+                if (parts.length < 2)
+                    return "ERROR missing filename";
+                String data = (parts.length == 3) ? parts[2] : "";
+                fsManager.writeFile(parts[1], data.getBytes());
+                return "OK";
+
+            case "DELETE":
+                if (parts.length < 2)
+                    return "ERROR missing filename";
+                fsManager.deleteFile(parts[1]);
+                return "OK";
+
+            case "LIST":
+                return String.join(" ", fsManager.listFiles());
+
+            // STATS [prefix]: name=value pairs of the server's metrics
+            case "STATS":
+                return metrics.report(parts.length > 1 ? parts[1] : "");
+
+            case "QUIT":
+                return "OK";
+
+            default:
+                return "ERROR unknown command";
+        }
+    }
+
+    // READ <name> <offset> <length>: the bytes of that range that exist, so a
+    // reader can follow a growing file by asking from where it left off
+    private String readRange(String name, String range) throws Exception {
+        String[] bounds = range.trim().split(" +");
+        long offset;
+        int length;
+        try {
+            if (bounds.length != 2)
+                throw new NumberFormatException();
+            offset = Long.parseLong(bounds[0]);
+            length = Integer.parseInt(bounds[1]);
+        } catch (NumberFormatException e) {
+            return "ERROR invalid range";
+        }
+        if (offset < 0 || length < 0)
+            return "ERROR invalid range";
+        if (length > MAX_RANGE)
+            return "ERROR range too large";
+        return new String(fsManager.read(name, offset, length));
+    }
+
+    // PATCH <name> <offset> <data>: overwrites the bytes at offset, growing
+    // the file if they run past its end
+    private String patch(String name, String rest) throws Exception {
+        int space = rest.indexOf(' ');
+        long offset;
+        try {
+            offset = Long.parseLong(space == -1 ? rest : rest.substring(0, space));
+        } catch (NumberFormatException e) {
+            return "ERROR invalid offset";
+        }
+        if (offset < 0)
+            return "ERROR invalid offset";
+        fsManager.patch(name, offset, (space == -1 ? "" : rest.substring(space + 1)).getBytes());
+        return "OK";
+    }
+}
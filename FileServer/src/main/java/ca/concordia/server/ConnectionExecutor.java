@@ -0,0 +1,132 @@
+package ca.concordia.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs client connection handlers.
+ *
+ * VIRTUAL gives every connection its own virtual thread (falls back to a cached
+ * pool of reusable platform threads on JVMs without virtual threads).
+ * BOUNDED caps the number of concurrently served connections and queues the rest.
+ */
+public class ConnectionExecutor {
+
+    public enum Mode { VIRTUAL, BOUNDED }
+
+    private final Mode mode;
+    private final ExecutorService executor;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private ConnectionExecutor(Mode mode, ExecutorService executor) {
+        this.mode = mode;
+        this.executor = executor;
+    }
+
+    public static ConnectionExecutor virtual() {
+        return new ConnectionExecutor(Mode.VIRTUAL, newVirtualOrCachedExecutor());
+    }
+
+    public static ConnectionExecutor bounded(int maxConnections, int queueCapacity) {
+        if (maxConnections <= 0)
+            throw new IllegalArgumentException("maxConnections must be positive");
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("queueCapacity must be positive");
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                maxConnections, maxConnections,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                namedThreads("client-"));
+        pool.allowCoreThreadTimeOut(true);
+        return new ConnectionExecutor(Mode.BOUNDED, pool);
+    }
+
+    /**
+     * Parses "virtual" or "bounded:maxConnections:queueCapacity".
+     */
+    public static ConnectionExecutor fromSpec(String spec) {
+        if (spec == null || spec.isEmpty() || spec.equalsIgnoreCase("virtual"))
+            return virtual();
+
+        String[] parts = spec.split(":");
+        if (parts[0].equalsIgnoreCase("bounded") && parts.length == 3)
+            return bounded(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+
+        throw new IllegalArgumentException("invalid executor spec: " + spec);
+    }
+
+    /**
+     * Schedules a connection handler. Returns false if the executor is saturated
+     * (or shut down) and the caller should turn the connection away.
+     */
+    public boolean submit(Runnable handler) {
+        queued.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                try {
+                    handler.run();
+                } finally {
+                    active.decrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    public int getQueuedConnections() {
+        return queued.get();
+    }
+
+    public long getRejectedConnections() {
+        return rejected.get();
+    }
+
+    private static ExecutorService newVirtualOrCachedExecutor() {
+        try {
+            // Looked up reflectively so the server still builds for Java 17
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newCachedThreadPool(namedThreads("client-"));
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -1,26 +1,71 @@
 package ca.concordia.server;
 
+import ca.concordia.filesystem.FileRegion;
 import ca.concordia.filesystem.FileSystemManager;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import ca.concordia.metrics.ServerMetrics;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public class FileServer implements Runnable {
 
+    // Data capacity of a volume formatted by the no-argument constructor
+    public static final long DEFAULT_VOLUME_BYTES = 64L * 1024 * 1024;
+
     private FileSystemManager fsManager;
+    private final ServerMetrics metrics;
+    private final CommandProcessor processor;
+    private final BinaryProtocol binaryProtocol;
     private int port;
     private volatile boolean running = false;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverSocket;
+    private final ConnectionExecutor connections;
+    private final ServerLimits limits;
+    private final AdmissionControl admission;
+
+    public FileServer(int port, String fileSystemName, long totalSize) {
+        this(port, fileSystemName, totalSize, ConnectionExecutor.virtual());
+    }
+
+    public FileServer(int port, String fileSystemName, long totalSize, ConnectionExecutor connections) {
+        this(port, new FileSystemManager(fileSystemName, totalSize), connections);
+    }
+
+    public FileServer(int port, FileSystemManager fsManager, ConnectionExecutor connections) {
+        this(port, fsManager, connections, new ServerLimits());
+    }
 
-    public FileServer(int port, String fileSystemName, int totalSize) {
-        this.fsManager = new FileSystemManager(fileSystemName, totalSize);
+    public FileServer(int port, FileSystemManager fsManager, ConnectionExecutor connections, ServerLimits limits) {
+        this(port, new CommandProcessor(fsManager), connections, limits);
+    }
+
+    // Serves the file system of processor, e.g. a cluster node's router
+    public FileServer(int port, CommandProcessor processor, ConnectionExecutor connections, ServerLimits limits) {
+        this.fsManager = processor.getFileSystem();
+        this.metrics = processor.getMetrics();
+        this.admission = new AdmissionControl(limits, metrics, true);
+        this.processor = processor;
+        this.binaryProtocol = new BinaryProtocol(processor, admission);
         this.port = port;
+        this.connections = connections;
+        this.limits = limits;
     }
 
     public FileServer() {
-        this(5050, "serverfs.dat", 10 * 128);
+        this(5050, "serverfs.dat", DEFAULT_VOLUME_BYTES);
     }
 
     @Override
@@ -32,12 +77,15 @@ public class FileServer implements Runnable {
         running = true;
 
         try {
-            serverSocket = new ServerSocket(port);
+            // Blocking channels, so READ replies in binary mode can use transferTo
+            serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(port));
             System.out.println("Server started. Listening on port " + port);
+            metrics.register(port);
 
             while (running) {
 
-                Socket clientSocket;
+                SocketChannel clientSocket;
                 try {
                     clientSocket = serverSocket.accept();
                 } catch (Exception e) {
@@ -45,8 +93,13 @@ public class FileServer implements Runnable {
                     throw e;
                 }
 
-                // Spawn client thread
-                new Thread(() -> handleClient(clientSocket)).start();
+                // Hand the connection to the executor, turn it away if full or saturated
+                if (!admission.openConnection()) {
+                    rejectClient(clientSocket);
+                } else if (!connections.submit(() -> handleClient(clientSocket))) {
+                    admission.closeConnection();
+                    rejectClient(clientSocket);
+                }
             }
 
         } catch (Exception e) {
@@ -57,101 +110,195 @@ public class FileServer implements Runnable {
     public void stop() {
         running = false;
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
+            if (serverSocket != null && serverSocket.isOpen()) {
                 serverSocket.close(); // unblocks accept()
             }
         } catch (Exception ignored) {}
+        connections.shutdown();
+        metrics.unregister();
+    }
+
+    public ConnectionExecutor getConnections() {
+        return connections;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
 
-    private void handleClient(Socket clientSocket) {
-        try (
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter writer = new PrintWriter(
-                    clientSocket.getOutputStream(), true)
-        ) {
+    public ServerLimits getLimits() {
+        return limits;
+    }
+
+    private void rejectClient(SocketChannel clientSocket) {
+        metrics.connectionRejected();
+        try {
+            clientSocket.write(ByteBuffer.wrap(("ERROR " + AdmissionControl.BUSY + "\n").getBytes()));
+        } catch (Exception ignored) {
+        } finally {
+            try { clientSocket.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private void handleClient(SocketChannel clientSocket) {
+        Socket socket = clientSocket.socket();
+        metrics.connectionOpened();
+        RequestReader reader = null;
+        try {
+            reader = new RequestReader(new CountingInputStream(socket.getInputStream()), socket, limits);
+            PrintWriter writer = new PrintWriter(new CountingOutputStream(socket.getOutputStream()), false);
+            TextSession session = new TextSession(processor, admission);
+            StringBuilder replies = new StringBuilder();
             String line;
 
             while (true) {
-                line = reader.readLine();
+                try {
+                    line = reader.readLine();
+                } catch (RequestReader.TooLargeException e) {
+                    metrics.requestTooLarge();
+                    writer.print(replies.append("ERROR line too long\n"));
+                    writer.flush();
+                    return;
+                }
 
                 // Client disconnected normally
                 if (line == null)
                     return;
 
-                if (line.trim().isEmpty()) {
-                    writer.println("ERROR empty command");
-                    continue;
+                // Switch this connection to length-prefixed frames. The client
+                // must wait for the OK before sending its first frame.
+                if (!session.inBatch() && line.trim().equalsIgnoreCase("BINARY")) {
+                    writer.print(replies.append("OK\n"));
+                    writer.flush();
+                    serveBinary(clientSocket, reader);
+                    return;
                 }
 
-                try {
-                    processCommand(line, writer);
-                } catch (Exception e) {
-                    writer.println("ERROR " + (e.getMessage() == null ? "unknown error" : e.getMessage()));
+                session.handle(line, replies);
+
+                // Pipelined requests already buffered are answered in one write
+                if (reader.available() == 0 && replies.length() > 0) {
+                    writer.print(replies);
+                    writer.flush();
+                    replies.setLength(0);
                 }
             }
 
+        } catch (SocketTimeoutException e) {
+            // Abandoned, or too slow sending a request
+            if (reader.isAwaiting())
+                metrics.idleTimeout();
+            else
+                metrics.readTimeout();
         } catch (Exception e) {
             System.err.println("Client handler error: " + e.getMessage());
         } finally {
             try { clientSocket.close(); } catch (Exception ignored) {}
+            metrics.connectionClosed();
+            admission.closeConnection();
         }
     }
 
-    private void processCommand(String line, PrintWriter writer) throws Exception {
+    private void serveBinary(SocketChannel channel, RequestReader reader) throws IOException {
+        DataInputStream in = new DataInputStream(reader);
+        List<ByteBuffer> pending = new ArrayList<>();
 
-        String[] parts = line.split(" ", 3);
-        String command = parts[0].toUpperCase();
+        while (true) {
+            int length;
+            reader.startRequest();
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return; // Client disconnected normally
+            }
 
-        switch (command) {
+            if (length < 4 || length > limits.getMaxFrameBytes()) {
+                if (length > limits.getMaxFrameBytes())
+                    metrics.requestTooLarge();
+                pending.add(BinaryProtocol.error(0, "invalid frame length").getHead());
+                writeFully(channel, pending);
+                return;
+            }
 
-            case "CREATE":
-                if (parts.length < 2) {
-                    writer.println("ERROR missing filename");
-                    return;
-                }
-                fsManager.createFile(parts[1]);
-                writer.println("OK");
-                break;
+            byte[] frame = new byte[length];
+            in.readFully(frame);
 
-            case "READ":
-                if (parts.length < 2) {
-                    writer.println("ERROR missing filename");
-                    return;
-                }
-                writer.println(new String(fsManager.readFile(parts[1])));
-                break;
+            BinaryProtocol.Reply reply = binaryProtocol.execute(ByteBuffer.wrap(frame));
+            pending.add(reply.getHead());
 
-            case "WRITE":
-                if (parts.length < 2) {
-                    writer.println("ERROR missing filename");
-                    return;
-                }
-                String data = (parts.length == 3) ? parts[2] : "";
-                fsManager.writeFile(parts[1], data.getBytes());
-                writer.println("OK");
-                break;
-
-            case "DELETE":
-                if (parts.length < 2) {
-                    writer.println("ERROR missing filename");
-                    return;
+            // Replies to pipelined frames are gathered into one write
+            FileRegion region = reply.getRegion();
+            try {
+                if (region != null || reply.isQuit() || in.available() == 0)
+                    writeFully(channel, pending);
+
+                if (region != null) {
+                    long sent = 0;
+                    while (sent < region.getLength()) {
+                        long n = fsManager.transferTo(region, sent, region.getLength() - sent, channel);
+                        if (n <= 0)
+                            throw new IOException("short transfer from disk");
+                        sent += n;
+                        metrics.addBytesOut(n);
+                    }
                 }
-                fsManager.deleteFile(parts[1]);
-                writer.println("OK");
-                break;
+            } finally {
+                if (region != null)
+                    region.close();
+            }
+
+            if (reply.isQuit())
+                return;
+        }
+    }
 
-            case "LIST":
-                writer.println(String.join(" ", fsManager.listFiles()));
-                break;
+    private void writeFully(SocketChannel channel, List<ByteBuffer> bufs) throws IOException {
+        ByteBuffer[] array = bufs.toArray(new ByteBuffer[0]);
+        ByteBuffer last = array[array.length - 1];
+        while (last.hasRemaining())
+            metrics.addBytesOut(channel.write(array));
+        bufs.clear();
+    }
 
-            case "QUIT":
-                writer.println("OK");
-                break;
+    // Counts the bytes read from a client into the metrics
+    private final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
 
-            default:
-                writer.println("ERROR unknown command");
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                metrics.addBytesIn(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                metrics.addBytesIn(n);
+            return n;
         }
     }
-}
 
+    // Counts the bytes written to a client into the metrics
+    private final class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.addBytesOut(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            metrics.addBytesOut(len);
+        }
+    }
+}
@@ -0,0 +1,588 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileRegion;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.ServerMetrics;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server engine. The thread calling start() accepts connections and
+ * hands them round-robin to a few event loops, each multiplexing its connections
+ * on its own Selector. Speaks the same protocol as FileServer (TextSession,
+ * including pipelining and BATCH, and the switch to BinaryProtocol framing).
+ *
+ * Admission follows the ServerLimits like FileServer's, except that a command
+ * finding no free slot is answered BUSY at once: an event loop never waits.
+ * A connection whose replies the client isn't taking is not read from until
+ * they are, so it can't pile up output. Each loop sweeps its connections for
+ * the idle and read timeouts; the read timeout also bounds how long the
+ * client may leave queued replies untaken.
+ *
+ * Commands of a processor that mayBlock() (a cluster node's, or one whose
+ * changes wait for journal forces) run on worker threads instead, one read's
+ * worth at a time per connection, which isn't read from until they are done.
+ */
+public class NioFileServer implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final FileSystemManager fsManager;
+    private final ServerMetrics metrics;
+    private final CommandProcessor processor;
+    private final BinaryProtocol binaryProtocol;
+    private final int port;
+    private final EventLoop[] loops;
+    private final ServerLimits limits;
+    private final AdmissionControl admission;
+    private final ExecutorService workers; // null if commands run on the loops
+    private volatile boolean running = false;
+    private ServerSocketChannel serverChannel;
+
+    public NioFileServer(int port, String fileSystemName, long totalSize, int eventLoops) {
+        this(port, new FileSystemManager(fileSystemName, totalSize), eventLoops);
+    }
+
+    public NioFileServer(int port, FileSystemManager fsManager, int eventLoops) {
+        this(port, fsManager, eventLoops, new ServerLimits());
+    }
+
+    public NioFileServer(int port, FileSystemManager fsManager, int eventLoops, ServerLimits limits) {
+        this(port, new CommandProcessor(fsManager), eventLoops, limits);
+    }
+
+    // Serves the file system of processor, e.g. a cluster node's router
+    public NioFileServer(int port, CommandProcessor processor, int eventLoops, ServerLimits limits) {
+        if (eventLoops <= 0)
+            throw new IllegalArgumentException("eventLoops must be positive");
+        this.fsManager = processor.getFileSystem();
+        this.metrics = processor.getMetrics();
+        this.admission = new AdmissionControl(limits, metrics, false);
+        this.processor = processor;
+        this.binaryProtocol = new BinaryProtocol(processor, admission);
+        this.port = port;
+        this.loops = new EventLoop[eventLoops];
+        this.limits = limits;
+        this.workers = processor.mayBlock() ? newWorkers() : null;
+    }
+
+    private static ExecutorService newWorkers() {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "nio-worker-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void run() {
+        start();
+    }
+
+    public void start() {
+        running = true;
+
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                Thread t = new Thread(loops[i], "nio-loop-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("NIO server started. Listening on port " + port
+                    + " with " + loops.length + " event loop(s)");
+            metrics.register(port);
+
+            int next = 0;
+            while (running) {
+                SocketChannel client;
+                try {
+                    client = serverChannel.accept();
+                } catch (IOException e) {
+                    if (!running) break; // stop() closed server channel
+                    throw e;
+                }
+
+                if (!admission.openConnection()) {
+                    reject(client);
+                    continue;
+                }
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+
+        } catch (Exception e) {
+            if (running) e.printStackTrace();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null && serverChannel.isOpen())
+                serverChannel.close(); // unblocks accept()
+        } catch (Exception ignored) {}
+
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+        if (workers != null)
+            workers.shutdownNow();
+        metrics.unregister();
+    }
+
+    // Still blocking, so the short reply goes straight to the socket buffer
+    private void reject(SocketChannel client) {
+        metrics.connectionRejected();
+        try {
+            client.write(ByteBuffer.wrap(("ERROR " + AdmissionControl.BUSY + "\n").getBytes()));
+        } catch (Exception ignored) {
+        } finally {
+            try { client.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    public int getActiveConnections() {
+        return (int) metrics.getActiveConnections();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ServerLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Per-connection state. Idle connections hold no buffers: unparsed bytes are
+     * only copied out of the loop's shared read buffer when a read ends mid-line
+     * or mid-frame, and the output queue only exists while replies are waiting
+     * for the socket.
+     */
+    private static final class Connection {
+        final TextSession session;
+        byte[] partial = NO_BYTES;
+        int partialLen;
+        boolean binary;
+        boolean closeAfterFlush;
+        boolean working;        // a worker is running its commands and owns the state
+        ArrayDeque<Object> out; // ByteBuffer or RegionTransfer
+        long lastActive;   // nanoTime of the last bytes read or written
+        long requestStart; // nanoTime the bytes in partial started arriving
+
+        Connection(CommandProcessor processor, AdmissionControl admission) {
+            this.session = new TextSession(processor, admission);
+            this.lastActive = System.nanoTime();
+        }
+    }
+
+    private static final class RegionTransfer {
+        final FileRegion region;
+        long sent;
+
+        RegionTransfer(FileRegion region) {
+            this.region = region;
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> finished = new ConcurrentLinkedQueue<>(); // workers' results
+
+        // Reused for every read and reply on this loop
+        private final byte[] readBytes = new byte[READ_BUFFER_SIZE];
+        private final ByteBuffer readBuffer = ByteBuffer.wrap(readBytes);
+        private final StringBuilder loopReplies = new StringBuilder();
+
+        private final long idleNanos = limits.getIdleTimeoutMillis() * 1_000_000L;
+        private final long readNanos = limits.getReadTimeoutMillis() * 1_000_000L;
+        private final long sweepMillis = sweepInterval();
+        private long nextSweep = System.nanoTime();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // A quarter of the shortest timeout, between 10 ms and 1 s; 0 if there are none
+        private long sweepInterval() {
+            long shortest = Long.MAX_VALUE;
+            if (limits.getIdleTimeoutMillis() > 0)
+                shortest = limits.getIdleTimeoutMillis();
+            if (limits.getReadTimeoutMillis() > 0)
+                shortest = Math.min(shortest, limits.getReadTimeoutMillis());
+            return shortest == Long.MAX_VALUE ? 0 : Math.max(10, Math.min(1000, shortest / 4));
+        }
+
+        void register(SocketChannel client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            selector.wakeup(); // run() sees running == false and closes everything
+        }
+
+        @Override
+        public void run() {
+            while (running && selector.isOpen()) {
+                try {
+                    selector.select(sweepMillis);
+                    registerPending();
+                    runFinished();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+
+                    if (sweepMillis > 0 && System.nanoTime() - nextSweep >= 0) {
+                        sweep();
+                        nextSweep = System.nanoTime() + sweepMillis * 1_000_000L;
+                    }
+                } catch (Exception e) {
+                    if (running && selector.isOpen())
+                        System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (!((Connection) key.attachment()).working)
+                        releaseOutput((Connection) key.attachment());
+                    closeQuietly((SocketChannel) key.channel());
+                }
+                selector.close();
+            } catch (Exception ignored) {}
+        }
+
+        private void registerPending() {
+            SocketChannel client;
+            while ((client = pending.poll()) != null) {
+                try {
+                    client.configureBlocking(false);
+                    client.register(selector, SelectionKey.OP_READ, new Connection(processor, admission));
+                    metrics.connectionOpened();
+                } catch (IOException e) {
+                    closeQuietly(client);
+                    admission.closeConnection();
+                }
+            }
+        }
+
+        private void runFinished() {
+            Runnable task;
+            while ((task = finished.poll()) != null)
+                task.run();
+        }
+
+        private void handle(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable())
+                    flush(key, channel, conn);
+                // Not while replies wait for the client
+                if (key.isValid() && key.isReadable() && conn.out == null)
+                    read(key, channel, conn);
+            } catch (IOException e) {
+                disconnect(key, channel);
+            }
+        }
+
+        private void read(SelectionKey key, SocketChannel channel, Connection conn) throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n == -1) {
+                // Client disconnected normally
+                disconnect(key, channel);
+                return;
+            }
+            if (n == 0)
+                return;
+            metrics.addBytesIn(n);
+            conn.lastActive = System.nanoTime();
+
+            // Parse straight out of the shared buffer unless earlier bytes are waiting
+            byte[] data;
+            int len;
+            if (conn.partialLen == 0) {
+                data = readBytes;
+                len = n;
+            } else {
+                ensurePartialCapacity(conn, conn.partialLen + n);
+                System.arraycopy(readBytes, 0, conn.partial, conn.partialLen, n);
+                data = conn.partial;
+                len = conn.partialLen + n;
+            }
+
+            if (workers != null) {
+                parseOnWorker(key, channel, conn, data, len);
+                return;
+            }
+            parsed(key, channel, conn, data, len, parse(conn, data, len, loopReplies));
+        }
+
+        // Runs the commands in data[0, len) on a worker; the connection isn't
+        // read from or swept until the loop has taken the result back
+        private void parseOnWorker(SelectionKey key, SocketChannel channel, Connection conn, byte[] data, int len) {
+            if (data == readBytes) {
+                conn.requestStart = conn.lastActive;
+                ensurePartialCapacity(conn, len);
+                System.arraycopy(readBytes, 0, conn.partial, 0, len);
+            }
+            byte[] bytes = conn.partial;
+            conn.working = true;
+            key.interestOps(0);
+            workers.execute(() -> {
+                int consumed = -1;
+                try {
+                    consumed = parse(conn, bytes, len, new StringBuilder());
+                } finally {
+                    int used = consumed;
+                    finished.add(() -> {
+                        conn.working = false;
+                        if (!key.isValid()) {
+                            releaseOutput(conn);
+                            return;
+                        }
+                        try {
+                            if (used == -1)
+                                throw new IOException("command failed");
+                            parsed(key, channel, conn, bytes, len, used);
+                        } catch (IOException e) {
+                            disconnect(key, channel);
+                        }
+                    });
+                    selector.wakeup();
+                }
+            });
+        }
+
+        // Keeps what parse() left of data[0, len) and sends the replies
+        private void parsed(SelectionKey key, SocketChannel channel, Connection conn,
+                            byte[] data, int len, int consumed) throws IOException {
+            // Keep whatever is left for the next read
+            int rest = len - consumed;
+            if (rest == 0) {
+                conn.partial = NO_BYTES;
+                conn.partialLen = 0;
+            } else if (data == readBytes) {
+                conn.requestStart = conn.lastActive;
+                ensurePartialCapacity(conn, rest);
+                System.arraycopy(readBytes, consumed, conn.partial, 0, rest);
+                conn.partialLen = rest;
+            } else {
+                // Once a request is done, what follows began with this read
+                if (consumed > 0)
+                    conn.requestStart = conn.lastActive;
+                System.arraycopy(conn.partial, consumed, conn.partial, 0, rest);
+                conn.partialLen = rest;
+            }
+
+            flush(key, channel, conn);
+        }
+
+        // Executes every complete line or frame in data[0, len) and returns how
+        // many bytes were used; text replies are gathered in replies
+        private int parse(Connection conn, byte[] data, int len, StringBuilder replies) {
+            int pos = 0;
+            while (pos < len && !conn.closeAfterFlush) {
+                if (!conn.binary) {
+                    int nl = indexOf(data, pos, len, (byte) '\n');
+                    if (nl == -1 && len - pos <= limits.getMaxLineBytes() + 1)
+                        break;
+                    int end = nl == -1 ? len : (nl > pos && data[nl - 1] == '\r') ? nl - 1 : nl;
+                    if (end - pos > limits.getMaxLineBytes()) {
+                        metrics.requestTooLarge();
+                        replies.append("ERROR line too long\n");
+                        enqueueReplies(conn, replies);
+                        conn.closeAfterFlush = true;
+                        return len;
+                    }
+                    String line = new String(data, pos, end - pos);
+                    pos = nl + 1;
+
+                    if (!conn.session.inBatch() && line.trim().equalsIgnoreCase("BINARY")) {
+                        replies.append("OK\n");
+                        conn.binary = true;
+                        continue;
+                    }
+                    conn.session.handle(line, replies);
+                    continue;
+                }
+
+                if (len - pos < 4)
+                    break;
+                int length = ByteBuffer.wrap(data, pos, 4).getInt();
+                if (length < 4 || length > limits.getMaxFrameBytes()) {
+                    if (length > limits.getMaxFrameBytes())
+                        metrics.requestTooLarge();
+                    enqueueReplies(conn, replies);
+                    enqueue(conn, BinaryProtocol.error(0, "invalid frame length").getHead());
+                    conn.closeAfterFlush = true;
+                    return len;
+                }
+                if (len - pos - 4 < length) {
+                    // Size the carry-over buffer for the whole frame up front
+                    ensurePartialCapacity(conn, length + 4);
+                    break;
+                }
+
+                enqueueReplies(conn, replies);
+                BinaryProtocol.Reply reply = binaryProtocol.execute(ByteBuffer.wrap(data, pos + 4, length));
+                enqueue(conn, reply.getHead());
+                if (reply.getRegion() != null && reply.getRegion().getLength() > 0)
+                    enqueue(conn, new RegionTransfer(reply.getRegion()));
+                else if (reply.getRegion() != null)
+                    reply.getRegion().close();
+                if (reply.isQuit())
+                    conn.closeAfterFlush = true;
+                pos += 4 + length;
+            }
+            enqueueReplies(conn, replies);
+            return pos;
+        }
+
+        private void enqueueReplies(Connection conn, StringBuilder replies) {
+            if (replies.length() == 0)
+                return;
+            enqueue(conn, ByteBuffer.wrap(replies.toString().getBytes()));
+            replies.setLength(0);
+        }
+
+        private void enqueue(Connection conn, Object item) {
+            if (conn.out == null)
+                conn.out = new ArrayDeque<>();
+            conn.out.add(item);
+        }
+
+        // Writes as much queued output as the socket accepts, then waits for OP_WRITE
+        private void flush(SelectionKey key, SocketChannel channel, Connection conn) throws IOException {
+            while (conn.out != null && !conn.out.isEmpty()) {
+                Object item = conn.out.peek();
+                if (item instanceof ByteBuffer) {
+                    ByteBuffer buf = (ByteBuffer) item;
+                    int n = channel.write(buf);
+                    metrics.addBytesOut(n);
+                    if (n > 0)
+                        conn.lastActive = System.nanoTime();
+                    if (buf.hasRemaining())
+                        break;
+                } else {
+                    RegionTransfer t = (RegionTransfer) item;
+                    long n = fsManager.transferTo(t.region, t.sent, t.region.getLength() - t.sent, channel);
+                    t.sent += n;
+                    metrics.addBytesOut(n);
+                    if (n > 0)
+                        conn.lastActive = System.nanoTime();
+                    if (t.sent < t.region.getLength())
+                        break;
+                    t.region.close();
+                }
+                conn.out.poll();
+            }
+
+            // Stop reading until the client has taken its replies
+            if (conn.out != null && !conn.out.isEmpty()) {
+                if ((key.interestOps() & SelectionKey.OP_READ) != 0)
+                    metrics.readPaused();
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+
+            conn.out = null;
+            if (conn.closeAfterFlush) {
+                disconnect(key, channel);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // Closes the connections that have run out of time
+        private void sweep() {
+            long now = System.nanoTime();
+            for (SelectionKey key : selector.keys()) {
+                if (!key.isValid())
+                    continue;
+                Connection conn = (Connection) key.attachment();
+                if (conn.working) {
+                    continue;
+                } else if (conn.out != null) {
+                    if (readNanos > 0 && now - conn.lastActive > readNanos) {
+                        metrics.writeTimeout();
+                        disconnect(key, (SocketChannel) key.channel());
+                    }
+                } else if (conn.partialLen > 0) {
+                    if (readNanos > 0 && now - conn.requestStart > readNanos) {
+                        metrics.readTimeout();
+                        disconnect(key, (SocketChannel) key.channel());
+                    }
+                } else if (idleNanos > 0 && now - conn.lastActive > idleNanos) {
+                    metrics.idleTimeout();
+                    disconnect(key, (SocketChannel) key.channel());
+                }
+            }
+        }
+
+        private void ensurePartialCapacity(Connection conn, int needed) {
+            if (needed > conn.partial.length)
+                conn.partial = Arrays.copyOf(conn.partial, Math.max(needed, conn.partial.length * 2));
+        }
+
+        private int indexOf(byte[] data, int from, int to, byte b) {
+            for (int i = from; i < to; i++) {
+                if (data[i] == b) return i;
+            }
+            return -1;
+        }
+
+        private void closeQuietly(SocketChannel channel) {
+            try { channel.close(); } catch (Exception ignored) {}
+        }
+
+        // Closes the regions of replies that will never be sent
+        private void releaseOutput(Connection conn) {
+            if (conn.out == null)
+                return;
+            for (Object item : conn.out) {
+                if (item instanceof RegionTransfer)
+                    ((RegionTransfer) item).region.close();
+            }
+            conn.out = null;
+        }
+
+        private void disconnect(SelectionKey key, SocketChannel channel) {
+            if (!key.isValid())
+                return;
+            key.cancel();
+            if (!((Connection) key.attachment()).working)
+                releaseOutput((Connection) key.attachment());
+            closeQuietly(channel);
+            metrics.connectionClosed();
+            admission.closeConnection();
+        }
+    }
+}
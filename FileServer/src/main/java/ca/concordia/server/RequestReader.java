@@ -0,0 +1,177 @@
+package ca.concordia.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Buffered input of one blocking connection: text lines through readLine, and
+ * the bytes of binary frames through the InputStream methods, so nothing
+ * buffered is lost when a connection switches to frames.
+ *
+ * Enforces the server's timeouts through the socket's SO_TIMEOUT: waiting for
+ * the first byte of a request is bounded by the idle timeout, the rest of the
+ * request by the read timeout counted from that byte. Either throws
+ * SocketTimeoutException; isAwaiting() tells which one it was.
+ */
+class RequestReader extends InputStream {
+
+    // A line longer than the limit
+    static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private final InputStream in;
+    private final Socket socket;
+    private final int idleTimeout;
+    private final int readTimeout;
+    private final int maxLineBytes;
+
+    private byte[] buf = new byte[8192];
+    private int pos;
+    private int count;
+
+    private boolean awaiting = true; // no byte of the current request seen yet
+    private long requestStart;
+    private int soTimeout = -1;
+
+    RequestReader(InputStream in, Socket socket, ServerLimits limits) {
+        this.in = in;
+        this.socket = socket;
+        this.idleTimeout = limits.getIdleTimeoutMillis();
+        this.readTimeout = limits.getReadTimeoutMillis();
+        this.maxLineBytes = limits.getMaxLineBytes();
+    }
+
+    // The next bytes read begin a new request
+    void startRequest() {
+        awaiting = true;
+    }
+
+    boolean isAwaiting() {
+        return awaiting;
+    }
+
+    /**
+     * The next line without its terminator ("\n" or "\r\n"), or null at the
+     * end of the stream.
+     */
+    String readLine() throws IOException {
+        startRequest();
+        int scan = pos;
+        while (true) {
+            for (; scan < count; scan++) {
+                if (buf[scan] != '\n')
+                    continue;
+                int end = (scan > pos && buf[scan - 1] == '\r') ? scan - 1 : scan;
+                if (end - pos > maxLineBytes)
+                    throw new TooLargeException("line too long");
+                String line = new String(buf, pos, end - pos);
+                pos = scan + 1;
+                return line;
+            }
+            if (count - pos > maxLineBytes + 1)
+                throw new TooLargeException("line too long");
+
+            int start = pos;
+            if (fill() == -1) {
+                if (pos == count)
+                    return null;
+                // Last line without a terminator
+                String line = new String(buf, pos, count - pos);
+                pos = count;
+                return line;
+            }
+            scan -= start - pos; // fill() may have moved the bytes down
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == count && fill() == -1)
+            return -1;
+        started();
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (pos == count) {
+            // Large reads go straight into the caller's array
+            if (len >= buf.length) {
+                armTimeout();
+                int n = in.read(b, off, len);
+                if (n > 0)
+                    started();
+                return n;
+            }
+            if (fill() == -1)
+                return -1;
+        }
+        started();
+        int n = Math.min(len, count - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return count - pos + in.available();
+    }
+
+    // Appends what the socket has to the buffered bytes; -1 at the end of the stream
+    private int fill() throws IOException {
+        if (pos < count)
+            started();
+        armTimeout();
+
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, count - pos);
+            count -= pos;
+            pos = 0;
+        }
+        if (count == buf.length) {
+            byte[] bigger = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, bigger, 0, count);
+            buf = bigger;
+        }
+
+        int n = in.read(buf, count, buf.length - count);
+        if (n > 0) {
+            count += n;
+            started();
+        }
+        return n;
+    }
+
+    private void started() {
+        if (awaiting) {
+            awaiting = false;
+            requestStart = System.nanoTime();
+        }
+    }
+
+    private void armTimeout() throws IOException {
+        int timeout = idleTimeout;
+        if (!awaiting && readTimeout > 0) {
+            long left = readTimeout - (System.nanoTime() - requestStart) / 1_000_000;
+            if (left <= 0)
+                throw new SocketTimeoutException("request not received in time");
+            timeout = (int) left;
+        } else if (!awaiting) {
+            timeout = 0;
+        }
+        if (timeout != soTimeout) {
+            socket.setSoTimeout(timeout);
+            soTimeout = timeout;
+        }
+    }
+}
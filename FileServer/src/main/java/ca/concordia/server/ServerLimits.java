@@ -0,0 +1,103 @@
+package ca.concordia.server;
+
+/**
+ * Admission limits and timeouts of a server, chosen when it is constructed.
+ * A limit of 0 means unlimited, a timeout of 0 means none.
+ */
+public class ServerLimits {
+
+    private int maxConnections;
+    private int maxInFlight;
+    private int maxQueued = 64;
+    private long queueTimeoutMillis = 100;
+    private int idleTimeoutMillis = 5 * 60 * 1000;
+    private int readTimeoutMillis = 30 * 1000;
+    private int maxLineBytes = BinaryProtocol.MAX_FRAME_SIZE;
+    private int maxFrameBytes = BinaryProtocol.MAX_FRAME_SIZE;
+
+    // Connections served at once; the next one is answered "ERROR BUSY" and closed
+    public ServerLimits maxConnections(int maxConnections) {
+        if (maxConnections < 0)
+            throw new IllegalArgumentException("maxConnections must not be negative");
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    // Commands executing at once across all connections
+    public ServerLimits maxInFlight(int maxInFlight) {
+        if (maxInFlight < 0)
+            throw new IllegalArgumentException("maxInFlight must not be negative");
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    // Commands that may wait, each at most timeoutMillis, for one of the
+    // maxInFlight slots; the rest are answered BUSY at once. Only the blocking
+    // engine queues, an event loop never waits.
+    public ServerLimits queue(int maxQueued, long timeoutMillis) {
+        if (maxQueued < 0 || timeoutMillis < 0)
+            throw new IllegalArgumentException("queue limits must not be negative");
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    // Longest wait for the first byte of a request
+    public ServerLimits idleTimeout(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("idleTimeout must not be negative");
+        this.idleTimeoutMillis = millis;
+        return this;
+    }
+
+    // Longest a request may take to arrive once its first byte has (and, for
+    // the NIO engine, a reply to be taken by the client)
+    public ServerLimits readTimeout(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("readTimeout must not be negative");
+        this.readTimeoutMillis = millis;
+        return this;
+    }
+
+    // Longest text line and binary frame; a longer one is answered with an
+    // error and the connection closed
+    public ServerLimits maxRequestBytes(int maxLineBytes, int maxFrameBytes) {
+        if (maxLineBytes <= 0 || maxFrameBytes < 4 || maxFrameBytes > BinaryProtocol.MAX_FRAME_SIZE)
+            throw new IllegalArgumentException("invalid request size limits");
+        this.maxLineBytes = maxLineBytes;
+        this.maxFrameBytes = maxFrameBytes;
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public long getQueueTimeoutMillis() {
+        return queueTimeoutMillis;
+    }
+
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public int getMaxLineBytes() {
+        return maxLineBytes;
+    }
+
+    public int getMaxFrameBytes() {
+        return maxFrameBytes;
+    }
+}
@@ -0,0 +1,258 @@
+package ca.concordia.server;
+
+import ca.concordia.metrics.ServerMetrics;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-connection state of the text protocol on top of CommandProcessor.
+ *
+ * Clients may pipeline: send any number of lines without waiting, and tag a
+ * line as "#id COMMAND ..." to get its reply back as "#id REPLY". Replies come
+ * back in request order.
+ *
+ * "BATCH n" followed by n command lines runs the group under a single file
+ * system lock acquisition and answers "OK n" followed by the n replies (every
+ * line carrying the BATCH line's tag, if it had one).
+ *
+ * "UPLOAD name n" followed by n chunk lines is a chunked upload: the file is
+ * emptied and each chunk appended as it arrives, so the server never holds
+ * more than one chunk. Answers "OK size" after the last chunk, or the first
+ * error (the remaining chunks are still consumed).
+ *
+ * Every command, each chunk and a whole BATCH pass through the server's
+ * AdmissionControl; one turned away is answered "ERROR BUSY". STATS is
+ * always answered.
+ */
+public class TextSession {
+
+    public static final int MAX_BATCH_SIZE = 10_000;
+
+    private static final int UPLOAD = ServerMetrics.commandOf("UPLOAD");
+    private static final int BATCH = ServerMetrics.commandOf("BATCH");
+    private static final int STATS = ServerMetrics.commandOf("STATS");
+    private static final String BUSY = "ERROR " + AdmissionControl.BUSY;
+
+    private final CommandProcessor processor;
+    private final AdmissionControl admission;
+
+    // Set while collecting the lines of a BATCH
+    private List<String> batch;
+    private int batchSize;
+    private String batchTag;
+
+    // Set while receiving the chunks of an UPLOAD
+    private String upload;
+    private int uploadRemaining;
+    private String uploadTag;
+    private String uploadError;
+    private long uploadStart;
+
+    public TextSession(CommandProcessor processor) {
+        this(processor, new AdmissionControl(new ServerLimits(), processor.getMetrics(), false));
+    }
+
+    public TextSession(CommandProcessor processor, AdmissionControl admission) {
+        this.processor = processor;
+        this.admission = admission;
+    }
+
+    /**
+     * Handles one request line and appends its reply (newline terminated) to
+     * out. Appends nothing while the line is being collected into a batch.
+     */
+    public void handle(String line, StringBuilder out) {
+        if (upload != null) {
+            receiveChunk(line, out);
+            return;
+        }
+        if (batch != null) {
+            batch.add(line);
+            if (batch.size() == batchSize)
+                runBatch(out);
+            return;
+        }
+
+        String tag = null;
+        if (line.startsWith("#")) {
+            int space = line.indexOf(' ');
+            if (space == -1) {
+                reply(out, line.substring(1), "ERROR missing command");
+                return;
+            }
+            tag = line.substring(1, space);
+            line = line.substring(space + 1);
+        }
+
+        if (line.regionMatches(true, 0, "BATCH", 0, 5) && (line.length() == 5 || line.charAt(5) == ' ')) {
+            startBatch(tag, line.substring(5).trim(), out);
+            return;
+        }
+
+        if (line.regionMatches(true, 0, "UPLOAD ", 0, 7)) {
+            startUpload(tag, line.substring(7).trim(), out);
+            return;
+        }
+
+        if (ServerMetrics.commandOf(line) == STATS) {
+            reply(out, tag, processor.process(line));
+            return;
+        }
+        if (!admission.enter()) {
+            reply(out, tag, BUSY);
+            return;
+        }
+        try {
+            reply(out, tag, processor.process(line));
+        } finally {
+            admission.exit();
+        }
+    }
+
+    // True while the following lines belong to a BATCH or UPLOAD
+    public boolean inBatch() {
+        return batch != null || upload != null;
+    }
+
+    private void startUpload(String tag, String args, StringBuilder out) {
+        uploadStart = System.nanoTime();
+        String[] parts = args.split(" +");
+        if (parts.length != 2) {
+            finish(out, tag, UPLOAD, uploadStart, "ERROR usage: UPLOAD name chunks");
+            return;
+        }
+        int n;
+        try {
+            n = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            finish(out, tag, UPLOAD, uploadStart, "ERROR invalid chunk count");
+            return;
+        }
+
+        // Turned away, the chunks are still consumed rather than run as commands.
+        // Chunks are appended locally, so a cluster node only takes uploads of
+        // the files it holds.
+        String error = null;
+        if (admission.enter()) {
+            processor.beginLocal();
+            try {
+                String owner = processor.ownerOf(parts[0]);
+                if (owner != null)
+                    error = "ERROR MOVED " + owner;
+                else
+                    processor.getFileSystem().writeFile(parts[0], new byte[0]);
+            } catch (Exception e) {
+                finish(out, tag, UPLOAD, uploadStart, "ERROR " + (e.getMessage() == null ? "unknown error" : e.getMessage()));
+                return;
+            } finally {
+                processor.endLocal();
+                admission.exit();
+            }
+        } else {
+            error = BUSY;
+        }
+        upload = parts[0];
+        uploadRemaining = n;
+        uploadTag = tag;
+        uploadError = error;
+        if (n == 0)
+            finishUpload(out);
+    }
+
+    private void receiveChunk(String line, StringBuilder out) {
+        if (uploadError == null) {
+            if (!admission.enter()) {
+                uploadError = BUSY;
+            } else {
+                processor.beginLocal();
+                try {
+                    // The file may have moved to another node since the upload began
+                    String owner = processor.ownerOf(upload);
+                    if (owner != null)
+                        uploadError = "ERROR MOVED " + owner;
+                    else
+                        processor.getFileSystem().append(upload, line.getBytes());
+                } catch (Exception e) {
+                    uploadError = "ERROR " + (e.getMessage() == null ? "unknown error" : e.getMessage());
+                } finally {
+                    processor.endLocal();
+                    admission.exit();
+                }
+            }
+        }
+        if (--uploadRemaining == 0)
+            finishUpload(out);
+    }
+
+    private void finishUpload(StringBuilder out) {
+        String name = upload;
+        String tag = uploadTag;
+        upload = null;
+        uploadTag = null;
+
+        if (uploadError != null) {
+            finish(out, tag, UPLOAD, uploadStart, uploadError);
+            return;
+        }
+        try {
+            finish(out, tag, UPLOAD, uploadStart, "OK " + processor.getFileSystem().getFileSize(name));
+        } catch (Exception e) {
+            finish(out, tag, UPLOAD, uploadStart, "ERROR " + (e.getMessage() == null ? "unknown error" : e.getMessage()));
+        }
+    }
+
+    private void startBatch(String tag, String count, StringBuilder out) {
+        int n;
+        try {
+            n = Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            reply(out, tag, "ERROR invalid batch size");
+            return;
+        }
+        if (n <= 0 || n > MAX_BATCH_SIZE) {
+            reply(out, tag, "ERROR invalid batch size");
+            return;
+        }
+
+        batch = new ArrayList<>(n);
+        batchSize = n;
+        batchTag = tag;
+    }
+
+    private void runBatch(StringBuilder out) {
+        List<String> lines = batch;
+        String tag = batchTag;
+        batch = null;
+        batchTag = null;
+
+        if (!admission.enter()) {
+            reply(out, tag, BUSY);
+            return;
+        }
+        long start = System.nanoTime();
+        List<String> replies;
+        try {
+            replies = processor.processBatch(lines);
+        } finally {
+            admission.exit();
+        }
+        finish(out, tag, BATCH, start, "OK " + replies.size());
+        for (String r : replies)
+            reply(out, tag, r);
+    }
+
+    // Replies and records the command's latency from start
+    private void finish(StringBuilder out, String tag, int command, long start, String reply) {
+        processor.getMetrics().recordCommand(command, System.nanoTime() - start, !reply.startsWith("ERROR"));
+        reply(out, tag, reply);
+    }
+
+    private static void reply(StringBuilder out, String tag, String reply) {
+        if (tag != null)
+            out.append('#').append(tag).append(' ');
+        out.append(reply).append('\n');
+    }
+}
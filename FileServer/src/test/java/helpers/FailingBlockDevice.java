@@ -0,0 +1,66 @@
+package helpers;
+
+import ca.concordia.filesystem.storage.BlockDevice;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Wraps a BlockDevice whose writes can be made to fail, standing in for a
+ * disk that errors out mid-request. Reads, zeroing and flushes keep working.
+ */
+public class FailingBlockDevice implements BlockDevice {
+
+    private final BlockDevice delegate;
+    private volatile boolean failWrites;
+
+    public FailingBlockDevice(BlockDevice delegate) {
+        this.delegate = delegate;
+    }
+
+    public void failWrites(boolean fail) {
+        failWrites = fail;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return delegate.getBlockSize();
+    }
+
+    @Override
+    public long getBlockCount() {
+        return delegate.getBlockCount();
+    }
+
+    @Override
+    public void read(long block, byte[] dst, int off, int len) throws IOException {
+        delegate.read(block, dst, off, len);
+    }
+
+    @Override
+    public void write(long block, byte[] src, int off, int len) throws IOException {
+        if (failWrites)
+            throw new IOException("write failed");
+        delegate.write(block, src, off, len);
+    }
+
+    @Override
+    public void zero(long block, int count) throws IOException {
+        delegate.zero(block, count);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return delegate.transferTo(position, count, target);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
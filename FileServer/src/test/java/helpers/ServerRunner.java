@@ -4,12 +4,18 @@ import java.io.*;
 import java.net.*;
 import java.time.Duration;
 import java.time.Instant;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
 public class ServerRunner {
+    // Kept apart from the filesystem.dat a server run by hand uses
+    private static final String VOLUME = "servertest.dat";
+
     private Process process;
 
     public void start() throws IOException, InterruptedException {
-        process = new ProcessBuilder("java", "-cp", "target/classes", "ca.concordia.Main")
+        process = new ProcessBuilder("java", "-cp", "target/classes", "ca.concordia.Main", "--volume=" + VOLUME)
                 .redirectErrorStream(true)
                 .start();
         // Wait for port to become available (server ready)
@@ -34,7 +40,20 @@ public class ServerRunner {
     public void stop() {
         if (process != null && process.isAlive()) {
             process.destroy();
+            try {
+                // Let it release the port and the volume before the next start
+                process.waitFor(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
+
+    // The server keeps its files on its volume across restarts; tests that
+    // assume an empty volume start from a fresh one
+    public static void resetVolume() throws IOException {
+        Files.deleteIfExists(Paths.get(VOLUME));
+        Files.deleteIfExists(Paths.get(VOLUME + ".journal"));
+    }
 }
 
@@ -0,0 +1,74 @@
+package helpers;
+
+import ca.concordia.filesystem.storage.BlockDevice;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Wraps a BlockDevice and sleeps on every read and write, standing in for a
+ * disk whose latency dominates. Lets concurrency tests measure overlap without
+ * depending on how many cores the machine has.
+ */
+public class SlowBlockDevice implements BlockDevice {
+
+    private final BlockDevice delegate;
+    private final long delayMillis;
+
+    public SlowBlockDevice(BlockDevice delegate, long delayMillis) {
+        this.delegate = delegate;
+        this.delayMillis = delayMillis;
+    }
+
+    private void pause() throws IOException {
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return delegate.getBlockSize();
+    }
+
+    @Override
+    public long getBlockCount() {
+        return delegate.getBlockCount();
+    }
+
+    @Override
+    public void read(long block, byte[] dst, int off, int len) throws IOException {
+        pause();
+        delegate.read(block, dst, off, len);
+    }
+
+    @Override
+    public void write(long block, byte[] src, int off, int len) throws IOException {
+        pause();
+        delegate.write(block, src, off, len);
+    }
+
+    @Override
+    public void zero(long block, int count) throws IOException {
+        pause();
+        delegate.zero(block, count);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return delegate.transferTo(position, count, target);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
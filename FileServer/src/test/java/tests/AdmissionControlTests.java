@@ -0,0 +1,226 @@
+package tests;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.ServerMetrics;
+import ca.concordia.server.AdmissionControl;
+import ca.concordia.server.CommandProcessor;
+import ca.concordia.server.ConnectionExecutor;
+import ca.concordia.server.FileServer;
+import ca.concordia.server.NioFileServer;
+import ca.concordia.server.ServerLimits;
+import ca.concordia.server.TextSession;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionControlTests {
+
+    private static final String DISK = "limitsfs.dat";
+    // Each start() listens on a port of its own, so a probe can't reach the
+    // previous server while it is still closing
+    private static int nextPort = 12360;
+
+    private int port;
+
+    private FileSystemManager fs;
+    private Runnable stop;
+    private ServerMetrics metrics;
+
+    @BeforeEach
+    void setup() throws Exception {
+        delete();
+        fs = new FileSystemManager(DISK, 64 * 128);
+    }
+
+    @AfterEach
+    void cleanup() throws Exception {
+        if (stop != null)
+            stop.run();
+        fs.close();
+        delete();
+    }
+
+    private static void delete() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+    }
+
+    private void start(boolean nio, ServerLimits limits) throws Exception {
+        if (stop != null)
+            stop.run();
+        port = nextPort++;
+        if (nio) {
+            NioFileServer server = new NioFileServer(port, fs, 1, limits);
+            metrics = server.getMetrics();
+            stop = server::stop;
+            new Thread(server).start();
+        } else {
+            FileServer server = new FileServer(port, fs, ConnectionExecutor.virtual(), limits);
+            metrics = server.getMetrics();
+            stop = server::stop;
+            new Thread(server).start();
+        }
+        for (int i = 0; i < 50; i++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", port), 200);
+            } catch (Exception e) {
+                Thread.sleep(100);
+                continue;
+            }
+            // Until the probe has come and gone it holds a connection slot
+            waitFor("connections.total", 1);
+            waitFor("connections.active", 0);
+            return;
+        }
+        fail("server did not start");
+    }
+
+    private long metric(String name) {
+        return metrics.snapshot().get(name).longValue();
+    }
+
+    private void waitFor(String name, long value) throws InterruptedException {
+        for (int i = 0; i < 100 && metric(name) != value; i++)
+            Thread.sleep(50);
+        assertEquals(value, metric(name), name);
+    }
+
+    @Test
+    @Timeout(30)
+    void testConnectionsOverTheLimitAreTurnedAway() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            start(nio, new ServerLimits().maxConnections(1));
+            long rejected = metric("connections.rejected");
+
+            try (Socket first = new Socket("localhost", port);
+                 Socket second = new Socket("localhost", port)) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(second.getInputStream()));
+                assertEquals("ERROR BUSY", in.readLine());
+                assertNull(in.readLine());
+
+                // The admitted connection is served as usual
+                PrintWriter out = new PrintWriter(first.getOutputStream(), true);
+                out.println("LIST");
+                assertNotNull(new BufferedReader(new InputStreamReader(first.getInputStream())).readLine());
+            }
+            assertEquals(rejected + 1, metric("connections.rejected"));
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testIdleAndStalledConnectionsAreClosed() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            start(nio, new ServerLimits().idleTimeout(300).readTimeout(300));
+
+            try (Socket idle = new Socket("localhost", port);
+                 Socket stalled = new Socket("localhost", port)) {
+                stalled.getOutputStream().write("LIS".getBytes());
+                assertEquals(-1, idle.getInputStream().read());
+                assertEquals(-1, stalled.getInputStream().read());
+            }
+            waitFor("connections.idle_timeouts", 1);
+            waitFor("connections.read_timeouts", 1);
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testReadTimeoutRestartsWithEachRequest() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            start(nio, new ServerLimits().readTimeout(400));
+
+            try (Socket s = new Socket("localhost", port)) {
+                OutputStream out = s.getOutputStream();
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                // The second request starts in the bytes ending the first, so
+                // it has 400 ms from then, not from when the first began
+                out.write("CREATE ".getBytes());
+                Thread.sleep(300);
+                out.write("a\nCREA".getBytes());
+                Thread.sleep(300);
+                out.write("TE b\n".getBytes());
+                assertEquals("OK", in.readLine());
+                assertEquals("OK", in.readLine());
+            }
+            assertEquals(0, metric("connections.read_timeouts"));
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testOversizedRequestsAreRefused() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            start(nio, new ServerLimits().maxRequestBytes(100, 100));
+
+            try (Socket text = new Socket("localhost", port)) {
+                PrintWriter out = new PrintWriter(text.getOutputStream(), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(text.getInputStream()));
+                out.println("CREATE " + "x".repeat(50));
+                assertTrue(in.readLine().startsWith("ERROR"));
+                out.println("CREATE " + "x".repeat(200));
+                assertEquals("ERROR line too long", in.readLine());
+                assertNull(in.readLine());
+            }
+
+            try (Socket binary = new Socket("localhost", port)) {
+                OutputStream out = binary.getOutputStream();
+                out.write("BINARY\n".getBytes());
+                assertEquals('O', binary.getInputStream().read());
+                assertEquals('K', binary.getInputStream().read());
+                assertEquals('\n', binary.getInputStream().read());
+                out.write(new byte[]{0, 0, 1, 0}); // 256 byte frame, refused on its length
+                byte[] reply = binary.getInputStream().readAllBytes();
+                assertEquals(1, reply[8]); // STATUS_ERROR, then closed
+            }
+            assertEquals(2, metric("requests.too_large"));
+        }
+    }
+
+    @Test
+    void testCommandsPastTheInFlightLimitAreBusy() throws Exception {
+        ServerMetrics metrics = new ServerMetrics(fs);
+        AdmissionControl admission = new AdmissionControl(new ServerLimits().maxInFlight(1), metrics, false);
+        TextSession session = new TextSession(new CommandProcessor(fs, metrics), admission);
+        StringBuilder out = new StringBuilder();
+
+        assertTrue(admission.enter());
+        session.handle("#1 LIST", out);
+        session.handle("STATS commands.rejected", out);
+        // An UPLOAD turned away still takes its chunks
+        session.handle("UPLOAD f 2", out);
+        session.handle("one", out);
+        session.handle("two", out);
+        assertEquals("#1 ERROR BUSY\ncommands.rejected=1\nERROR BUSY\n", out.toString());
+        assertEquals(1, metrics.snapshot().get("commands.in_flight").longValue());
+
+        admission.exit();
+        out.setLength(0);
+        session.handle("CREATE f", out);
+        assertEquals("OK\n", out.toString());
+        assertEquals(0, metrics.snapshot().get("commands.in_flight").longValue());
+
+        // A queued command gets the slot if it is freed in time
+        AdmissionControl queueing = new AdmissionControl(
+                new ServerLimits().maxInFlight(1).queue(1, 5000), metrics, true);
+        assertTrue(queueing.enter());
+        new Thread(() -> {
+            try { Thread.sleep(100); } catch (InterruptedException ignored) {}
+            queueing.exit();
+        }).start();
+        assertTrue(queueing.enter());
+        queueing.exit();
+    }
+}
@@ -0,0 +1,111 @@
+package tests;
+
+import ca.concordia.filesystem.allocation.BlockAllocator;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockAllocatorTests {
+
+    @Test
+    void testAllocateAndFree() {
+        BlockAllocator alloc = new BlockAllocator(100, BlockAllocator.Policy.FIRST_FIT);
+        assertEquals(0, alloc.allocate(10));
+        assertEquals(10, alloc.allocate(5));
+        assertEquals(85, alloc.getFreeBlocks());
+
+        alloc.free(0, 10);
+        assertEquals(95, alloc.getFreeBlocks());
+        assertTrue(alloc.isFree(0));
+        assertFalse(alloc.isFree(10));
+    }
+
+    @Test
+    void testFirstFitTakesLowestHole() {
+        BlockAllocator alloc = new BlockAllocator(100, BlockAllocator.Policy.FIRST_FIT);
+        alloc.allocate(10);           // 0..9
+        long b = alloc.allocate(10);  // 10..19
+        alloc.allocate(10);           // 20..29
+        alloc.free(b, 10);
+
+        assertEquals(10, alloc.allocate(4));
+    }
+
+    @Test
+    void testBestFitTakesSmallestHole() {
+        BlockAllocator alloc = new BlockAllocator(100, BlockAllocator.Policy.BEST_FIT);
+        long a = alloc.allocate(20);  // 0..19
+        alloc.allocate(1);            // 20
+        long c = alloc.allocate(5);   // 21..25
+        alloc.allocate(1);            // 26
+        alloc.free(a, 20);
+        alloc.free(c, 5);
+
+        assertEquals(21, alloc.allocate(5));
+    }
+
+    @Test
+    void testNextFitWrapsAround() {
+        BlockAllocator alloc = new BlockAllocator(10, BlockAllocator.Policy.NEXT_FIT);
+        assertEquals(0, alloc.allocate(4));
+        assertEquals(4, alloc.allocate(4));
+        alloc.free(0, 4);
+
+        // Resumes after block 7, finds nothing long enough there, wraps to 0
+        assertEquals(0, alloc.allocate(3));
+    }
+
+    @Test
+    void testRunsAcrossWordBoundaries() {
+        BlockAllocator alloc = new BlockAllocator(200, BlockAllocator.Policy.FIRST_FIT);
+        assertEquals(0, alloc.allocate(60));
+        assertEquals(60, alloc.allocate(70));   // spans words 0..2
+        assertEquals(130, alloc.allocate(70));
+        assertEquals(-1, alloc.allocate(1));
+
+        alloc.free(60, 70);
+        assertTrue(alloc.allocateAt(63, 2));
+        assertFalse(alloc.allocateAt(62, 3));
+        assertEquals(65, alloc.allocate(65));
+    }
+
+    @Test
+    void testFragmentationFailsContiguousRequest() {
+        BlockAllocator alloc = new BlockAllocator(10, BlockAllocator.Policy.FIRST_FIT);
+        for (int i = 0; i < 10; i++)
+            alloc.allocate(1);
+        for (int i = 0; i < 10; i += 2)
+            alloc.free(i, 1);
+
+        assertEquals(5, alloc.getFreeBlocks());
+        assertEquals(5, alloc.getFreeExtentCount());
+        assertEquals(1, alloc.getLargestFreeExtent());
+        assertEquals(0.8, alloc.getFragmentation(), 1e-9);
+        assertEquals(-1, alloc.allocate(2));
+        assertEquals(1, alloc.getFailedAllocations());
+    }
+
+    @Test
+    void testFreeMergesNeighbours() {
+        BlockAllocator alloc = new BlockAllocator(30, BlockAllocator.Policy.FIRST_FIT);
+        alloc.allocate(10);
+        alloc.allocate(10);
+        alloc.allocate(10);
+        alloc.free(0, 10);
+        alloc.free(20, 10);
+        assertEquals(2, alloc.getFreeExtentCount());
+
+        alloc.free(10, 10);
+        assertEquals(1, alloc.getFreeExtentCount());
+        assertEquals(30, alloc.getLargestFreeExtent());
+        assertEquals(0.0, alloc.getFragmentation(), 1e-9);
+    }
+
+    @Test
+    void testDoubleFreeRejected() {
+        BlockAllocator alloc = new BlockAllocator(10, BlockAllocator.Policy.FIRST_FIT);
+        alloc.allocate(3);
+        alloc.free(0, 3);
+        assertThrows(IllegalStateException.class, () -> alloc.free(0, 3));
+    }
+}
@@ -0,0 +1,80 @@
+package tests;
+
+import ca.concordia.filesystem.storage.CachingBlockDevice;
+import ca.concordia.filesystem.storage.StorageMode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockCacheTests {
+
+    private static final String DISK = "cachefs.dat";
+
+    private CachingBlockDevice cache;
+
+    @BeforeEach
+    void setup() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        // Room for 4 of the 16 blocks
+        cache = new CachingBlockDevice(StorageMode.CHANNEL.open(DISK, 128, 16), 4 * 128);
+    }
+
+    @AfterEach
+    void cleanup() throws Exception {
+        cache.close();
+        Files.deleteIfExists(Paths.get(DISK));
+    }
+
+    private static byte[] filled(int size, int value) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    @Test
+    void testRepeatedReadsHit() throws Exception {
+        cache.write(2, filled(200, 7), 0, 200);
+
+        byte[] out = new byte[200];
+        cache.read(2, out, 0, 200);
+        cache.read(2, out, 0, 200);
+        cache.read(2, out, 0, 200);
+
+        assertArrayEquals(filled(200, 7), out);
+        assertEquals(2, cache.getMisses());
+        assertEquals(4, cache.getHits());
+    }
+
+    @Test
+    void testWriteInvalidates() throws Exception {
+        byte[] out = new byte[128];
+        cache.write(5, filled(128, 1), 0, 128);
+        cache.read(5, out, 0, 128);
+
+        cache.write(5, filled(128, 2), 0, 128);
+        cache.read(5, out, 0, 128);
+        assertArrayEquals(filled(128, 2), out);
+
+        cache.zero(5, 1);
+        cache.read(5, out, 0, 128);
+        assertArrayEquals(new byte[128], out);
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    void testBudgetIsRespected() throws Exception {
+        byte[] out = new byte[128];
+        for (int b = 0; b < 16; b++)
+            cache.read(b, out, 0, 128);
+
+        assertEquals(4, cache.getCapacityBlocks());
+        assertTrue(cache.getCachedBlocks() <= 4);
+        assertEquals(12, cache.getEvictions());
+    }
+}
@@ -0,0 +1,174 @@
+package tests;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.storage.StorageMode;
+import helpers.FailingBlockDevice;
+import helpers.SlowBlockDevice;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockScrubberTests {
+
+    private static final String DISK = "scrubfs.dat";
+    private static final String JOURNAL = DISK + ".journal";
+    private static final long DISK_DELAY_MS = 200;
+
+    private FileSystemManager fs;
+
+    @AfterEach
+    void cleanup() throws Exception {
+        if (fs != null) fs.close();
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(JOURNAL));
+    }
+
+    private FileSystemManager volume(FileSystemConfig config, long delayMillis) throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(JOURNAL));
+        fs = new FileSystemManager(
+                new SlowBlockDevice(StorageMode.CHANNEL.open(DISK, 128, 64), delayMillis),
+                config.journalFile(JOURNAL));
+        return fs;
+    }
+
+    private static byte[] secret(int size) {
+        byte[] data = new byte[size];
+        byte[] word = "SECRET".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < size; i++)
+            data[i] = word[i % word.length];
+        return data;
+    }
+
+    @Test
+    void testDeleteIsMetadataOnlyAndScrubbedLater() throws Exception {
+        volume(new FileSystemConfig(), DISK_DELAY_MS);
+        fs.createFile("a");
+        fs.writeFile("a", secret(1000));
+
+        // No data block I/O on the slow device while the client waits
+        long start = System.nanoTime();
+        fs.deleteFile("a");
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMs < DISK_DELAY_MS, "delete waited " + elapsedMs + " ms for the disk");
+        assertEquals(8, fs.getDirtyFreeBlocks());
+
+        // The scrubber zeroes all 8 blocks with one write
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (fs.getDirtyFreeBlocks() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertEquals("dirty=0 scrubbed=8", fs.getScrubberStats());
+
+        fs.close();
+        fs = null;
+        String raw = new String(Files.readAllBytes(Paths.get(DISK)), StandardCharsets.US_ASCII);
+        assertFalse(raw.contains("SECRET"));
+    }
+
+    @Test
+    void testReusedBlocksNeverShowOldData() throws Exception {
+        // Without the scrubber, freed blocks keep their old bytes
+        volume(new FileSystemConfig().scrubFreedBlocks(false), 0);
+        fs.createFile("a");
+        fs.writeFile("a", secret(1000));
+        fs.deleteFile("a");
+
+        fs.createFile("b");
+        fs.writeFile("b", new byte[10]);
+        fs.append("b", new byte[5]);
+        assertArrayEquals(new byte[15], fs.readFile("b"));
+        assertArrayEquals(new byte[15], fs.read("b", 0, 1000));
+
+        // A contiguous rewrite into the dirty blocks, read through the tail block
+        fs.writeFile("b", new byte[300]);
+        assertArrayEquals(new byte[300], fs.readFile("b"));
+        assertEquals("disabled", fs.getScrubberStats());
+    }
+
+    @Test
+    void testFailedWriteNeverShowsOldData() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(JOURNAL));
+        FailingBlockDevice device = new FailingBlockDevice(StorageMode.CHANNEL.open(DISK, 128, 64));
+        fs = new FileSystemManager(device, new FileSystemConfig().journalFile(JOURNAL));
+        fs.createFile("a");
+        fs.writeFile("a", secret(1000));
+        fs.deleteFile("a");
+
+        // b gets a's blocks before they are scrubbed, then its data never lands
+        fs.createFile("b");
+        device.failWrites(true);
+        assertThrows(IOException.class, () -> fs.writeFile("b", new byte[1000]));
+        device.failWrites(false);
+        assertEquals(0, fs.readFile("b").length);
+
+        // The blocks are dirty again and get zeroed after all
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (fs.getDirtyFreeBlocks() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertEquals(0, fs.getDirtyFreeBlocks());
+        fs.close();
+        fs = null;
+        String raw = new String(Files.readAllBytes(Paths.get(DISK)), StandardCharsets.US_ASCII);
+        assertFalse(raw.contains("SECRET"));
+
+        fs = new FileSystemManager(StorageMode.CHANNEL.open(DISK, 128, 64), new FileSystemConfig().journalFile(JOURNAL));
+        assertEquals(0, fs.readFile("b").length);
+    }
+
+    @Test
+    void testScrubbingDoesNotHoldUpMetadataChanges() throws Exception {
+        long delay = 400;
+        volume(new FileSystemConfig(), delay);
+        fs.createFile("a");
+        fs.writeFile("a", secret(1000));
+        fs.deleteFile("a");
+
+        // Well into the scrubber's slow write of a's blocks
+        Thread.sleep(delay / 4);
+        long start = System.nanoTime();
+        fs.createFile("b");
+        fs.deleteFile("b");
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMs < delay / 2, "metadata waited " + elapsedMs + " ms for the scrubber");
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (fs.getDirtyFreeBlocks() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertEquals("dirty=0 scrubbed=8", fs.getScrubberStats());
+    }
+
+    @Test
+    void testScrubbingDoesNotTakeSpaceFromWrites() throws Exception {
+        long delay = 400;
+        volume(new FileSystemConfig(), delay);
+        fs.createFile("a");
+        fs.writeFile("a", secret(1000));
+        Matcher free = Pattern.compile("free=(\\d+)").matcher(fs.getAllocatorStats());
+        assertTrue(free.find());
+        fs.createFile("full");
+        fs.writeFile("full", new byte[Integer.parseInt(free.group(1)) * 128]);
+        fs.deleteFile("a");
+
+        // Well into the scrubber's slow write of a's blocks, which are all the
+        // free space there is: the write gets them, and its bytes land after the zeroes
+        Thread.sleep(delay / 4);
+        byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) 7);
+        fs.createFile("b");
+        fs.writeFile("b", data);
+        assertArrayEquals(data, fs.readFile("b"));
+        assertTrue(fs.getAllocatorStats().contains("allocations=3 "), fs.getAllocatorStats());
+        assertTrue(fs.getAllocatorStats().contains("frees=1"), fs.getAllocatorStats());
+    }
+}
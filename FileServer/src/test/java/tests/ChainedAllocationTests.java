@@ -0,0 +1,172 @@
+package tests;
+
+import ca.concordia.filesystem.FileRegion;
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChainedAllocationTests {
+
+    private static final String DISK = "chainfs.dat";
+
+    private FileSystemManager fs;
+
+    @AfterEach
+    void cleanup() throws Exception {
+        if (fs != null) fs.close();
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+    }
+
+    // Fills the 10-block volume with five 2-block files and frees two
+    // non-adjacent holes, leaving 4 free blocks but no run longer than 2
+    private FileSystemManager fragmentedVolume(FileSystemConfig.AllocationMode mode) throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+        fs = new FileSystemManager(DISK, 10 * 128, new FileSystemConfig().allocationMode(mode));
+        for (String name : new String[]{"a", "b", "c", "d", "e"}) {
+            fs.createFile(name);
+            fs.writeFile(name, new byte[256]);
+        }
+        fs.deleteFile("b");
+        fs.deleteFile("d");
+        return fs;
+    }
+
+    private static byte[] pattern(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (i * 31 + 7);
+        return data;
+    }
+
+    @Test
+    void testContiguousModeFailsOnFragmentedVolume() throws Exception {
+        FileSystemManager fs = fragmentedVolume(FileSystemConfig.AllocationMode.CONTIGUOUS);
+        fs.createFile("big");
+        Exception ex = assertThrows(Exception.class, () -> fs.writeFile("big", pattern(500)));
+        assertTrue(ex.getMessage().contains("too large"));
+    }
+
+    @Test
+    void testChainedModeSpansFragments() throws Exception {
+        FileSystemManager fs = fragmentedVolume(FileSystemConfig.AllocationMode.CHAINED);
+        fs.createFile("big");
+        byte[] data = pattern(500);
+        fs.writeFile("big", data);
+
+        assertArrayEquals(data, fs.readFile("big"));
+        assertArrayEquals(new byte[256], fs.readFile("a"));
+    }
+
+    @Test
+    void testRegionTransferFollowsChain() throws Exception {
+        FileSystemManager fs = fragmentedVolume(FileSystemConfig.AllocationMode.CHAINED);
+        fs.createFile("big");
+        byte[] data = pattern(500);
+        fs.writeFile("big", data);
+
+        FileRegion region = fs.openRegion("big");
+        assertEquals(2, region.getExtentCount());
+        assertEquals(500, region.getLength());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        long sent = 0;
+        while (sent < region.getLength())
+            sent += fs.transferTo(region, sent, region.getLength() - sent, target);
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    void testFailedChainedWriteKeepsOldContents() throws Exception {
+        FileSystemManager fs = fragmentedVolume(FileSystemConfig.AllocationMode.CHAINED);
+        byte[] old = fs.readFile("c");
+        assertThrows(Exception.class, () -> fs.writeFile("c", new byte[10 * 128]));
+        assertArrayEquals(old, fs.readFile("c"));
+    }
+
+    @Test
+    void testFailedWriteKeepsOldBlocksReserved() throws Exception {
+        for (FileSystemConfig.AllocationMode mode : FileSystemConfig.AllocationMode.values()) {
+            Files.deleteIfExists(Paths.get(DISK));
+            fs = new FileSystemManager(DISK, 10 * 128, new FileSystemConfig().allocationMode(mode));
+            byte[] old = pattern(5 * 128);
+            fs.createFile("a");
+            fs.writeFile("a", old);
+            fs.createFile("b");
+            fs.writeFile("b", new byte[3 * 128]);
+
+            // Fails with 7 blocks free once a's are released
+            assertThrows(Exception.class, () -> fs.writeFile("a", new byte[10 * 128]));
+
+            // Only the 2 blocks nobody holds are left for other files
+            fs.createFile("c");
+            assertThrows(Exception.class, () -> fs.writeFile("c", new byte[3 * 128]));
+            fs.writeFile("c", new byte[2 * 128]);
+            assertArrayEquals(old, fs.readFile("a"));
+            fs.close();
+            fs = null;
+        }
+    }
+
+    @Test
+    void testOpenRegionKeepsBlocksOfDeletedFile() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        fs = new FileSystemManager(DISK, 10 * 128);
+        byte[] old = pattern(5 * 128);
+        fs.createFile("a");
+        fs.writeFile("a", old);
+
+        FileRegion region = fs.openRegion("a");
+        fs.deleteFile("a");
+
+        // Until the transfer is done a's blocks aren't handed out again
+        fs.createFile("b");
+        fs.writeFile("b", new byte[5 * 128]);
+        fs.createFile("c");
+        assertThrows(Exception.class, () -> fs.writeFile("c", new byte[128]));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        long sent = 0;
+        while (sent < region.getLength())
+            sent += fs.transferTo(region, sent, region.getLength() - sent, target);
+        assertArrayEquals(old, out.toByteArray());
+
+        region.close();
+        fs.writeFile("c", new byte[5 * 128]);
+    }
+
+    @Test
+    void testFailedRewriteUnderOpenRegionKeepsBlocks() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        fs = new FileSystemManager(DISK, 10 * 128);
+        byte[] old = pattern(4 * 128);
+        fs.createFile("a");
+        fs.writeFile("a", old);
+        fs.createFile("x");
+        fs.writeFile("x", new byte[128]);
+
+        // x is in the way and a's blocks are held for the region, so no run
+        // of 7 can be found
+        FileRegion region = fs.openRegion("a");
+        assertThrows(Exception.class, () -> fs.writeFile("a", new byte[7 * 128]));
+        region.close();
+
+        // Closing the region must not have freed them from under a
+        assertTrue(fs.getAllocatorStats().contains("used=5 "), fs.getAllocatorStats());
+        fs.createFile("b");
+        fs.writeFile("b", new byte[4 * 128]);
+        assertArrayEquals(old, fs.readFile("a"));
+    }
+}
@@ -0,0 +1,281 @@
+package tests;
+
+import ca.concordia.cluster.ClusterRouter;
+import ca.concordia.cluster.HashRing;
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.server.ConnectionExecutor;
+import ca.concordia.server.FileServer;
+import ca.concordia.server.NioFileServer;
+import ca.concordia.server.ServerLimits;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusterTests {
+
+    private static final int BASE_PORT = 12371;
+
+    private final List<FileServer> servers = new ArrayList<>();
+    private final List<ClusterRouter> routers = new ArrayList<>();
+
+    @AfterEach
+    void cleanup() throws Exception {
+        for (ClusterRouter router : routers)
+            router.close();
+        for (FileServer server : servers)
+            server.stop();
+        for (ClusterRouter router : routers)
+            router.getFileSystem().close();
+        for (int i = 0; i < 4; i++) {
+            Files.deleteIfExists(Paths.get("cluster" + i + ".dat"));
+            Files.deleteIfExists(Paths.get("cluster" + i + ".dat.journal"));
+        }
+    }
+
+    private static String address(int i) {
+        return "localhost:" + (BASE_PORT + i);
+    }
+
+    private ClusterRouter startNode(int i, List<String> members) throws Exception {
+        Files.deleteIfExists(Paths.get("cluster" + i + ".dat"));
+        Files.deleteIfExists(Paths.get("cluster" + i + ".dat.journal"));
+        FileSystemManager fs = new FileSystemManager("cluster" + i + ".dat", 64 * 128,
+                new FileSystemConfig().maxFiles(32));
+        ClusterRouter router = new ClusterRouter(fs, address(i), members, ClusterRouter.DEFAULT_VNODES);
+        router.listen();
+        FileServer server = new FileServer(BASE_PORT + i, router, ConnectionExecutor.virtual(), new ServerLimits());
+        routers.add(router);
+        servers.add(server);
+        new Thread(server).start();
+
+        for (int attempt = 0; ; attempt++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", BASE_PORT + i), 200);
+                return router;
+            } catch (Exception e) {
+                if (attempt == 50)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static String send(int node, String line) throws Exception {
+        try (Socket s = new Socket("localhost", BASE_PORT + node)) {
+            PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+            out.println(line);
+            return new BufferedReader(new InputStreamReader(s.getInputStream())).readLine();
+        }
+    }
+
+    private static List<String> local(ClusterRouter router) {
+        return Arrays.asList(router.getFileSystem().listFiles());
+    }
+
+    @Test
+    void testJoiningNodeTakesOnlyItsShare() {
+        List<String> nodes = List.of("a:1", "b:2", "c:3");
+        HashRing three = new HashRing(nodes, ClusterRouter.DEFAULT_VNODES);
+        HashRing four = three.with("d:4");
+        assertEquals(List.of("a:1", "b:2", "c:3", "d:4"), four.getNodes());
+
+        Map<String, Integer> owned = new HashMap<>();
+        int moved = 0;
+        for (int i = 0; i < 10_000; i++) {
+            String name = "file" + i;
+            String before = three.owner(name);
+            String after = four.owner(name);
+            if (!before.equals(after)) {
+                assertEquals("d:4", after, name + " moved between old nodes");
+                moved++;
+            }
+            owned.merge(after, 1, Integer::sum);
+        }
+        // About a quarter moves, and every node gets a fair share
+        assertTrue(moved > 1500 && moved < 3500, "moved " + moved);
+        for (int count : owned.values())
+            assertTrue(count > 1500 && count < 3500, "owned " + owned);
+
+        // Placement doesn't depend on the order nodes are listed in
+        HashRing reversed = new HashRing(List.of("d:4", "c:3", "b:2", "a:1"), ClusterRouter.DEFAULT_VNODES);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(four.owner("file" + i), reversed.owner("file" + i));
+    }
+
+    @Test
+    @Timeout(60)
+    void testNodesShareFilesAndRebalanceOnJoin() throws Exception {
+        List<String> members = List.of(address(0), address(1), address(2));
+        for (int i = 0; i < 3; i++)
+            startNode(i, members);
+
+        // Any node takes any command; each file lands on its owner only
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            String name = "f" + i;
+            names.add(name);
+            assertEquals("OK", send(i % 3, "CREATE " + name));
+            assertEquals("OK", send((i + 1) % 3, "WRITE " + name + " value " + i));
+        }
+        HashRing ring = routers.get(0).getRing();
+        for (String name : names) {
+            for (ClusterRouter router : routers)
+                assertEquals(ring.owner(name).equals(router.getSelf()), local(router).contains(name), name);
+        }
+        for (int i = 0; i < 3; i++)
+            assertEquals(new TreeSet<>(names), new TreeSet<>(Arrays.asList(send(i, "LIST").split(" "))));
+
+        // A fourth node joins and receives exactly the files it now owns
+        ClusterRouter joined = startNode(3, List.of());
+        joined.join(address(1));
+        HashRing bigger = joined.getRing();
+        assertEquals(4, bigger.getNodes().size());
+
+        int moved = 0;
+        for (String name : names) {
+            String owner = bigger.owner(name);
+            if (!owner.equals(ring.owner(name))) {
+                assertEquals(address(3), owner);
+                moved++;
+            }
+            for (ClusterRouter router : routers)
+                assertEquals(owner.equals(router.getSelf()), local(router).contains(name), name);
+        }
+        long migrated = 0;
+        for (ClusterRouter router : routers)
+            migrated += router.getMetrics().snapshot().get("cluster.migrated").longValue();
+        assertEquals(moved, migrated);
+
+        for (String name : names) {
+            int i = Integer.parseInt(name.substring(1));
+            assertEquals("value " + i, send(i % 4, "READ " + name));
+        }
+        assertEquals(new TreeSet<>(names), new TreeSet<>(Arrays.asList(send(3, "LIST").split(" "))));
+
+        // Uploads go to the node holding the file
+        String remote = names.stream().filter(n -> !bigger.owner(n).equals(address(0))).findFirst().get();
+        assertTrue(send(0, "UPLOAD " + remote + " 0").startsWith("ERROR MOVED localhost:"));
+    }
+
+    @Test
+    @Timeout(60)
+    void testClientsCannotSendPeerCommands() throws Exception {
+        ClusterRouter router = startNode(0, List.of());
+
+        assertTrue(send(0, "MIGRATE x aGk=").startsWith("ERROR"));
+        assertTrue(send(0, "FWD 0 CREATE y").startsWith("ERROR"));
+        assertTrue(send(0, "CLUSTER JOIN localhost:1").startsWith("ERROR"));
+        assertTrue(local(router).isEmpty());
+        assertEquals(List.of(address(0)), router.getRing().getNodes());
+    }
+
+    @Test
+    @Timeout(60)
+    void testWritesDuringJoinAreKept() throws Exception {
+        List<String> members = List.of(address(0), address(1), address(2));
+        for (int i = 0; i < 3; i++)
+            startNode(i, members);
+        for (int i = 0; i < 16; i++)
+            assertEquals("OK", send(i % 3, "CREATE f" + i));
+
+        // Files keep being written while the members hand them over
+        Map<String, String> last = new HashMap<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<String> failures = new ArrayList<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int k = 0; !stop.get(); k++) {
+                    String name = "f" + (k % 16);
+                    String reply = send(k % 3, "WRITE " + name + " w" + k);
+                    if (reply.equals("OK"))
+                        last.put(name, "w" + k);
+                    else
+                        failures.add(name + ": " + reply);
+                }
+            } catch (Exception e) {
+                failures.add(e.toString());
+            }
+        });
+        writer.start();
+        Thread.sleep(200);
+        ClusterRouter joined = startNode(3, List.of());
+        joined.join(address(0));
+        Thread.sleep(200);
+        stop.set(true);
+        writer.join();
+
+        assertEquals(List.of(), failures);
+        HashRing ring = joined.getRing();
+        for (int i = 0; i < 16; i++) {
+            String name = "f" + i;
+            for (ClusterRouter router : routers)
+                assertEquals(ring.owner(name).equals(router.getSelf()), local(router).contains(name), name);
+            assertEquals(last.get(name), send(i % 4, "READ " + name), name);
+        }
+    }
+
+    @Test
+    @Timeout(60)
+    void testNioNodeKeepsServingWhileAPeerIsSlow() throws Exception {
+        // Node 1 accepts peer connections but never answers
+        ServerSocket silent = new ServerSocket(BASE_PORT + 1 + ClusterRouter.PEER_PORT_OFFSET);
+        try {
+            Files.deleteIfExists(Paths.get("cluster0.dat"));
+            // Not waiting for journal forces, so only the cluster makes commands leave the loop
+            FileSystemManager fs = new FileSystemManager("cluster0.dat", 64 * 128,
+                    new FileSystemConfig().maxFiles(32).durability(FileSystemConfig.Durability.ASYNC));
+            ClusterRouter router = new ClusterRouter(fs, address(0), List.of(address(1)), ClusterRouter.DEFAULT_VNODES);
+            routers.add(router);
+            NioFileServer server = new NioFileServer(BASE_PORT, router, 1, new ServerLimits());
+            new Thread(server).start();
+            try {
+                String remote = null, here = null;
+                for (int i = 0; remote == null || here == null; i++) {
+                    if (router.getRing().owner("f" + i).equals(address(0)))
+                        here = "f" + i;
+                    else
+                        remote = "f" + i;
+                }
+                Thread.sleep(200);
+
+                // Waits on node 1 ...
+                Socket waiting = new Socket("localhost", BASE_PORT);
+                new PrintWriter(waiting.getOutputStream(), true).println("READ " + remote);
+                Thread.sleep(200);
+
+                // ... while the only event loop goes on serving everyone else
+                try (Socket s = new Socket("localhost", BASE_PORT)) {
+                    s.setSoTimeout(5000); // the peer timeout is 10 s
+                    PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                    out.println("CREATE " + here);
+                    assertEquals("OK", in.readLine());
+                }
+                waiting.close();
+            } finally {
+                server.stop();
+            }
+        } finally {
+            silent.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package tests;
+
+import ca.concordia.filesystem.FileRegion;
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressionTests {
+
+    private static final String DISK = "compressfs.dat";
+
+    private FileSystemManager fs;
+
+    @BeforeEach
+    void setup() throws Exception {
+        delete();
+        fs = new FileSystemManager(DISK, 64 * 128, new FileSystemConfig().compression(true));
+    }
+
+    @AfterEach
+    void cleanup() throws Exception {
+        fs.close();
+        delete();
+    }
+
+    private static void delete() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+    }
+
+    private static byte[] text(int size) {
+        byte[] line = "the quick brown fox jumps over the lazy dog\n".getBytes();
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = line[i % line.length];
+        return data;
+    }
+
+    private long metric(String name) {
+        Map<String, Number> metrics = new HashMap<>();
+        fs.collectMetrics(metrics);
+        return metrics.get(name).longValue();
+    }
+
+    private long used() {
+        return metric("alloc.used");
+    }
+
+    @Test
+    void testTextIsStoredCompressed() throws Exception {
+        byte[] data = text(2000); // 16 blocks as is
+        fs.createFile("t");
+        fs.writeFile("t", data);
+        assertTrue(used() < 4, "used " + used());
+
+        assertArrayEquals(data, fs.readFile("t"));
+        assertEquals(2000, fs.getFileSize("t"));
+        assertArrayEquals(Arrays.copyOfRange(data, 150, 450), fs.read("t", 150, 300));
+
+        // Streamed like an uncompressed region
+        FileRegion region = fs.openRegion("t", 100, 50);
+        assertEquals(50, region.getLength());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long sent = 0;
+        while (sent < region.getLength())
+            sent += fs.transferTo(region, sent, region.getLength() - sent, Channels.newChannel(out));
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 150), out.toByteArray());
+
+        // Survives a remount
+        fs.close();
+        fs = new FileSystemManager(DISK, 64 * 128, new FileSystemConfig());
+        assertArrayEquals(data, fs.readFile("t"));
+    }
+
+    @Test
+    void testIncompressibleAndOptedOutDataIsStoredAsIs() throws Exception {
+        byte[] noise = new byte[1000];
+        new Random(1).nextBytes(noise);
+        fs.createFile("n");
+        fs.writeFile("n", noise);
+        assertEquals(8, used());
+        assertArrayEquals(noise, fs.readFile("n"));
+
+        fs.createFile("p");
+        fs.writeFile("p", text(1000), false);
+        assertEquals(16, used());
+        assertArrayEquals(text(1000), fs.readFile("p"));
+    }
+
+    @Test
+    void testAppendAndPatchCompressedFile() throws Exception {
+        byte[] data = text(1000);
+        fs.createFile("a");
+        fs.writeFile("a", data);
+
+        fs.append("a", "tail".getBytes());
+        fs.patch("a", 0, "THE".getBytes());
+        byte[] expected = Arrays.copyOf(data, 1004);
+        System.arraycopy("tail".getBytes(), 0, expected, 1000, 4);
+        System.arraycopy("THE".getBytes(), 0, expected, 0, 3);
+        assertArrayEquals(expected, fs.readFile("a"));
+
+        // Rewriting it whole compresses it again
+        fs.writeFile("a", data);
+        assertTrue(used() < 4, "used " + used());
+        assertArrayEquals(data, fs.readFile("a"));
+    }
+
+    @Test
+    void testFileTotalsFollowChanges() throws Exception {
+        fs.createFile("t");
+        fs.writeFile("t", text(2000));
+        fs.createFile("p");
+        fs.writeFile("p", text(1000), false);
+        assertEquals(3000, metric("files.bytes"));
+        long stored = metric("files.stored_bytes");
+        assertTrue(stored > 1000 && stored < 1500, "stored " + stored);
+        assertEquals(1, metric("files.compressed"));
+
+        // Patching t stores it as is; deleting p takes it out
+        fs.patch("t", 0, "THE".getBytes());
+        fs.deleteFile("p");
+        assertEquals(2000, metric("files.bytes"));
+        assertEquals(2000, metric("files.stored_bytes"));
+        assertEquals(0, metric("files.compressed"));
+
+        fs.writeFile("t", text(2000));
+        stored = metric("files.stored_bytes");
+        fs.close();
+        fs = new FileSystemManager(DISK, 64 * 128, new FileSystemConfig());
+        assertEquals(2000, metric("files.bytes"));
+        assertEquals(stored, metric("files.stored_bytes"));
+        assertEquals(1, metric("files.compressed"));
+    }
+}
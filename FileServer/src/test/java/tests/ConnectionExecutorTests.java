@@ -0,0 +1,107 @@
+package tests;
+
+import ca.concordia.server.ConnectionExecutor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConnectionExecutorTests {
+
+    // Runs one handler and returns the thread it ran on
+    private static Thread runOne(ConnectionExecutor executor) throws Exception {
+        AtomicReference<Thread> ran = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(executor.submit(() -> {
+            ran.set(Thread.currentThread());
+            done.countDown();
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return ran.get();
+    }
+
+    @Test
+    @Timeout(10)
+    void testVirtualUsesVirtualThreadsWhereTheJvmHasThem() throws Exception {
+        boolean available;
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            available = true;
+        } catch (NoSuchMethodException e) {
+            available = false;
+        }
+
+        ConnectionExecutor executor = ConnectionExecutor.virtual();
+        try {
+            assertEquals(ConnectionExecutor.Mode.VIRTUAL, executor.getMode());
+            Thread thread = runOne(executor);
+            boolean isVirtual = available && (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+            // Without them (or with them still in preview) a cached pool stands in
+            if (!isVirtual) {
+                assertTrue(thread.getName().startsWith("client-"), thread.getName());
+                assertTrue(thread.isDaemon());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testSpecsAreParsed() {
+        for (String spec : new String[]{null, "", "virtual", "VIRTUAL"}) {
+            ConnectionExecutor executor = ConnectionExecutor.fromSpec(spec);
+            assertEquals(ConnectionExecutor.Mode.VIRTUAL, executor.getMode(), spec);
+            executor.shutdown();
+        }
+        ConnectionExecutor bounded = ConnectionExecutor.fromSpec("Bounded:2:3");
+        assertEquals(ConnectionExecutor.Mode.BOUNDED, bounded.getMode());
+        bounded.shutdown();
+    }
+
+    @Test
+    void testMalformedSpecsAreRejected() {
+        for (String spec : new String[]{"bounded", "bounded:2", "bounded:2:3:4", "bounded:x:3",
+                "bounded:2:", "bounded:0:3", "bounded:2:0", "bounded:-1:3", "pool:2:3", "virtual:1"}) {
+            assertThrows(IllegalArgumentException.class, () -> ConnectionExecutor.fromSpec(spec), spec);
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void testBoundedQueuesThenRejects() throws Exception {
+        ConnectionExecutor executor = ConnectionExecutor.bounded(2, 3);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable handler = () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        };
+        try {
+            // Two run, three wait, the sixth is turned away
+            for (int i = 0; i < 5; i++)
+                assertTrue(executor.submit(handler), "handler " + i);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertFalse(executor.submit(handler));
+            assertEquals(2, executor.getActiveConnections());
+            assertEquals(3, executor.getQueuedConnections());
+            assertEquals(1, executor.getRejectedConnections());
+
+            release.countDown();
+            while (executor.getActiveConnections() + executor.getQueuedConnections() > 0)
+                Thread.sleep(10);
+            assertTrue(executor.submit(() -> {}));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertFalse(executor.submit(() -> {}));
+    }
+}
@@ -0,0 +1,195 @@
+package tests;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DedupTests {
+
+    private static final String DISK = "dedupfs.dat";
+
+    private FileSystemManager fs;
+
+    @BeforeEach
+    void setup() throws Exception {
+        delete();
+        fs = open();
+    }
+
+    @AfterEach
+    void cleanup() throws Exception {
+        fs.close();
+        delete();
+    }
+
+    private static FileSystemManager open() {
+        return new FileSystemManager(DISK, 64 * 128, new FileSystemConfig().deduplication(true).maxFiles(8));
+    }
+
+    private static void delete() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+    }
+
+    private static byte[] pattern(int size, int seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private long metric(String name) {
+        Map<String, Number> metrics = new HashMap<>();
+        fs.collectMetrics(metrics);
+        return metrics.get(name).longValue();
+    }
+
+    @Test
+    void testCopiesShareBlocks() throws Exception {
+        byte[] data = pattern(1000, 1); // 8 blocks
+        for (String name : new String[]{"a", "b", "c"}) {
+            fs.createFile(name);
+            fs.writeFile(name, data);
+        }
+        assertEquals(8, metric("alloc.used"));
+        assertEquals(16, metric("dedup.saved"));
+
+        // A copy of known contents writes no data at all
+        long written = metric("disk.bytes_written");
+        fs.createFile("d");
+        fs.writeFile("d", data);
+        fs.writeFile("a", data);
+        assertEquals(written, metric("disk.bytes_written"));
+
+        fs.deleteFile("a");
+        fs.deleteFile("b");
+        fs.deleteFile("d");
+        assertEquals(8, metric("alloc.used"));
+        assertArrayEquals(data, fs.readFile("c"));
+        fs.deleteFile("c");
+        assertEquals(0, metric("alloc.used"));
+
+        // Blocks repeated within one file are stored once
+        fs.createFile("z");
+        fs.writeFile("z", new byte[1000]);
+        assertEquals(1, metric("alloc.used"));
+        assertArrayEquals(new byte[1000], fs.readFile("z"));
+    }
+
+    @Test
+    void testChangingASharedBlockCopiesIt() throws Exception {
+        byte[] data = pattern(1000, 2);
+        fs.createFile("a");
+        fs.createFile("b");
+        fs.writeFile("a", data);
+        fs.writeFile("b", data);
+
+        fs.patch("a", 130, "changed".getBytes());
+        fs.append("b", "more".getBytes());
+
+        byte[] a = data.clone();
+        System.arraycopy("changed".getBytes(), 0, a, 130, 7);
+        byte[] b = Arrays.copyOf(data, 1004);
+        System.arraycopy("more".getBytes(), 0, b, 1000, 4);
+        assertArrayEquals(a, fs.readFile("a"));
+        assertArrayEquals(b, fs.readFile("b"));
+        // a's second block and b's last one are their own now
+        assertEquals(8 + 1 + 1, metric("alloc.used"));
+    }
+
+    @Test
+    void testSharingSurvivesRemount() throws Exception {
+        byte[] data = pattern(640, 3);
+        fs.createFile("a");
+        fs.createFile("b");
+        fs.writeFile("a", data);
+        fs.writeFile("b", data);
+
+        fs.close();
+        fs = open();
+        assertEquals(5, metric("alloc.used"));
+
+        // Counts and contents are known again after the mount
+        fs.createFile("c");
+        fs.writeFile("c", data);
+        assertEquals(5, metric("alloc.used"));
+        fs.deleteFile("a");
+        fs.deleteFile("b");
+        assertArrayEquals(data, fs.readFile("c"));
+        assertEquals(5, metric("alloc.used"));
+    }
+
+    @Test
+    void testUnsharingIsJournaled() throws Exception {
+        byte[] data = pattern(1000, 4);
+        fs.createFile("a");
+        fs.createFile("b");
+        fs.writeFile("a", data);
+        fs.writeFile("b", data);
+        fs.patch("a", 130, "changed".getBytes());
+
+        // Not closed: only the journal knows a's second block was copied
+        FileSystemManager crashed = fs;
+        fs = open();
+        byte[] a = data.clone();
+        System.arraycopy("changed".getBytes(), 0, a, 130, 7);
+        assertArrayEquals(a, fs.readFile("a"));
+        assertArrayEquals(data, fs.readFile("b"));
+        assertEquals(8 + 1, metric("alloc.used"));
+
+        // The copy is allocated, so another file can't be given it
+        fs.createFile("c");
+        long free = metric("alloc.blocks") - metric("alloc.used");
+        fs.writeFile("c", pattern((int) free * 128, 5));
+        assertArrayEquals(a, fs.readFile("a"));
+        crashed.close();
+    }
+
+    @Test
+    void testRewriteReusesTheOldChainsFNodes() throws Exception {
+        // Repeated blocks, so the file holds most of the volume's FNodes
+        // (4 per block) in just one data block
+        int count = (int) metric("alloc.blocks") * 3;
+        fs.createFile("a");
+        fs.writeFile("a", new byte[count * 128]);
+
+        byte[] changed = new byte[count * 128];
+        changed[0] = 1;
+        fs.writeFile("a", changed);
+        assertArrayEquals(changed, fs.readFile("a"));
+        assertEquals(2, metric("alloc.used"));
+    }
+
+    @Test
+    void testRewriteMakesRoomWithTheBlocksItFrees() throws Exception {
+        // Old and new contents don't both fit on the volume
+        int total = (int) metric("alloc.blocks");
+        fs.createFile("a");
+        fs.writeFile("a", pattern((total - 1) * 128, 1));
+        byte[] changed = pattern((total - 1) * 128, 2);
+        fs.writeFile("a", changed);
+        assertArrayEquals(changed, fs.readFile("a"));
+        assertEquals(total - 1, metric("alloc.used"));
+
+        // A block b shares isn't freed, so now a rewrite is one block short
+        fs.createFile("b");
+        fs.writeFile("b", Arrays.copyOf(changed, 128));
+        fs.createFile("c");
+        fs.writeFile("c", pattern(128, 3));
+        Exception e = assertThrows(Exception.class, () -> fs.writeFile("a", pattern((total - 1) * 128, 4)));
+        assertEquals("file too large", e.getMessage());
+        assertArrayEquals(changed, fs.readFile("a"));
+        assertArrayEquals(Arrays.copyOf(changed, 128), fs.readFile("b"));
+        assertEquals(total, metric("alloc.used"));
+    }
+}
@@ -2,6 +2,9 @@ package tests;
 import ca.concordia.filesystem.FileSystemManager;
 import org.junit.jupiter.api.*;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class FileSystemTests {
@@ -12,6 +15,13 @@ public class FileSystemTests {
         fs = new FileSystemManager("testfs.dat", 10 * 128);
     }
 
+    @AfterAll
+    static void cleanup() throws Exception {
+        fs.close();
+        Files.deleteIfExists(Paths.get("testfs.dat"));
+        Files.deleteIfExists(Paths.get("testfs.dat.journal"));
+    }
+
     @Test
     void testCreateFile() throws Exception {
         fs.createFile("a.txt");
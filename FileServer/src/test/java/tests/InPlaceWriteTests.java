@@ -0,0 +1,225 @@
+package tests;
+
+import ca.concordia.filesystem.FileRegion;
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.server.BinaryProtocol;
+import ca.concordia.server.CommandProcessor;
+import ca.concordia.server.NioFileServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InPlaceWriteTests {
+
+    private static final String DISK = "inplacefs.dat";
+
+    private FileSystemManager fs;
+
+    @BeforeEach
+    void setup() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+        fs = new FileSystemManager(DISK, 64 * 128, new FileSystemConfig());
+    }
+
+    @AfterEach
+    void cleanup() throws Exception {
+        fs.close();
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+    }
+
+    private static byte[] pattern(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (i * 31 + seed);
+        return data;
+    }
+
+    private long position(String name) throws Exception {
+        try (FileRegion region = fs.openRegion(name)) {
+            return region.getExtentOffset(0);
+        }
+    }
+
+    private byte[] transfer(FileRegion region) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long sent = 0;
+        while (sent < region.getLength())
+            sent += fs.transferTo(region, sent, region.getLength() - sent, Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static byte[] frame(int id, byte op, String name, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + 7 + name.length() + payload.length);
+        buf.putInt(7 + name.length() + payload.length).putInt(id).put(op)
+                .putShort((short) name.length()).put(name.getBytes()).put(payload);
+        return buf.array();
+    }
+
+    @Test
+    void testRewriteStaysInPlace() throws Exception {
+        fs.createFile("a");
+        fs.createFile("b");
+        fs.writeFile("a", pattern(300, 1)); // 3 blocks
+        fs.writeFile("b", pattern(100, 2)); // right after a
+        long at = position("a");
+
+        // Same block count, fewer and more again: never moves
+        fs.writeFile("a", pattern(290, 3));
+        assertEquals(at, position("a"));
+        fs.writeFile("a", pattern(200, 4));
+        assertEquals(at, position("a"));
+        assertTrue(fs.getAllocatorStats().contains("used=3 "), fs.getAllocatorStats());
+        fs.writeFile("a", pattern(380, 5));
+        assertEquals(at, position("a"));
+        assertArrayEquals(pattern(380, 5), fs.readFile("a"));
+
+        // b is in the way, so a bigger file has to move
+        fs.writeFile("a", pattern(1000, 6));
+        assertNotEquals(at, position("a"));
+        assertArrayEquals(pattern(1000, 6), fs.readFile("a"));
+        assertArrayEquals(pattern(100, 2), fs.readFile("b"));
+
+        fs.writeFile("a", new byte[0]);
+        assertEquals(0, fs.readFile("a").length);
+        assertTrue(fs.getAllocatorStats().contains("used=1 "), fs.getAllocatorStats());
+    }
+
+    @Test
+    void testPatch() throws Exception {
+        byte[] expected = pattern(1000, 1);
+        fs.createFile("p");
+        fs.writeFile("p", expected);
+        long at = position("p");
+
+        // Unaligned, spanning a block boundary
+        byte[] middle = pattern(50, 9);
+        fs.patch("p", 100, middle);
+        System.arraycopy(middle, 0, expected, 100, middle.length);
+        assertArrayEquals(expected, fs.readFile("p"));
+
+        // Running past the end grows the file
+        byte[] tail = pattern(20, 7);
+        fs.patch("p", 990, tail);
+        expected = Arrays.copyOf(expected, 1010);
+        System.arraycopy(tail, 0, expected, 990, tail.length);
+        assertArrayEquals(expected, fs.readFile("p"));
+        assertEquals(at, position("p"));
+
+        assertThrows(IllegalArgumentException.class, () -> fs.patch("p", 1011, new byte[1]));
+    }
+
+    @Test
+    void testPatchCommand() throws Exception {
+        CommandProcessor processor = new CommandProcessor(fs);
+        assertEquals("OK", processor.process("CREATE c"));
+        assertEquals("OK", processor.process("WRITE c hello world"));
+        assertEquals("OK", processor.process("PATCH c 6 there"));
+        assertEquals("hello there", processor.process("READ c"));
+        assertEquals("OK", processor.process("PATCH c 11 !"));
+        assertEquals("hello there!", processor.process("READ c"));
+        assertEquals("ERROR invalid offset", processor.process("PATCH c x y"));
+        assertEquals("ERROR offset past end of file", processor.process("PATCH c 20 y"));
+    }
+
+    @Test
+    void testOpenRegionKeepsItsContents() throws Exception {
+        for (FileSystemConfig.AllocationMode mode : FileSystemConfig.AllocationMode.values()) {
+            fs.close();
+            Files.deleteIfExists(Paths.get(DISK));
+            Files.deleteIfExists(Paths.get(DISK + ".journal"));
+            fs = new FileSystemManager(DISK, 64 * 128, new FileSystemConfig().allocationMode(mode));
+            byte[] old = pattern(1000, 1);
+            fs.createFile("r");
+            fs.writeFile("r", old);
+
+            // Neither a patch nor a same-size rewrite lands on blocks the region sends
+            FileRegion region = fs.openRegion("r");
+            fs.patch("r", 100, pattern(300, 2));
+            fs.append("r", pattern(50, 3));
+            fs.writeFile("r", pattern(1000, 4));
+            assertArrayEquals(old, transfer(region), mode.name());
+            region.close();
+            assertArrayEquals(pattern(1000, 4), fs.readFile("r"));
+
+            // With the region gone the file is written in place again
+            long at = position("r");
+            fs.patch("r", 0, pattern(10, 5));
+            assertEquals(at, position("r"));
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void testPipelinedReadSeesContentsBeforeLaterPatch() throws Exception {
+        // transferTo hands the kernel page-cache pages it may still be sending
+        // from after the region is closed, so nothing may zero them meanwhile
+        fs.close();
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+        fs = new FileSystemManager(DISK, 64 * 128, new FileSystemConfig().scrubFreedBlocks(false));
+
+        int port = 12390;
+        NioFileServer server = new NioFileServer(port, fs, 1);
+        new Thread(server).start();
+        try {
+            fs.createFile("p");
+            fs.writeFile("p", pattern(500, 1));
+
+            Socket socket = null;
+            for (int i = 0; i < 50 && socket == null; i++) {
+                try {
+                    socket = new Socket();
+                    socket.connect(new InetSocketAddress("localhost", port), 200);
+                } catch (Exception e) {
+                    socket = null;
+                    Thread.sleep(100);
+                }
+            }
+            assertNotNull(socket, "server did not start");
+            try (Socket s = socket) {
+                OutputStream out = s.getOutputStream();
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                out.write("BINARY\n".getBytes());
+                assertEquals("OK\n", new String(in.readNBytes(3)));
+
+                // Both frames arrive in one read, so the event loop runs the
+                // PATCH before it sends the READ's contents
+                ByteArrayOutputStream requests = new ByteArrayOutputStream();
+                requests.write(frame(1, BinaryProtocol.OP_READ, "p", new byte[0]));
+                requests.write(frame(2, BinaryProtocol.OP_PATCH, "p",
+                        ByteBuffer.allocate(8 + 200).putLong(0).put(pattern(200, 9)).array()));
+                out.write(requests.toByteArray());
+
+                assertEquals(5 + 500, in.readInt());
+                assertEquals(1, in.readInt());
+                assertEquals(BinaryProtocol.STATUS_OK, in.readByte());
+                assertArrayEquals(pattern(500, 1), in.readNBytes(500));
+                assertEquals(5, in.readInt());
+                assertEquals(2, in.readInt());
+                assertEquals(BinaryProtocol.STATUS_OK, in.readByte());
+            }
+            byte[] expected = pattern(500, 1);
+            System.arraycopy(pattern(200, 9), 0, expected, 0, 200);
+            assertArrayEquals(expected, fs.readFile("p"));
+        } finally {
+            server.stop();
+        }
+    }
+}
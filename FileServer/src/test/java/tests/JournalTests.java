@@ -0,0 +1,187 @@
+package tests;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.storage.StorageMode;
+import helpers.FailingBlockDevice;
+import helpers.SlowBlockDevice;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JournalTests {
+
+    private static final String DISK = "journalfs.dat";
+    private static final String JOURNAL = DISK + ".journal";
+    private static final String COPY = "journalfs-copy.dat";
+
+    private final List<FileSystemManager> mounted = new ArrayList<>();
+
+    @BeforeEach
+    void setup() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(JOURNAL));
+    }
+
+    @AfterEach
+    void cleanup() throws Exception {
+        for (FileSystemManager fs : mounted) {
+            try {
+                fs.close();
+            } catch (Exception ignored) {
+            }
+        }
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(JOURNAL));
+        Files.deleteIfExists(Paths.get(COPY));
+        Files.deleteIfExists(Paths.get(COPY + ".journal"));
+    }
+
+    private FileSystemManager mount(FileSystemConfig config) {
+        FileSystemManager fs = new FileSystemManager(DISK, 10 * 128, config);
+        mounted.add(fs);
+        return fs;
+    }
+
+    private static long forces(FileSystemManager fs) {
+        Matcher m = Pattern.compile("forces=(\\d+)").matcher(fs.getJournalStats());
+        assertTrue(m.find());
+        return Long.parseLong(m.group(1));
+    }
+
+    @Test
+    void testCommittedChangesAreReplayedAfterCrash() throws Exception {
+        FileSystemManager crashed = mount(new FileSystemConfig());
+        crashed.createFile("a");
+        crashed.createFile("b");
+        crashed.writeFile("a", "journaled".getBytes());
+        crashed.deleteFile("b");
+
+        // Not closed: the volume's metadata region still holds the empty
+        // table, so only the journal knows about "a"
+        FileSystemManager fs = mount(new FileSystemConfig());
+        assertArrayEquals(new String[]{"a"}, fs.listFiles());
+        assertEquals("journaled", new String(fs.readFile("a")));
+        mounted.remove(crashed);
+    }
+
+    @Test
+    void testTornRecordIsIgnored() throws Exception {
+        FileSystemManager crashed = mount(new FileSystemConfig());
+        crashed.createFile("a");
+        mounted.remove(crashed);
+
+        // A record whose length runs past the end of the log
+        Files.write(Paths.get(JOURNAL), new byte[]{0, 0, 1, 0, 1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+        FileSystemManager fs = mount(new FileSystemConfig());
+        assertArrayEquals(new String[]{"a"}, fs.listFiles());
+    }
+
+    @Test
+    void testConcurrentWritersShareForces() throws Exception {
+        FileSystemManager fs = mount(new FileSystemConfig()
+                .durability(FileSystemConfig.Durability.BATCHED)
+                .groupCommit(4, 50));
+        for (int f = 0; f < 4; f++)
+            fs.createFile("f" + f);
+        long before = forces(fs);
+
+        int ops = 4 * 25;
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int f = 0; f < 4; f++) {
+                String name = "f" + f;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < ops / 4; i++)
+                        fs.writeFile(name, new byte[]{(byte) i});
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            pool.shutdown();
+        }
+
+        long used = forces(fs) - before;
+        assertTrue(used < ops / 2, ops + " writes took " + used + " forces");
+    }
+
+    @Test
+    void testRecordIsNotCommittedBeforeItsData() throws Exception {
+        FileSystemManager fs = new FileSystemManager(new SlowBlockDevice(StorageMode.CHANNEL.open(DISK, 128, 64), 200),
+                new FileSystemConfig().journalFile(JOURNAL));
+        mounted.add(fs);
+        fs.createFile("a");
+        byte[] data = "written before the record".getBytes();
+
+        // Another change committed while a's data is on its way to the disk
+        Thread writer = new Thread(() -> {
+            try {
+                fs.writeFile("a", data);
+            } catch (Exception ignored) {
+            }
+        });
+        writer.start();
+        Thread.sleep(50);
+        fs.createFile("b");
+
+        // A crash now must not leave a pointing at blocks never written
+        Files.copy(Paths.get(DISK), Paths.get(COPY), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(Paths.get(JOURNAL), Paths.get(COPY + ".journal"), StandardCopyOption.REPLACE_EXISTING);
+        writer.join();
+        FileSystemManager copy = new FileSystemManager(COPY, 64 * 128, new FileSystemConfig());
+        try {
+            byte[] read = copy.readFile("a");
+            assertTrue(read.length == 0 || Arrays.equals(data, read), new String(read));
+        } finally {
+            copy.close();
+        }
+    }
+
+    @Test
+    void testFailedDataWriteIsUndoneBeforeItCommits() throws Exception {
+        FailingBlockDevice device = new FailingBlockDevice(StorageMode.CHANNEL.open(DISK, 128, 64));
+        FileSystemManager fs = new FileSystemManager(device,
+                new FileSystemConfig().journalFile(JOURNAL).scrubFreedBlocks(false));
+        mounted.add(fs);
+        fs.createFile("a");
+        fs.writeFile("a", "SECRET-PASSWORD-1234".getBytes());
+        fs.deleteFile("a");
+
+        // b is handed a's blocks, but its own bytes never reach them
+        fs.createFile("b");
+        device.failWrites(true);
+        assertThrows(IOException.class, () -> fs.writeFile("b", "public".getBytes()));
+        device.failWrites(false);
+        fs.flush();
+
+        // Replaying the journal after a crash must not bring a's bytes back as b's
+        Files.copy(Paths.get(DISK), Paths.get(COPY), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(Paths.get(JOURNAL), Paths.get(COPY + ".journal"), StandardCopyOption.REPLACE_EXISTING);
+        FileSystemManager copy = new FileSystemManager(COPY, 64 * 128, new FileSystemConfig());
+        try {
+            assertEquals(0, copy.readFile("b").length);
+        } finally {
+            copy.close();
+        }
+    }
+}
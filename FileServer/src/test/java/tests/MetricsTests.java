@@ -0,0 +1,123 @@
+package tests;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.LatencyHistogram;
+import ca.concordia.metrics.TimedReadWriteLock;
+import ca.concordia.server.CommandProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsTests {
+
+    private static final String DISK = "metricsfs.dat";
+
+    @Test
+    void testHistogramPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 10_000; v++)
+            h.record(v * 1000);
+
+        assertEquals(10_000, h.getCount());
+        assertEquals(10_000_000, h.getMax());
+        assertEquals(5_000_500, h.getMean());
+        // Buckets are at most 12.5% wide, and percentiles round up to their end
+        assertTrue(within(h.getPercentile(0.50), 5_000_000), "p50 " + h.getPercentile(0.50));
+        assertTrue(within(h.getPercentile(0.99), 9_900_000), "p99 " + h.getPercentile(0.99));
+        assertTrue(within(h.getPercentile(0.999), 9_990_000), "p999 " + h.getPercentile(0.999));
+        assertEquals(10_000_000, h.getPercentile(1.0));
+
+        // Tiny values are exact
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(3);
+        small.record(7);
+        assertEquals(3, small.getPercentile(0.5));
+        assertEquals(7, small.getPercentile(0.99));
+    }
+
+    private static boolean within(long value, long expected) {
+        return value >= expected && value <= expected * 1.125;
+    }
+
+    @Test
+    void testLockTimes() throws Exception {
+        TimedReadWriteLock.Times times = new TimedReadWriteLock.Times();
+        TimedReadWriteLock lock = new TimedReadWriteLock(times);
+
+        lock.writeLock().lock();
+        lock.writeLock().lock(); // re-entry isn't a separate hold
+        Thread.sleep(20);
+        lock.writeLock().unlock();
+        lock.writeLock().unlock();
+        lock.readLock().lock();
+        lock.readLock().unlock();
+
+        // Overlapping readers hold the read side once, first in to last out
+        lock.readLock().lock();
+        Thread other = new Thread(() -> {
+            lock.readLock().lock();
+            lock.readLock().unlock();
+        });
+        other.start();
+        other.join();
+        Thread.sleep(20);
+        lock.readLock().unlock();
+
+        Map<String, Number> out = new HashMap<>();
+        times.collect("l", out);
+        assertEquals(1L, out.get("l.write.hold.count"));
+        assertTrue(out.get("l.write.hold.max_ns").longValue() >= 20_000_000L);
+        assertEquals(3L, out.get("l.read.wait.count"));
+        assertEquals(2L, out.get("l.read.hold.count"));
+        assertTrue(out.get("l.read.hold.max_ns").longValue() >= 20_000_000L);
+    }
+
+    @Test
+    void testStatsCommand() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+        FileSystemManager fs = new FileSystemManager(DISK, 64 * 128, new FileSystemConfig());
+        try {
+            CommandProcessor processor = new CommandProcessor(fs);
+            processor.process("CREATE m");
+            processor.process("WRITE m hello");
+            processor.process("READ m");
+            processor.process("READ missing");
+
+            Map<String, String> stats = parse(processor.process("STATS"));
+            assertEquals("1", stats.get("cmd.WRITE.count"));
+            assertEquals("2", stats.get("cmd.READ.count"));
+            assertEquals("1", stats.get("cmd.READ.errors"));
+            assertEquals("1", stats.get("files"));
+            assertTrue(Long.parseLong(stats.get("disk.write.count")) > 0);
+            assertTrue(Long.parseLong(stats.get("lock.meta.write.hold.count")) > 0);
+            assertTrue(stats.containsKey("alloc.fragmentation"));
+            assertTrue(stats.containsKey("journal.forces"));
+
+            // A prefix narrows the reply
+            Map<String, String> create = parse(processor.process("STATS cmd.CREATE."));
+            assertEquals("1", create.get("cmd.CREATE.count"));
+            assertTrue(create.keySet().stream().allMatch(k -> k.startsWith("cmd.CREATE.")));
+        } finally {
+            fs.close();
+            Files.deleteIfExists(Paths.get(DISK));
+            Files.deleteIfExists(Paths.get(DISK + ".journal"));
+        }
+    }
+
+    private static Map<String, String> parse(String reply) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (String pair : reply.split(" ")) {
+            int eq = pair.indexOf('=');
+            map.put(pair.substring(0, eq), pair.substring(eq + 1));
+        }
+        return map;
+    }
+}
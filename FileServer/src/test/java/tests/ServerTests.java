@@ -21,6 +21,7 @@ public class ServerTests {
 
     @BeforeAll
     static void startServer() throws Exception {
+        ServerRunner.resetVolume();
         server = new ServerRunner();
         server.start();
     }
@@ -0,0 +1,97 @@
+package tests;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamingTests {
+
+    private static final String DISK = "streamfs.dat";
+
+    private FileSystemManager fs;
+
+    @BeforeEach
+    void setup() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+        fs = new FileSystemManager(DISK, 1024 * 1024, new FileSystemConfig());
+    }
+
+    @AfterEach
+    void cleanup() throws Exception {
+        fs.close();
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+    }
+
+    private static byte[] pattern(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (i * 31 + seed);
+        return data;
+    }
+
+    @Test
+    void testRangedRead() throws Exception {
+        byte[] data = pattern(1000, 1);
+        fs.createFile("r");
+        fs.writeFile("r", data);
+
+        // Unaligned start, spanning several blocks
+        byte[] part = fs.read("r", 100, 300);
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 400), part);
+
+        // Clipped at the end, empty past it
+        assertEquals(50, fs.read("r", 950, 500).length);
+        assertEquals(0, fs.read("r", 1000, 10).length);
+        assertEquals(-1, fs.read("r", 1000, new byte[10], 0, 10));
+    }
+
+    @Test
+    void testAppendGrowsFileAndTailReaderSeesOnlyNewBytes() throws Exception {
+        fs.createFile("log");
+        fs.createFile("neighbour");
+        fs.writeFile("log", "first ".getBytes());
+        // Takes the block right after "log", so the next growth has to move it
+        fs.writeFile("neighbour", "x".getBytes());
+
+        long seen = fs.getFileSize("log");
+        fs.append("log", pattern(300, 2));
+        byte[] fresh = fs.read("log", seen, 1024);
+        assertArrayEquals(pattern(300, 2), fresh);
+
+        byte[] expected = new byte[306];
+        System.arraycopy("first ".getBytes(), 0, expected, 0, 6);
+        System.arraycopy(pattern(300, 2), 0, expected, 6, 300);
+        assertArrayEquals(expected, fs.readFile("log"));
+        assertEquals("x", new String(fs.readFile("neighbour")));
+    }
+
+    @Test
+    void testStreamsMoveLargeFilesThroughFixedBuffers() throws Exception {
+        byte[] data = pattern(200_000, 3);
+        fs.createFile("big");
+        try (OutputStream out = fs.openOutputStream("big", false)) {
+            for (int off = 0; off < data.length; off += 7_000)
+                out.write(data, off, Math.min(7_000, data.length - off));
+        }
+        assertEquals(data.length, fs.getFileSize("big"));
+
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        try (InputStream in = fs.openInputStream("big")) {
+            in.transferTo(copy);
+        }
+        assertArrayEquals(data, copy.toByteArray());
+    }
+}
@@ -0,0 +1,117 @@
+package tests;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.storage.StorageMode;
+import helpers.SlowBlockDevice;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StripedLockingTests {
+
+    private static final String DISK = "stripefs.dat";
+    private static final String JOURNAL = DISK + ".journal";
+    private static final int FILES = 4;
+    private static final int OPS_PER_FILE = 20;
+    private static final long DISK_DELAY_MS = 5;
+
+    private FileSystemManager fs;
+
+    @AfterEach
+    void cleanup() throws Exception {
+        if (fs != null) fs.close();
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(JOURNAL));
+    }
+
+    private FileSystemManager slowVolume() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(JOURNAL));
+        fs = new FileSystemManager(
+                new SlowBlockDevice(StorageMode.CHANNEL.open(DISK, 128, 64), DISK_DELAY_MS),
+                // Journaled, so metadata changes don't go to the slow device
+                new FileSystemConfig().journalFile(JOURNAL));
+        for (int f = 0; f < FILES; f++) {
+            fs.createFile("f" + f);
+            fs.writeFile("f" + f, new byte[]{(byte) f});
+        }
+        return fs;
+    }
+
+    // Each thread rewrites and reads back its own file; returns elapsed nanos
+    private long run(FileSystemManager fs, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int f = 0; f < FILES; f++) {
+                String name = "f" + f;
+                byte value = (byte) f;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < OPS_PER_FILE; i++) {
+                        fs.writeFile(name, new byte[]{value, (byte) i});
+                        byte[] back = fs.readFile(name);
+                        assertEquals(value, back[0]);
+                        assertEquals((byte) i, back[1]);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+            return System.nanoTime() - start;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testThroughputScalesOnDisjointFiles() throws Exception {
+        FileSystemManager fs = slowVolume();
+
+        long serial = run(fs, 1);
+        long parallel = run(fs, FILES);
+
+        // With a single global lock the disk waits would serialize and the
+        // ratio would stay near 1
+        double speedup = serial / (double) parallel;
+        assertTrue(speedup > 2.0, "speedup with " + FILES + " threads was only " + speedup);
+    }
+
+    @Test
+    void testSameFileWritersStayConsistent() throws Exception {
+        FileSystemManager fs = slowVolume();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                byte value = (byte) (10 + t);
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 10; i++) {
+                        fs.writeFile("f0", new byte[]{value, value, value});
+                        byte[] back = fs.readFile("f0");
+                        // A read never sees a mix of two writes
+                        assertEquals(3, back.length);
+                        assertEquals(back[0], back[1]);
+                        assertEquals(back[1], back[2]);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
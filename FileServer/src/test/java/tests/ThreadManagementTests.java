@@ -12,6 +12,7 @@ public class ThreadManagementTests {
 
     @BeforeAll
     static void startServer() throws Exception {
+        ServerRunner.resetVolume();
         server = new ServerRunner();
         server.start();
     }
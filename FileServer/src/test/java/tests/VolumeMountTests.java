@@ -0,0 +1,93 @@
+package tests;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VolumeMountTests {
+
+    private static final String DISK = "mountfs.dat";
+
+    private FileSystemManager fs;
+
+    @BeforeEach
+    void setup() throws Exception {
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+    }
+
+    @AfterEach
+    void cleanup() throws Exception {
+        if (fs != null) fs.close();
+        Files.deleteIfExists(Paths.get(DISK));
+        Files.deleteIfExists(Paths.get(DISK + ".journal"));
+    }
+
+    private FileSystemManager mount() {
+        fs = new FileSystemManager(DISK, 10 * 128,
+                new FileSystemConfig().allocationMode(FileSystemConfig.AllocationMode.CHAINED));
+        return fs;
+    }
+
+    @Test
+    void testFilesSurviveRemount() throws Exception {
+        mount();
+        fs.createFile("a");
+        fs.createFile("b");
+        fs.createFile("c");
+        fs.writeFile("a", new byte[300]);
+        fs.writeFile("b", "hello".getBytes());
+        fs.writeFile("c", new byte[200]);
+        fs.deleteFile("a");
+        String layout = usage(fs.getAllocatorStats());
+        fs.close();
+
+        mount();
+        assertArrayEquals(new String[]{"b", "c"}, fs.listFiles());
+        assertEquals("hello", new String(fs.readFile("b")));
+        assertEquals(200, fs.readFile("c").length);
+        assertEquals(layout, usage(fs.getAllocatorStats()));
+
+        // The freed slot and blocks are usable after the remount
+        fs.createFile("d");
+        fs.writeFile("d", new byte[128 * 7]);
+        assertEquals(128 * 7, fs.readFile("d").length);
+    }
+
+    // Block usage part of the allocator stats, without the operation counters
+    private static String usage(String stats) {
+        return stats.substring(0, stats.indexOf(" allocations="));
+    }
+
+    @Test
+    void testGeometryIsStoredWithTheVolume() throws Exception {
+        fs = new FileSystemManager(DISK, 16L * 1024 * 1024,
+                new FileSystemConfig().blockSize(4096).maxFiles(1000));
+        byte[] big = new byte[100_000]; // past the old 32 KB limit
+        for (int i = 0; i < big.length; i++)
+            big[i] = (byte) i;
+        fs.createFile("big");
+        fs.writeFile("big", big);
+        fs.close();
+
+        // Remounting with the default config keeps the volume's own geometry
+        mount();
+        assertArrayEquals(big, fs.readFile("big"));
+        for (int i = 0; i < 100; i++)
+            fs.createFile("f" + i);
+        assertEquals(101, fs.listFiles().length);
+    }
+
+    @Test
+    void testForeignFileIsFormatted() throws Exception {
+        Files.write(Paths.get(DISK), "not a volume".getBytes());
+        assertEquals(0, mount().listFiles().length);
+    }
+}
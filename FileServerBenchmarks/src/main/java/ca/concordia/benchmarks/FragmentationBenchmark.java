@@ -0,0 +1,98 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.allocation.BlockAllocator;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Allocation on a fragmented volume: it is filled with files of 1 to 4 blocks
+ * (sizes from a fixed seed) and every other one is deleted, leaving holes of
+ * at most a few blocks. Each invocation writes a file of fileBlocks blocks and
+ * empties it again. A contiguous file bigger than every hole can't be placed;
+ * that shows up as a false result, and its cost is the failed search.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FragmentationBenchmark {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final int BLOCKS = 8192;
+
+    @Param({"FIRST_FIT", "BEST_FIT", "NEXT_FIT"})
+    public String policy;
+
+    @Param({"CONTIGUOUS", "CHAINED"})
+    public String mode;
+
+    @Param({"1", "4", "16"})
+    public int fileBlocks;
+
+    private Path dir;
+    private FileSystemManager fs;
+    private byte[] contents;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Volumes.newDirectory();
+        fs = Volumes.create(dir, (long) BLOCKS * BLOCK_SIZE, new FileSystemConfig()
+                .allocationPolicy(BlockAllocator.Policy.valueOf(policy))
+                .allocationMode(FileSystemConfig.AllocationMode.valueOf(mode))
+                .durability(FileSystemConfig.Durability.ASYNC)
+                .blockSize(BLOCK_SIZE)
+                .maxFiles(BLOCKS));
+
+        Random random = new Random(42);
+        int files = 0;
+        for (int used = 0; ; files++) {
+            int blocks = 1 + random.nextInt(4);
+            if (used + blocks > BLOCKS - 1)
+                break;
+            fs.createFile("s" + files);
+            fs.writeFile("s" + files, new byte[blocks * BLOCK_SIZE]);
+            used += blocks;
+        }
+        for (int i = 0; i < files; i += 2)
+            fs.deleteFile("s" + i);
+
+        contents = Volumes.contents(fileBlocks * BLOCK_SIZE, 42);
+        fs.createFile("big");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Volumes.destroy(fs, dir);
+    }
+
+    @Benchmark
+    public boolean allocate() throws Exception {
+        boolean placed;
+        try {
+            fs.writeFile("big", contents);
+            placed = true;
+        } catch (Exception e) {
+            placed = false; // no run big enough
+        }
+        fs.writeFile("big", new byte[0]);
+        return placed;
+    }
+}
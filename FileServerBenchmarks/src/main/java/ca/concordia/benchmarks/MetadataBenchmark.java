@@ -0,0 +1,85 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.storage.StorageMode;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Name-level operations on a volume holding half its maximum number of files:
+ * lookup of an existing file, create plus delete of an empty one, and listing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MetadataBenchmark {
+
+    @Param({"CHANNEL", "MAPPED"})
+    public String storage;
+
+    @Param({"64", "1024"})
+    public int maxFiles;
+
+    @Param({"ASYNC", "PER_OP"})
+    public String durability;
+
+    private Path dir;
+    private FileSystemManager fs;
+    private String[] names;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Volumes.newDirectory();
+        fs = Volumes.create(dir, 4L * 1024 * 1024, new FileSystemConfig()
+                .storageMode(StorageMode.valueOf(storage))
+                .durability(FileSystemConfig.Durability.valueOf(durability))
+                .maxFiles(maxFiles));
+
+        names = new String[maxFiles / 2];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "f" + i;
+            fs.createFile(names[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Volumes.destroy(fs, dir);
+    }
+
+    @Benchmark
+    public long lookup() throws Exception {
+        // Strides through the names in a fixed order
+        next = (next + 7919) % names.length;
+        return fs.getFileSize(names[next]);
+    }
+
+    @Benchmark
+    public void createDelete() throws Exception {
+        fs.createFile("tmp");
+        fs.deleteFile("tmp");
+    }
+
+    @Benchmark
+    public String[] list() {
+        return fs.listFiles();
+    }
+}
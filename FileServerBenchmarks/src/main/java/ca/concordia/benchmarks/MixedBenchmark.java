@@ -0,0 +1,123 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.storage.StorageMode;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Concurrent reads and writes over a set of files sharing one volume.
+ *
+ * mixed: every thread picks a file and reads it readPercent of the time,
+ * rewrites it otherwise. Run at several thread counts to see how it scales,
+ * e.g. -t 1, then -t 2, -t 4 and -t 8.
+ *
+ * readersWriter: three threads only read while one only writes, to see how
+ * much a writer holds up readers of other files.
+ *
+ * Each thread draws from its own generator seeded by its index, so a run
+ * with the same thread count issues the same operations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MixedBenchmark {
+
+    @Param({"16"})
+    public int files;
+
+    @Param({"4096"})
+    public int fileSize;
+
+    @Param({"90", "50"})
+    public int readPercent;
+
+    @Param({"CHANNEL", "MAPPED"})
+    public String storage;
+
+    @Param({"0", "1048576"})
+    public long cacheBytes;
+
+    private Path dir;
+    private FileSystemManager fs;
+    private String[] names;
+    private byte[] contents;
+
+    @State(Scope.Thread)
+    public static class Client {
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void setup(ThreadParams params) {
+            random = new SplittableRandom(42 + params.getThreadIndex());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Volumes.newDirectory();
+        fs = Volumes.create(dir, 64L * 1024 * 1024, new FileSystemConfig()
+                .storageMode(StorageMode.valueOf(storage))
+                .durability(FileSystemConfig.Durability.ASYNC)
+                .cacheBytes(cacheBytes)
+                .blockSize(4096)
+                .maxFiles(files));
+
+        contents = Volumes.contents(fileSize, 42);
+        names = new String[files];
+        for (int i = 0; i < files; i++) {
+            names[i] = "m" + i;
+            fs.createFile(names[i]);
+            fs.writeFile(names[i], contents);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Volumes.destroy(fs, dir);
+    }
+
+    @Benchmark
+    public Object mixed(Client client) throws Exception {
+        String name = names[client.random.nextInt(names.length)];
+        if (client.random.nextInt(100) < readPercent)
+            return fs.readFile(name);
+        fs.writeFile(name, contents);
+        return name;
+    }
+
+    @Benchmark
+    @Group("readersWriter")
+    @GroupThreads(3)
+    public byte[] reader(Client client) throws Exception {
+        return fs.readFile(names[client.random.nextInt(names.length)]);
+    }
+
+    @Benchmark
+    @Group("readersWriter")
+    @GroupThreads(1)
+    public void writer(Client client) throws Exception {
+        fs.writeFile(names[client.random.nextInt(names.length)], contents);
+    }
+}
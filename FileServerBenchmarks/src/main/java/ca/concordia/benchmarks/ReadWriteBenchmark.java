@@ -0,0 +1,111 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.storage.StorageMode;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Data path of a single file of fileSize bytes: whole-file write and read,
+ * 4 KB ranged reads, 64-byte patches, and the full create/write/delete cycle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ReadWriteBenchmark {
+
+    private static final int RANGE = 4096;
+    private static final int PATCH = 64;
+
+    @Param({"128", "4096", "65536", "1048576"})
+    public int fileSize;
+
+    @Param({"128", "4096"})
+    public int blockSize;
+
+    @Param({"CHANNEL", "MAPPED"})
+    public String storage;
+
+    @Param({"0"})
+    public long cacheBytes;
+
+    @Param({"ASYNC"})
+    public String durability;
+
+    private Path dir;
+    private FileSystemManager fs;
+    private byte[] contents;
+    private byte[] patch;
+    private long offset;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Volumes.newDirectory();
+        fs = Volumes.create(dir, 64L * 1024 * 1024, new FileSystemConfig()
+                .storageMode(StorageMode.valueOf(storage))
+                .durability(FileSystemConfig.Durability.valueOf(durability))
+                .cacheBytes(cacheBytes)
+                .blockSize(blockSize));
+
+        contents = Volumes.contents(fileSize, 42);
+        patch = Volumes.contents(PATCH, 43);
+        fs.createFile("data");
+        fs.writeFile("data", contents);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Volumes.destroy(fs, dir);
+    }
+
+    // Walks through the file in fixed steps so every run reads the same ranges
+    private long nextOffset(int length) {
+        long limit = Math.max(1, fileSize - length);
+        offset = (offset + 12289) % limit;
+        return offset;
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        fs.writeFile("data", contents);
+    }
+
+    @Benchmark
+    public byte[] read() throws Exception {
+        return fs.readFile("data");
+    }
+
+    @Benchmark
+    public byte[] readRange() throws Exception {
+        return fs.read("data", nextOffset(RANGE), RANGE);
+    }
+
+    @Benchmark
+    public void patch() throws Exception {
+        fs.patch("data", nextOffset(PATCH), patch);
+    }
+
+    @Benchmark
+    public void createWriteDelete() throws Exception {
+        fs.createFile("tmp");
+        fs.writeFile("tmp", contents);
+        fs.deleteFile("tmp");
+    }
+}
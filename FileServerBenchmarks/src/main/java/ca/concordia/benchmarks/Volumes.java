@@ -0,0 +1,44 @@
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemConfig;
+import ca.concordia.filesystem.FileSystemManager;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Fresh volumes for the benchmarks, each in its own temporary directory so
+ * runs never see a previous run's files.
+ */
+final class Volumes {
+
+    private Volumes() {
+    }
+
+    static FileSystemManager create(Path dir, long bytes, FileSystemConfig config) throws IOException {
+        return new FileSystemManager(dir.resolve("volume.dat").toString(), bytes, config);
+    }
+
+    static Path newDirectory() throws IOException {
+        return Files.createTempDirectory("fsbench");
+    }
+
+    static void destroy(FileSystemManager fs, Path dir) throws IOException {
+        if (fs != null)
+            fs.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator)
+                Files.deleteIfExists(p);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    // The same bytes on every run
+    static byte[] contents(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}